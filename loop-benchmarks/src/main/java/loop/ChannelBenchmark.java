@@ -0,0 +1,69 @@
+package loop;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import loop.runtime.Channel;
+import loop.runtime.Closure;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Message throughput of a {@link Channel}, from send to the actor having run, for both
+ * serialized and parallel channels. The actor is a loop function that counts messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelBenchmark {
+  private static final int MESSAGES = 1000;
+
+  @Param({ "true", "false" })
+  public boolean serialize;
+
+  private Channel channel;
+
+  @Setup
+  public void establish() {
+    RuntimeBenchmark.compileModule();
+
+    Map<String, Object> options = new HashMap<String, Object>();
+    options.put("serialize", serialize);
+    Channel.establish("benchmark", new Closure(RuntimeBenchmark.MODULE, "received"), options);
+    this.channel = Channel.named("benchmark");
+  }
+
+  @TearDown
+  public void shutdown() {
+    channel.shutdown();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public long sendAndReceive() {
+    AtomicLong received = new AtomicLong();
+    for (int i = 0; i < MESSAGES; i++)
+      channel.receive(received);
+
+    while (received.get() < MESSAGES)
+      Thread.yield();
+    return received.get();
+  }
+}
@@ -0,0 +1,151 @@
+package loop;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import loop.ast.script.Unit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times each compiler stage on its own, over a selection of the confidence test scripts.
+ * Parsing, reduction, verification and emission all change the tree they are given, so each
+ * call needs fresh input from the stages before it. Rather than build that input around every
+ * call, which would swamp the stage being measured, each iteration is a batch of calls whose
+ * inputs are all built beforehand. Scores are therefore per batch of {@link #BATCH} calls.
+ *
+ * This lives in package loop so that it can construct an {@link AsmCodeEmitter} directly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10, batchSize = CompilerBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = CompilerBenchmark.BATCH)
+@Fork(1)
+public class CompilerBenchmark {
+  static final int BATCH = 200;
+
+  @Param({
+      "algorithms/quicksort.loop",
+      "algorithms/shunting_yard.loop",
+      "algorithms/djikstra.loop",
+      "classes/classes_5.loop",
+      "string_lerp_3.loop",
+      "whereblock_3.loop"
+  })
+  public String script;
+
+  private String file;
+  private String source;
+
+  // Inputs to the calls of the next batch, one each. Classes are emitted into a class loader
+  // of their own, as each call emits a class of the same name.
+  private final List<List<Token>> tokens = new ArrayList<List<Token>>(BATCH);
+  private final List<Unit> parsed = new ArrayList<Unit>(BATCH);
+  private final List<Unit> verified = new ArrayList<Unit>(BATCH);
+  private final List<LoopClassLoader> classLoaders = new ArrayList<LoopClassLoader>(BATCH);
+  private int next;
+
+  @Setup(Level.Trial)
+  public void readScript() {
+    InputStream in = CompilerBenchmark.class.getResourceAsStream("/loop/confidence/" + script);
+    if (in == null)
+      throw new RuntimeException("No such script: " + script);
+
+    this.file = script.substring(script.lastIndexOf('/') + 1);
+    this.source = Util.toString(in);
+  }
+
+  @Setup(Level.Iteration)
+  public void prepareBatch() {
+    tokens.clear();
+    parsed.clear();
+    verified.clear();
+    classLoaders.clear();
+    next = 0;
+
+    for (int i = 0; i < BATCH; i++) {
+      tokens.add(new Tokenizer(source).tokenize());
+      parsed.add(parse());
+
+      Unit unit = parse();
+      unit.reduceAll();
+      if (unit.loadDeps(file) != null)
+        throw new RuntimeException("Unable to load dependencies of " + script);
+      verified.add(unit);
+      classLoaders.add(new LoopClassLoader());
+    }
+  }
+
+  private Unit parse() {
+    Parser parser = new Parser(new Tokenizer(source).tokenize());
+    Unit unit = parser.script(file);
+    if (!parser.getErrors().isEmpty())
+      throw new RuntimeException("Parse errors in " + script + ": " + parser.getErrors());
+
+    return unit;
+  }
+
+  @Benchmark
+  public List<Token> tokenize() {
+    return new Tokenizer(source).tokenize();
+  }
+
+  @Benchmark
+  public Unit parseTokens() {
+    return new Parser(tokens.get(next++)).script(file);
+  }
+
+  @Benchmark
+  public Unit reduce() {
+    Unit unit = parsed.get(next++);
+    unit.reduceAll();
+    return unit;
+  }
+
+  @Benchmark
+  public List<AnnotatedError> verify() {
+    return new Verifier(verified.get(next++)).verify();
+  }
+
+  @Benchmark
+  public Class<?> emit() {
+    Unit unit = verified.get(next);
+    LoopClassLoader.stage(classLoaders.get(next++));
+    try {
+      return new AsmCodeEmitter(unit).write(unit);
+    } finally {
+      LoopClassLoader.stage(null);
+    }
+  }
+
+  /**
+   * Every stage together, as Executable.compile() runs them (less the module cache).
+   */
+  @Benchmark
+  public Class<?> compile() {
+    LoopClassLoader.stage(classLoaders.get(next++));
+    try {
+      Unit unit = parse();
+      unit.reduceAll();
+      unit.loadDeps(file);
+      new Verifier(unit).verify();
+      return new AsmCodeEmitter(unit).write(unit);
+    } finally {
+      LoopClassLoader.stage(null);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package loop;
+
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import loop.lang.ImmutableLoopObject;
+import loop.lang.LoopClass;
+import loop.lang.LoopObject;
+import loop.runtime.Caller;
+import loop.runtime.Operations;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times the runtime paths that compiled loop code spends most of its time in: reflective
+ * calls through {@link Caller}, arithmetic in {@link Operations}, pattern matching dispatch,
+ * comprehensions and freezing immutable objects. Loop functions come from
+ * runtime_benchmark.loop.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuntimeBenchmark {
+  static final String MODULE = "runtime_benchmark";
+
+  private final Object[] addArgs = { 2, 3 };
+  private final Object[] fibArgs = { 15 };
+  private final Object[] describeArgs = { Arrays.asList(1, 2, 3) };
+  private final Object[] greekArgs = { "gamma" };
+  private final Object[] starArgs = { "Proxima Centauri" };
+  private Object[] squaresArgs;
+
+  private final String string = "loop";
+  private final List<Object> list = new ArrayList<Object>(Arrays.<Object>asList(1, 2, 3));
+  private LoopObject star;
+
+  @Setup
+  public void compile() {
+    compileModule();
+
+    List<Object> numbers = new ArrayList<Object>();
+    for (int i = 0; i < 100; i++)
+      numbers.add(i);
+    this.squaresArgs = new Object[] { numbers };
+
+    Map<Object, Object> coordinates = new HashMap<Object, Object>();
+    coordinates.put("ra", "14h 29m 43s");
+    coordinates.put("dec", "-62d 40m 46s");
+    this.star = new LoopObject(new LoopClass("Star"));
+    star.put("name", "Proxima Centauri");
+    star.put("distance", 4.24);
+    star.put("coordinates", coordinates);
+    star.put("neighbours", new ArrayList<Object>(Arrays.asList("Alpha Centauri A", "Alpha Centauri B")));
+  }
+
+  static void compileModule() {
+    // Benchmarks that run in the same VM (as with -f 0) compile it afresh.
+    LoopClassLoader.CLASS_LOADER.release(MODULE);
+    Loop.compile(MODULE, new InputStreamReader(
+        RuntimeBenchmark.class.getResourceAsStream("/loop/benchmarks/" + MODULE + ".loop")));
+  }
+
+  @Benchmark
+  public Object callStatic() throws Throwable {
+    return Caller.callStatic(MODULE, "add", addArgs);
+  }
+
+  @Benchmark
+  public Object callNoArgs() throws Throwable {
+    return Caller.call(string, "length");
+  }
+
+  @Benchmark
+  public Object callWithArgs() throws Throwable {
+    return Caller.call(list, "get", 1);
+  }
+
+  @Benchmark
+  public Object dereference() throws Throwable {
+    return Caller.dereference(star, "name");
+  }
+
+  @Benchmark
+  public Object plusIntegers() {
+    return Operations.plus(40, 2);
+  }
+
+  @Benchmark
+  public Object plusDoubles() {
+    return Operations.plus(40.0, 2.5);
+  }
+
+  @Benchmark
+  public Object plusStrings() {
+    return Operations.plus("loop", "lang");
+  }
+
+  @Benchmark
+  public Object multiplyLongs() {
+    return Operations.multiply(6L, 7L);
+  }
+
+  @Benchmark
+  public Object lesserThan() {
+    return Operations.lesserThan(41, 42);
+  }
+
+  @Benchmark
+  public Object matchListPatterns() throws Throwable {
+    return Caller.callStatic(MODULE, "describe", describeArgs);
+  }
+
+  @Benchmark
+  public Object matchLiteralPatterns() throws Throwable {
+    return Caller.callStatic(MODULE, "greek", greekArgs);
+  }
+
+  /**
+   * Recursive pattern matching with arithmetic: fib(15) makes about two thousand calls.
+   */
+  @Benchmark
+  public Object fibonacci() throws Throwable {
+    return Caller.callStatic(MODULE, "fib", fibArgs);
+  }
+
+  @Benchmark
+  public Object comprehension() throws Throwable {
+    return Caller.callStatic(MODULE, "squares", squaresArgs);
+  }
+
+  @Benchmark
+  public ImmutableLoopObject freeze() {
+    return star.immutize();
+  }
+
+  @Benchmark
+  public Object constructImmutable() throws Throwable {
+    return Caller.callStatic(MODULE, "star", starArgs);
+  }
+}
@@ -0,0 +1,127 @@
+package loop;
+
+import loop.ast.script.ModuleLoader;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * loopc: compiles loop scripts, and every module they require, ahead of time into a JAR.
+ * <p/>
+ * Usage: {@code loopc -d app.jar main.loop [other.loop ...]}
+ * <p/>
+ * With the JAR on the classpath, modules are loaded straight from their compiled classes
+ * without tokenizing, parsing, verifying or emitting anything. Each script is exposed as a
+ * module named after its file, e.g. {@code loop.Loop main} runs main.loop's main().
+ * <p/>
+ * Classes are stored under META-INF/loop/classes/ rather than at the root of the JAR, so
+ * that they are always defined by the loop class loader, never by the application's.
+ * Precompiled modules are trusted as-is: they are not checked against their dependencies'
+ * sources, so rebuild the JAR when any module changes.
+ */
+public class AheadOfTimeCompiler {
+  public static void main(String[] args) throws IOException {
+    File jar = null;
+    List<File> scripts = new ArrayList<File>();
+    for (int i = 0; i < args.length; i++) {
+      if ("-d".equals(args[i]) && i + 1 < args.length)
+        jar = new File(args[++i]);
+      else
+        scripts.add(new File(args[i]));
+    }
+
+    if (jar == null || scripts.isEmpty()) {
+      System.out.println("Usage: loopc -d <output.jar> <file.loop> [<file.loop> ...]");
+      System.exit(1);
+    }
+
+    try {
+      compile(jar, scripts);
+    } catch (LoopCompileException e) {
+      System.out.println(e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Compiles the given scripts and writes them, along with all the modules they depend on,
+   * to the given JAR file.
+   */
+  public static void compile(File jar, final List<File> scripts) throws IOException {
+    final Map<String, Executable> modules = new LinkedHashMap<String, Executable>();
+
+    // Every module, including prelude, is compiled afresh with its form retained, apart from
+    // any that are loaded already.
+    Map<String, List<Executable>> required = ModuleLoader.INSTANCE.compileRetained(new Runnable() {
+      @Override
+      public void run() {
+        for (File script : scripts)
+          modules.put(moduleName(script), compileScript(script));
+      }
+    });
+
+    for (Map.Entry<String, List<Executable>> module : required.entrySet())
+      if (!modules.containsKey(module.getKey()) && !module.getValue().isEmpty())
+        modules.put(module.getKey(), module.getValue().get(0));
+
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+
+    JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+    try {
+      for (Map.Entry<String, Executable> module : modules.entrySet()) {
+        Executable executable = module.getValue();
+        ModuleCache.Entry compiledForm = executable.compiledForm();
+        if (compiledForm == null)
+          throw new RuntimeException("Module cannot be compiled ahead of time: " + module.getKey());
+
+        out.putNextEntry(new JarEntry(ModuleCache.PRECOMPILED_DIR + module.getKey() + ".lpc"));
+        compiledForm.metadata().writeTo(out);
+        out.closeEntry();
+
+        String className = executable.getScope().getModuleName();
+        out.putNextEntry(new JarEntry(ModuleCache.PRECOMPILED_CLASSES_DIR + className + ".class"));
+        out.write(compiledForm.bytecode());
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private static Executable compileScript(File script) {
+    Executable executable;
+    try {
+      executable = new Executable(new FileReader(script), script.getName());
+    } catch (FileNotFoundException e) {
+      throw new RuntimeException(e);
+    }
+
+    executable.retainCompiledForm(true);
+    executable.compile();
+    if (executable.hasErrors()) {
+      String errors = executable.printStaticErrorsIfNecessary();
+
+      throw new LoopCompileException("Syntax errors exist in " + script + ":\n" + errors, executable);
+    }
+    return executable;
+  }
+
+  private static String moduleName(File script) {
+    String name = script.getName();
+    return name.endsWith(ModuleLoader.LOOP_FILES_EXT)
+        ? name.substring(0, name.length() - ModuleLoader.LOOP_FILES_EXT.length())
+        : name;
+  }
+}
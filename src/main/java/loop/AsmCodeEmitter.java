@@ -3,12 +3,20 @@ package loop;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -55,12 +63,14 @@ import loop.ast.WildcardPattern;
 import loop.ast.script.ArgDeclList;
 import loop.ast.script.FunctionDecl;
 import loop.ast.script.Unit;
+import loop.lang.LoopClass;
 import loop.runtime.Closure;
 import loop.runtime.Scope;
 import loop.runtime.regex.NamedPattern;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -71,6 +81,8 @@ import org.objectweb.asm.util.TraceClassVisitor;
  */
 public class AsmCodeEmitter implements Opcodes {
   private static final boolean printBytecode = System.getProperty("print_bytecode") != null;
+  // Global rather than per class, so that a redefined or reloaded class never reuses the name
+  // of an anonymous function that a closure from an older definition may still refer to.
   private static final AtomicInteger functionNameSequence = new AtomicInteger();
 
   private static final String IS_LIST_VAR_PREFIX = "__$isList_";
@@ -79,9 +91,39 @@ public class AsmCodeEmitter implements Opcodes {
   private static final String IS_STRING_PREFIX = "__$isStr_";
   private static final String IS_READER_PREFIX = "__$isRdr_";
   private static final String WHERE_SCOPE_FN_PREFIX = "$wh$";
+  private static final String HOISTED_FIELD_PREFIX = "$where$";
+  static final String TAIL_CALL_PREFIX = "$tc$";
+  static final String CLOSURE_PREFIX = "$fn_";
+  static final String TRAMPOLINE = "$trampoline";
+
+  private static final Handle DEREFERENCE_SITE = new Handle(Opcodes.H_INVOKESTATIC, "loop/runtime/DereferenceSite",
+      "bootstrap", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+          + "Ljava/lang/String;)Ljava/lang/invoke/CallSite;", false);
+
+  // Concatenates the parts of interpolated strings, see stringLiteralEmitter. A site takes at
+  // most 200 arguments, so longer strings chain several.
+  private static final int MAX_CONCAT_ARGUMENTS = 200;
+  private static final Handle STRING_CONCAT = new Handle(Opcodes.H_INVOKESTATIC,
+      "java/lang/invoke/StringConcatFactory", "makeConcatWithConstants",
+      "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/String;"
+          + "[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;", false);
+
+  // Compiles and links the body of a lazily compiled function, on its first call.
+  private static final Handle LAZY_LINKER = new Handle(Opcodes.H_INVOKESTATIC, "loop/LazyFunctions", "link",
+      "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
+      false);
 
   private final Stack<Context> functionStack = new Stack<Context>();
 
+  // Where-block assignments whose values are kept in static fields, by field name.
+  private final Map<Node, String> hoistedBindings = new IdentityHashMap<Node, String>();
+
+  // Mutually tail-recursive functions of this class, each with its index in the trampoline.
+  private final Map<FunctionDecl, Integer> trampolined = new IdentityHashMap<FunctionDecl, Integer>();
+
+  // Whether functions are written as stubs, with their bodies compiled on first call.
+  private boolean lazy;
+
   private final Scope scope;
 
   public static class SourceLocation implements Comparable<SourceLocation> {
@@ -156,14 +198,81 @@ public class AsmCodeEmitter implements Opcodes {
     this.EMITTERS.put(ListRange.class, this.inlineListRangeEmitter);
   }
 
-  private final ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+  // Stack map frames are computed for us, which needs the common supertype of any two types that
+  // meet where branches join. Loop values are all held as Object, so anything that can't be
+  // loaded (such as the class being written) is taken to be just that.
+  private final ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+    @Override
+    protected String getCommonSuperClass(final String type1, final String type2) {
+      try {
+        return super.getCommonSuperClass(type1, type2);
+      } catch (final TypeNotPresentException e) {
+        return "java/lang/Object";
+      }
+    }
+
+    @Override
+    protected ClassLoader getClassLoader() {
+      return LoopClassLoader.defining();
+    }
+  };
+  private String javaClass;
   private final Stack<MethodVisitor> methodStack = new Stack<MethodVisitor>();
+  private byte[] bytecode;
+
+  /**
+   * The raw class file produced by the last call to write().
+   */
+  public byte[] bytecode() {
+    return this.bytecode;
+  }
 
   public Class<?> write(final Unit unit) {
-    Thread.currentThread().setContextClassLoader(LoopClassLoader.CLASS_LOADER);
+    return this.write(unit, unit.name(), unit.functions(), unit.classes(), unit.initializer(),
+        LoopClassLoader.defining());
+  }
+
+  /**
+   * Writes a unit with a stub in place of each function, which compiles the body of the
+   * function into a class of its own when it's first called. See {@link LazyFunctions}.
+   */
+  Class<?> writeLazily(final Unit unit) {
+    this.lazy = true;
+    LoopClassLoader.defining().lazyUnits.put(unit.name(), unit);
+    return this.write(unit);
+  }
+
+  /**
+   * Writes the body of a lazily compiled function, along with its helpers and closures, into the
+   * given class.
+   */
+  Class<?> writeLazyBody(final Unit unit, final String javaClass, final FunctionDecl function,
+      final LoopClassLoader classLoader) {
+    // Helper functions are called in the class they're written into, rather than the module's.
+    for (final Node helper : function.whereBlock()) {
+      if (helper instanceof FunctionDecl) {
+        ((FunctionDecl) helper).setModule(javaClass);
+      }
+    }
+    return this.write(unit, javaClass, Collections.singletonList(function), Collections.<ClassDecl>emptyList(),
+        null, classLoader);
+  }
+
+  /**
+   * Writes just the given functions and types of a unit into a class of their own, leaving
+   * out its initializer. This is how the shell compiles a session a piece at a time.
+   */
+  public Class<?> write(final Unit unit, final String javaClass, final Collection<FunctionDecl> functions,
+      final Collection<ClassDecl> classes) {
+    return this.write(unit, javaClass, functions, classes, null, LoopClassLoader.defining());
+  }
+
+  private Class<?> write(final Unit unit, final String javaClass, final Collection<FunctionDecl> functions,
+      final Collection<ClassDecl> classes, final List<Node> initializer, final LoopClassLoader classLoader) {
+    Thread.currentThread().setContextClassLoader(classLoader);
 
     // We always emit functions as static into a containing Java class.
-    final String javaClass = unit.name();
+    this.javaClass = javaClass;
 
     String fileName = unit.getFileName();
     if (fileName != null) {
@@ -172,15 +281,25 @@ public class AsmCodeEmitter implements Opcodes {
       }
       this.classWriter.visitSource(fileName, null);
     }
-    this.classWriter.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, javaClass, null, "java/lang/Object", new String[0]);
+    this.classWriter.visit(Opcodes.V11, Opcodes.ACC_PUBLIC, javaClass, null, "java/lang/Object", new String[0]);
 
-    for (final FunctionDecl functionDecl : unit.functions()) {
+    // One canonical type descriptor per declared type, held in a static field of its module.
+    for (final ClassDecl classDecl : classes) {
+      this.classWriter.visitField(Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC + Opcodes.ACC_FINAL,
+          AsmCodeEmitter.typeField(classDecl), "Lloop/lang/LoopClass;", null, null).visitEnd();
+    }
+
+    this.findMutualTailCalls(functions);
+    for (final FunctionDecl functionDecl : functions) {
       this.emit(functionDecl);
     }
+    if (!this.trampolined.isEmpty()) {
+      this.emitTrampoline();
+    }
 
     // Emit any static initializer here.
-    if (unit.initializer() != null) {
-      this.emitInitializerBlock(unit.initializer());
+    if (initializer != null || !classes.isEmpty()) {
+      this.emitInitializerBlock(classes, initializer);
     }
 
     this.classWriter.visitEnd();
@@ -194,22 +313,40 @@ public class AsmCodeEmitter implements Opcodes {
       }
     }
 
-    LoopClassLoader.CLASS_LOADER.put(javaClass, this.classWriter.toByteArray());
+    this.bytecode = this.classWriter.toByteArray();
+    classLoader.put(javaClass, this.bytecode);
     try {
-      return LoopClassLoader.CLASS_LOADER.findClass(javaClass);
+      return classLoader.findClass(javaClass);
     } catch (final ClassNotFoundException e) {
       throw new RuntimeException(e);
     }
   }
 
-  private void emitInitializerBlock(final List<Node> exprs) {
+  private void emitInitializerBlock(final Collection<ClassDecl> classes, final List<Node> expressions) {
     final MethodVisitor initializer = this.classWriter.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
 
+    // Type descriptors must be ready before any initializer expressions run.
+    for (final ClassDecl classDecl : classes) {
+      initializer.visitTypeInsn(Opcodes.NEW, "loop/lang/LoopClass");
+      initializer.visitInsn(Opcodes.DUP);
+      initializer.visitLdcInsn(classDecl.name);
+      initializer.visitMethodInsn(Opcodes.INVOKESPECIAL, "loop/lang/LoopClass", "<init>", "(Ljava/lang/String;)V");
+      initializer.visitFieldInsn(Opcodes.PUTSTATIC, this.javaClass, AsmCodeEmitter.typeField(classDecl),
+          "Lloop/lang/LoopClass;");
+    }
+
+    if (expressions == null) {
+      initializer.visitInsn(Opcodes.RETURN);
+      initializer.visitMaxs(3, 0);
+      initializer.visitEnd();
+      return;
+    }
+
     this.methodStack.push(initializer);
     final Context context = new Context(FunctionDecl.STATIC_INITIALIZER);
     this.functionStack.push(context);
     this.scope.pushScope(context);
-    for (final Node expr : exprs) {
+    for (final Node expr : expressions) {
       this.emit(expr);
       initializer.visitInsn(Opcodes.POP);
     }
@@ -225,7 +362,8 @@ public class AsmCodeEmitter implements Opcodes {
   private void trackLineAndColumn(final Node node) {
     final Label line = new Label();
     this.methodStack.peek().visitLabel(line);
-    this.methodStack.peek().visitLineNumber(node.sourceLine, line);
+    // Source lines are counted from 0, class files count them from 1.
+    this.methodStack.peek().visitLineNumber(node.sourceLine + 1, line);
   }
 
   private void emitChildren(final Node node) {
@@ -286,16 +424,16 @@ public class AsmCodeEmitter implements Opcodes {
     AsmCodeEmitter.this.trackLineAndColumn(dereference);
 
     final MethodVisitor methodVisitor = AsmCodeEmitter.this.methodStack.peek();
-    methodVisitor.visitLdcInsn(dereference.name());
 
     // Special form to call on a java type rather than lookup by class name.
     if (dereference.isJavaStatic()) {
+      methodVisitor.visitLdcInsn(dereference.name());
       methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, "loop/runtime/Caller", "getStatic",
           "(Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Object;");
     } else {
-      // If JDK7, use invokedynamic instead for better performance.
-      methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, "loop/runtime/Caller", "dereference",
-          "(Ljava/lang/Object;Ljava/lang/String;)Ljava/lang/Object;");
+      // Each dereference is a call site that caches how to read its property.
+      methodVisitor.visitInvokeDynamicInsn("dereference", "(Ljava/lang/Object;)Ljava/lang/Object;",
+          AsmCodeEmitter.DEREFERENCE_SITE, dereference.name());
     }
   };
 
@@ -384,9 +522,34 @@ public class AsmCodeEmitter implements Opcodes {
       return;
     }
 
-    // push name of containing type if this is a static call.
+    // MUTUAL TAIL CALLS:
+    // Hand the call back to the trampoline to make, rather than make it on top of this frame.
+    if (call.isTailCall() && call.namespace() == null && !call.isJavaStatic()
+        && AsmCodeEmitter.this.trampolined.containsKey(context.thisFunction)
+        && AsmCodeEmitter.this.trampolined.containsKey(resolvedFunction)
+        && AsmCodeEmitter.isTrampolineCall(call, resolvedFunction)) {
+      methodVisitor.visitTypeInsn(Opcodes.NEW, "loop/runtime/TailCall");
+      methodVisitor.visitInsn(Opcodes.DUP);
+      methodVisitor.visitLdcInsn(AsmCodeEmitter.this.trampolined.get(resolvedFunction));
+
+      final List<Node> children = call.args().children();
+      methodVisitor.visitIntInsn(Opcodes.BIPUSH, children.size());
+      methodVisitor.visitTypeInsn(Opcodes.ANEWARRAY, "java/lang/Object");
+      for (int i1 = 0, childrenSize = children.size(); i1 < childrenSize; i1++) {
+        methodVisitor.visitInsn(Opcodes.DUP);
+        methodVisitor.visitIntInsn(Opcodes.BIPUSH, i1);
+        AsmCodeEmitter.this.emit(children.get(i1));
+        methodVisitor.visitInsn(Opcodes.AASTORE);
+      }
+      methodVisitor.visitMethodInsn(Opcodes.INVOKESPECIAL, "loop/runtime/TailCall", "<init>",
+          "(I[Ljava/lang/Object;)V");
+
+      return;
+    }
+
+    // push name of containing type if this is a static call. Calls on a Java type already have it.
     final boolean isExternalFunction = resolvedFunction != null && resolvedFunction.moduleName != null
-        && !AsmCodeEmitter.this.scope.getModuleName().equals(resolvedFunction.moduleName);
+        && !call.isJavaStatic() && !AsmCodeEmitter.this.javaClass.equals(resolvedFunction.moduleName);
 
     if (isStatic && !call.isJavaStatic()) {
       if (isClosure) {
@@ -394,7 +557,7 @@ public class AsmCodeEmitter implements Opcodes {
       }
 
       if (!isExternalFunction) {
-        methodVisitor.visitLdcInsn(AsmCodeEmitter.this.scope.getModuleName());
+        methodVisitor.visitLdcInsn(AsmCodeEmitter.this.javaClass);
       }
     }
 
@@ -509,11 +672,7 @@ public class AsmCodeEmitter implements Opcodes {
 
       methodVisitor.visitTypeInsn(Opcodes.NEW, "loop/lang/LoopObject");
       methodVisitor.visitInsn(Opcodes.DUP);
-
-      methodVisitor.visitTypeInsn(Opcodes.NEW, "loop/lang/LoopClass");
-      methodVisitor.visitInsn(Opcodes.DUP);
-      methodVisitor.visitLdcInsn(classDecl.name);
-      methodVisitor.visitMethodInsn(Opcodes.INVOKESPECIAL, "loop/lang/LoopClass", "<init>", "(Ljava/lang/String;)V");
+      AsmCodeEmitter.this.emitTypeDescriptor(methodVisitor, classDecl);
 
       methodVisitor
           .visitMethodInsn(Opcodes.INVOKESPECIAL, "loop/lang/LoopObject", "<init>", "(Lloop/lang/LoopClass;)V");
@@ -686,7 +845,12 @@ public class AsmCodeEmitter implements Opcodes {
 
     if (assignment.lhs() instanceof Variable) {
       final int lhsVar = context.localVarIndex(context.newLocalVariable((Variable) assignment.lhs()));
-      AsmCodeEmitter.this.emit(assignment.rhs());
+      final String hoistedField = AsmCodeEmitter.this.hoistedBindings.get(assignment);
+      if (hoistedField != null) {
+        AsmCodeEmitter.this.emitHoisted(hoistedField, assignment.rhs());
+      } else {
+        AsmCodeEmitter.this.emit(assignment.rhs());
+      }
 
       // Leave the result of the assignment on the stack.
       methodVisitor.visitInsn(Opcodes.DUP);
@@ -759,7 +923,7 @@ public class AsmCodeEmitter implements Opcodes {
     }
   };
 
-  private static String normalizeMethodName(final String name) {
+  static String normalizeMethodName(final String name) {
     return name.replaceFirst("@", "__");
   }
 
@@ -878,30 +1042,82 @@ public class AsmCodeEmitter implements Opcodes {
     if (string.parts != null) {
       final MethodVisitor methodVisitor = AsmCodeEmitter.this.methodStack.peek();
 
-      // Emit stringbuilder for string interpolation.
-      methodVisitor.visitTypeInsn(Opcodes.NEW, "java/lang/StringBuilder");
-      methodVisitor.visitInsn(Opcodes.DUP);
-      methodVisitor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V");
-
+      int literalLength = 0, expressions = 0;
+      final StringBuilder literal = new StringBuilder();
       for (final Node part : string.parts) {
         if (part instanceof StringLiteral) {
-          methodVisitor.visitLdcInsn(((StringLiteral) part).value);
+          literal.append(((StringLiteral) part).value);
+          literalLength += ((StringLiteral) part).value.length();
         } else {
-          AsmCodeEmitter.this.emit(part);
+          expressions++;
         }
+      }
 
-        methodVisitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
-            "(Ljava/lang/Object;)Ljava/lang/StringBuilder;");
+      // Nothing to interpolate, or just one expression, needs no concatenation.
+      if (expressions == 0) {
+        methodVisitor.visitLdcInsn(literal.toString());
+        return;
+      }
+      if (literalLength == 0 && expressions == 1) {
+        for (final Node part : string.parts) {
+          if (!(part instanceof StringLiteral)) {
+            AsmCodeEmitter.this.emit(part);
+          }
+        }
+        methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/String", "valueOf",
+            "(Ljava/lang/Object;)Ljava/lang/String;");
+        return;
       }
 
-      methodVisitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString",
-          "()Ljava/lang/String;");
+      // Concatenate with an invokedynamic, whose recipe holds the literal text with \1 for each
+      // expression. Literal text with those control characters is passed as a \2 constant.
+      // Chained sites each continue from the last.
+      final StringBuilder recipe = new StringBuilder();
+      final StringBuilder descriptor = new StringBuilder("(");
+      final List<Object> constants = new ArrayList<Object>();
+      int arguments = 0;
+      for (final Node part : string.parts) {
+        if (part instanceof StringLiteral) {
+          final String value = ((StringLiteral) part).value;
+          if (value.indexOf('\1') >= 0 || value.indexOf('\2') >= 0) {
+            recipe.append('\2');
+            constants.add(value);
+          } else {
+            recipe.append(value);
+          }
+          continue;
+        }
+
+        if (arguments == AsmCodeEmitter.MAX_CONCAT_ARGUMENTS) {
+          AsmCodeEmitter.emitConcat(methodVisitor, recipe, descriptor, constants);
+          recipe.append('\1');
+          descriptor.append("Ljava/lang/Object;");
+          arguments = 1;
+        }
+        AsmCodeEmitter.this.emit(part);
+        recipe.append('\1');
+        descriptor.append("Ljava/lang/Object;");
+        arguments++;
+      }
+      AsmCodeEmitter.emitConcat(methodVisitor, recipe, descriptor, constants);
 
     } else {
       AsmCodeEmitter.this.methodStack.peek().visitLdcInsn(string.value.substring(1, string.value.length() - 1));
     }
   };
 
+  // Emits a string concatenation site, and resets the given recipe for the next one.
+  private static void emitConcat(final MethodVisitor methodVisitor, final StringBuilder recipe,
+      final StringBuilder descriptor, final List<Object> constants) {
+    constants.add(0, recipe.toString());
+    methodVisitor.visitInvokeDynamicInsn("concat", descriptor.append(")Ljava/lang/String;").toString(),
+        AsmCodeEmitter.STRING_CONCAT, constants.toArray());
+
+    recipe.setLength(0);
+    descriptor.setLength(1);
+    constants.clear();
+  }
+
   private final Emitter regexLiteralEmitter = node -> {
     throw new UnsupportedOperationException();
   };
@@ -910,9 +1126,17 @@ public class AsmCodeEmitter implements Opcodes {
     final FunctionDecl functionDecl = (FunctionDecl) node;
     String name = functionDecl.scopedName();
     final boolean isClosure = functionDecl.isAnonymous();
+    if (AsmCodeEmitter.this.lazy && !isClosure && AsmCodeEmitter.this.functionStack.isEmpty()
+        && !AsmCodeEmitter.this.trampolined.containsKey(functionDecl)) {
+      AsmCodeEmitter.this.emitLazyStub(functionDecl);
+      return;
+    }
     if (isClosure) {
-      // Function is anonymous, generate a globally unique name for it.
-      name = "$fn_" + AsmCodeEmitter.functionNameSequence.incrementAndGet();
+      // Function is anonymous, generate a globally unique name for it. It ends with the
+      // function it's written in, so that profiles can attribute time in it to that function.
+      name = CLOSURE_PREFIX + AsmCodeEmitter.functionNameSequence.incrementAndGet();
+      if (!AsmCodeEmitter.this.functionStack.isEmpty())
+        name += '$' + AsmCodeEmitter.this.functionStack.get(0).thisFunction.scopedName();
     }
     final Context innerContext = new Context(functionDecl);
 
@@ -934,6 +1158,8 @@ public class AsmCodeEmitter implements Opcodes {
 
       currentVisitor.visitTypeInsn(Opcodes.NEW, "loop/runtime/Closure");
       currentVisitor.visitInsn(Opcodes.DUP);
+      // Closures are emitted into the class being written.
+      functionDecl.setModule(AsmCodeEmitter.this.javaClass);
       currentVisitor.visitLdcInsn(functionDecl.moduleName);
       currentVisitor.visitLdcInsn(name);
 
@@ -982,9 +1208,14 @@ public class AsmCodeEmitter implements Opcodes {
     AsmCodeEmitter.this.functionStack.push(innerContext);
     AsmCodeEmitter.this.scope.pushScope(innerContext);
 
-    final MethodVisitor methodVisitor = AsmCodeEmitter.this.classWriter.visitMethod((functionDecl.isPrivate ? 0 /* default */
-        : Opcodes.ACC_PUBLIC) + Opcodes.ACC_STATIC, AsmCodeEmitter.normalizeMethodName(name),
-        args.append("Ljava/lang/Object;").toString(), null, null);
+    // Mutually tail-recursive functions are written as step methods, for the trampoline to run.
+    final int access = (functionDecl.isPrivate ? 0 /* default */ : Opcodes.ACC_PUBLIC) + Opcodes.ACC_STATIC;
+    final boolean isTrampolined = !isClosure && AsmCodeEmitter.this.trampolined.containsKey(functionDecl);
+    final String descriptor = args.append("Ljava/lang/Object;").toString();
+    final MethodVisitor methodVisitor = AsmCodeEmitter.this.classWriter.visitMethod(
+        isTrampolined ? Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC : access,
+        isTrampolined ? AsmCodeEmitter.TAIL_CALL_PREFIX + AsmCodeEmitter.normalizeMethodName(name)
+            : AsmCodeEmitter.normalizeMethodName(name), descriptor, null, null);
     AsmCodeEmitter.this.methodStack.push(methodVisitor);
     AsmCodeEmitter.this.trackLineAndColumn(functionDecl);
 
@@ -1015,6 +1246,7 @@ public class AsmCodeEmitter implements Opcodes {
     }
 
     // Emit locally-scoped helper functions and variables.
+    AsmCodeEmitter.this.hoistInvariantBindings(functionDecl);
     for (final Node helper2 : functionDecl.whereBlock()) {
       // Rewrite helper functions to be namespaced inside the parent function.
       if (helper2 instanceof FunctionDecl) {
@@ -1149,8 +1381,8 @@ public class AsmCodeEmitter implements Opcodes {
         methodVisitor.visitLabel(typeLabel.getValue());
 
         // Emit call to handler.
-        // TODO probably need to resolve this to the correct module.
-        methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, AsmCodeEmitter.this.scope.getModuleName(),
+        methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC,
+            exceptionHandler.moduleName != null ? exceptionHandler.moduleName : AsmCodeEmitter.this.javaClass,
             exceptionHandler.scopedName(), "(Ljava/lang/Object;)Ljava/lang/Object;");
         methodVisitor.visitInsn(Opcodes.ARETURN);
       }
@@ -1162,8 +1394,323 @@ public class AsmCodeEmitter implements Opcodes {
     AsmCodeEmitter.this.methodStack.pop();
     AsmCodeEmitter.this.functionStack.pop();
     AsmCodeEmitter.this.scope.popScope();
+
+    if (isTrampolined) {
+      AsmCodeEmitter.this.emitTrampolineEntry(functionDecl, access, descriptor);
+    }
   };
 
+  /**
+   * Writes the stub of a lazily compiled function, which passes its arguments on to an
+   * invokedynamic call site. The site is linked to the function's body the first time it runs.
+   */
+  private void emitLazyStub(final FunctionDecl functionDecl) {
+    final String name = AsmCodeEmitter.normalizeMethodName(functionDecl.scopedName());
+    final StringBuilder descriptor = new StringBuilder("(");
+    final int arity = functionDecl.arguments().children().size();
+    for (int i = 0; i < arity; i++) {
+      descriptor.append("Ljava/lang/Object;");
+    }
+    descriptor.append(")Ljava/lang/Object;");
+
+    final MethodVisitor methodVisitor = this.classWriter.visitMethod((functionDecl.isPrivate ? 0 /* default */
+        : Opcodes.ACC_PUBLIC) + Opcodes.ACC_STATIC, name, descriptor.toString(), null, null);
+    this.methodStack.push(methodVisitor);
+    this.trackLineAndColumn(functionDecl);
+    this.methodStack.pop();
+    for (int i = 0; i < arity; i++) {
+      methodVisitor.visitVarInsn(Opcodes.ALOAD, i);
+    }
+    methodVisitor.visitInvokeDynamicInsn(name, descriptor.toString(), AsmCodeEmitter.LAZY_LINKER);
+    methodVisitor.visitInsn(Opcodes.ARETURN);
+
+    methodVisitor.visitMaxs(0, 0);
+    methodVisitor.visitEnd();
+  }
+
+  /**
+   * Finds the functions of this class that call one another in tail position, such as even/odd
+   * or the states of a state machine. Each of these is written as a step method that returns
+   * its tail calls to the others as {@link loop.runtime.TailCall}s, rather than making them.
+   * The function itself runs its step method, then the trampoline, which makes any tail call
+   * that comes back and then any that it returns in turn, in the one stack frame.
+   * <p/>
+   * Functions with an exception handler or a cell are left alone, as a tail call made by the
+   * trampoline would run outside of these. Direct self-recursion is handled by a plain jump.
+   */
+  private void findMutualTailCalls(final Collection<FunctionDecl> functions) {
+    final Map<FunctionDecl, Set<FunctionDecl>> tailCalls = new IdentityHashMap<FunctionDecl, Set<FunctionDecl>>();
+    for (final FunctionDecl functionDecl : functions) {
+      if (functionDecl.exceptionHandler != null || functionDecl.cell != null) {
+        continue;
+      }
+
+      final Set<FunctionDecl> callees = new HashSet<FunctionDecl>();
+      this.collectTailCalls(functionDecl, callees);
+      callees.remove(functionDecl);
+      tailCalls.put(functionDecl, callees);
+    }
+
+    for (final FunctionDecl functionDecl : functions) {
+      if (tailCalls.containsKey(functionDecl)
+          && AsmCodeEmitter.reachesInTailCalls(functionDecl, functionDecl, tailCalls, new HashSet<FunctionDecl>())) {
+        this.trampolined.put(functionDecl, this.trampolined.size());
+      }
+    }
+  }
+
+  private void collectTailCalls(final Node node, final Set<FunctionDecl> callees) {
+    for (final Node child : node.children()) {
+      // Closures return their own values, not the function's.
+      if (child instanceof FunctionDecl) {
+        continue;
+      }
+
+      if (child instanceof Call) {
+        final Call call = (Call) child;
+        if (call.isTailCall() && call.namespace() == null && !call.callJava() && !call.isJavaStatic()) {
+          final FunctionDecl callee = this.scope.resolveFunction(call.name(), false);
+          if (callee != null && AsmCodeEmitter.isTrampolineCall(call, callee)) {
+            callees.add(callee);
+          }
+        }
+      }
+      this.collectTailCalls(child, callees);
+    }
+
+    if (node instanceof PatternRule && ((PatternRule) node).rhs != null) {
+      this.collectTailCalls(((PatternRule) node).rhs, callees);
+    } else if (node instanceof Guard) {
+      this.collectTailCalls(((Guard) node).line, callees);
+    }
+  }
+
+  private static boolean reachesInTailCalls(final FunctionDecl from, final FunctionDecl to,
+      final Map<FunctionDecl, Set<FunctionDecl>> tailCalls, final Set<FunctionDecl> visited) {
+    final Set<FunctionDecl> callees = tailCalls.get(from);
+    if (callees == null) {
+      return false;
+    }
+
+    for (final FunctionDecl callee : callees) {
+      if (callee == to) {
+        return true;
+      }
+      if (visited.add(callee) && AsmCodeEmitter.reachesInTailCalls(callee, to, tailCalls, visited)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Only plain positional calls, not call-as-method, are handed to the trampoline.
+  private static boolean isTrampolineCall(final Call call, final FunctionDecl callee) {
+    return callee.arguments() != null && call.args().isPositional()
+        && callee.arguments().children().size() == call.args().children().size();
+  }
+
+  /**
+   * Writes the entry point of a trampolined function, under its own name so that it's called
+   * like any other: it runs the step method, then the trampoline on whatever that returns.
+   */
+  private void emitTrampolineEntry(final FunctionDecl functionDecl, final int access, final String descriptor) {
+    final String name = AsmCodeEmitter.normalizeMethodName(functionDecl.scopedName());
+    final MethodVisitor methodVisitor = this.classWriter.visitMethod(access, name, descriptor, null, null);
+
+    for (int i = 0, size = functionDecl.arguments().children().size(); i < size; i++) {
+      methodVisitor.visitVarInsn(Opcodes.ALOAD, i);
+    }
+    methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, this.javaClass, AsmCodeEmitter.TAIL_CALL_PREFIX + name,
+        descriptor);
+    methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, this.javaClass, AsmCodeEmitter.TRAMPOLINE,
+        "(Ljava/lang/Object;)Ljava/lang/Object;");
+    methodVisitor.visitInsn(Opcodes.ARETURN);
+
+    methodVisitor.visitMaxs(0, 0);
+    methodVisitor.visitEnd();
+  }
+
+  /**
+   * Writes the trampoline: while the result is a tail call, make it by running the step method
+   * it names.
+   */
+  private void emitTrampoline() {
+    final MethodVisitor methodVisitor = this.classWriter.visitMethod(
+        Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC, AsmCodeEmitter.TRAMPOLINE,
+        "(Ljava/lang/Object;)Ljava/lang/Object;", null, null);
+
+    final Label bounce = new Label(), done = new Label();
+    final Label[] steps = new Label[this.trampolined.size()];
+    for (int i = 0; i < steps.length; i++) {
+      steps[i] = new Label();
+    }
+
+    methodVisitor.visitLabel(bounce);
+    methodVisitor.visitVarInsn(Opcodes.ALOAD, 0);
+    methodVisitor.visitTypeInsn(Opcodes.INSTANCEOF, "loop/runtime/TailCall");
+    methodVisitor.visitJumpInsn(Opcodes.IFEQ, done);
+
+    methodVisitor.visitVarInsn(Opcodes.ALOAD, 0);
+    methodVisitor.visitTypeInsn(Opcodes.CHECKCAST, "loop/runtime/TailCall");
+    methodVisitor.visitVarInsn(Opcodes.ASTORE, 1);
+    methodVisitor.visitVarInsn(Opcodes.ALOAD, 1);
+    methodVisitor.visitFieldInsn(Opcodes.GETFIELD, "loop/runtime/TailCall", "target", "I");
+    methodVisitor.visitTableSwitchInsn(0, steps.length - 1, done, steps);
+
+    for (final Map.Entry<FunctionDecl, Integer> entry : this.trampolined.entrySet()) {
+      methodVisitor.visitLabel(steps[entry.getValue()]);
+
+      final StringBuilder descriptor = new StringBuilder("(");
+      for (int i = 0, size = entry.getKey().arguments().children().size(); i < size; i++) {
+        methodVisitor.visitVarInsn(Opcodes.ALOAD, 1);
+        methodVisitor.visitFieldInsn(Opcodes.GETFIELD, "loop/runtime/TailCall", "args", "[Ljava/lang/Object;");
+        methodVisitor.visitIntInsn(Opcodes.BIPUSH, i);
+        methodVisitor.visitInsn(Opcodes.AALOAD);
+        descriptor.append("Ljava/lang/Object;");
+      }
+      methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, this.javaClass,
+          AsmCodeEmitter.TAIL_CALL_PREFIX + AsmCodeEmitter.normalizeMethodName(entry.getKey().scopedName()),
+          descriptor.append(")Ljava/lang/Object;").toString());
+      methodVisitor.visitVarInsn(Opcodes.ASTORE, 0);
+      methodVisitor.visitJumpInsn(Opcodes.GOTO, bounce);
+    }
+
+    methodVisitor.visitLabel(done);
+    methodVisitor.visitVarInsn(Opcodes.ALOAD, 0);
+    methodVisitor.visitInsn(Opcodes.ARETURN);
+
+    methodVisitor.visitMaxs(0, 0);
+    methodVisitor.visitEnd();
+  }
+
+  /**
+   * Finds the where-bindings of a function whose values can't differ from one call to the
+   * next, so that they're computed once (on first use) and kept in a static field, rather than
+   * on every call of the function and again in every nested helper function.
+   * <p/>
+   * Only values that are immutable qualify, as otherwise every call would share (and see any
+   * changes to) the one object: numbers, strings, booleans, types and expressions over these, as
+   * well as static final fields of Java types. Calls aren't hoisted, as they may have side
+   * effects.
+   */
+  private void hoistInvariantBindings(final FunctionDecl functionDecl) {
+    final Set<String> invariants = new HashSet<String>();
+    for (final Node node : functionDecl.whereBlock()) {
+      if (!(node instanceof Assignment)) {
+        continue;
+      }
+
+      final Assignment assignment = (Assignment) node;
+      if (!(assignment.lhs() instanceof Variable) || assignment.condition() != null) {
+        continue;
+      }
+      final String name = ((Variable) assignment.lhs()).name;
+
+      final Node rhs = assignment.rhs();
+      if (this.isInvariant(rhs, invariants)) {
+        invariants.add(name);
+
+        // String and boolean constants are as cheap to load as a field.
+        if (rhs instanceof BooleanLiteral || rhs instanceof StringLiteral && ((StringLiteral) rhs).parts == null) {
+          continue;
+        }
+      } else if (!this.isStaticFinalField(rhs)) {
+        invariants.remove(name);
+        continue;
+      }
+
+      if (!this.hoistedBindings.containsKey(assignment)) {
+        final String field = AsmCodeEmitter.HOISTED_FIELD_PREFIX + this.hoistedBindings.size() + '$' + name;
+        this.classWriter.visitField(Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC, field,
+            "Ljava/lang/Object;", null, null).visitEnd();
+        this.hoistedBindings.put(assignment, field);
+      }
+    }
+  }
+
+  private boolean isInvariant(final Node node, final Set<String> invariants) {
+    if (node instanceof IntLiteral || node instanceof LongLiteral || node instanceof DoubleLiteral
+        || node instanceof FloatLiteral || node instanceof BigIntegerLiteral || node instanceof BigDecimalLiteral
+        || node instanceof BooleanLiteral) {
+      return true;
+    }
+    if (node instanceof TypeLiteral) {
+      final String name = ((TypeLiteral) node).name;
+      return this.scope.resolve(name, true) == null && this.scope.resolveJavaType(name) != null;
+    }
+    if (node instanceof JavaLiteral) {
+      return ((JavaLiteral) node).staticFieldAccess == null;
+    }
+    if (node instanceof Variable) {
+      return invariants.contains(((Variable) node).name);
+    }
+    if (node instanceof StringLiteral) {
+      final List<Node> parts = ((StringLiteral) node).parts;
+      if (parts != null) {
+        for (final Node part : parts) {
+          if (!this.isInvariant(part, invariants)) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    if (node instanceof Computation || node instanceof BinaryOp || node instanceof TernaryIfExpression
+        || node instanceof TernaryUnlessExpression || node instanceof CallChain && node.children().size() == 1) {
+      for (final Node child : node.children()) {
+        if (!this.isInvariant(child, invariants)) {
+          return false;
+        }
+      }
+      return !node.children().isEmpty();
+    }
+    return false;
+  }
+
+  // A lookup of a static field that never changes, e.g. `java.lang.Integer::MAX_VALUE`.
+  private boolean isStaticFinalField(final Node node) {
+    if (!(node instanceof JavaLiteral) || ((JavaLiteral) node).staticFieldAccess == null) {
+      return false;
+    }
+
+    final JavaLiteral java = (JavaLiteral) node;
+    try {
+      final Class<?> type = LoopClassLoader.CLASS_LOADER.loadClass(java.value);
+      if ("class".equals(java.staticFieldAccess)) {
+        return true;
+      }
+      for (final Field field : type.getDeclaredFields()) {
+        if (field.getName().equals(java.staticFieldAccess)) {
+          return Modifier.isStatic(field.getModifiers()) && Modifier.isFinal(field.getModifiers());
+        }
+      }
+    } catch (final ClassNotFoundException e) {
+      // Leave it to fail at runtime.
+    } catch (final LinkageError e) {
+      // Likewise.
+    }
+    return false;
+  }
+
+  /**
+   * Loads the value of a hoisted where-binding from its static field, computing and storing it
+   * first if this is its first use. Two threads may race to compute it, which is harmless as
+   * the value is immutable and always the same.
+   */
+  private void emitHoisted(final String field, final Node rhs) {
+    final MethodVisitor methodVisitor = this.methodStack.peek();
+    final Label computed = new Label();
+
+    methodVisitor.visitFieldInsn(Opcodes.GETSTATIC, this.javaClass, field, "Ljava/lang/Object;");
+    methodVisitor.visitInsn(Opcodes.DUP);
+    methodVisitor.visitJumpInsn(Opcodes.IFNONNULL, computed);
+    methodVisitor.visitInsn(Opcodes.POP);
+    this.emit(rhs);
+    methodVisitor.visitInsn(Opcodes.DUP);
+    methodVisitor.visitFieldInsn(Opcodes.PUTSTATIC, this.javaClass, field, "Ljava/lang/Object;");
+    methodVisitor.visitLabel(computed);
+  }
+
   private void detectFreeVariables(final Node top, final ArgDeclList args, final List<Variable> vars) {
     // Pre-order traversal.
     for (final Node node : top.children()) {
@@ -1191,6 +1738,27 @@ public class AsmCodeEmitter implements Opcodes {
     } else if (top instanceof Call) {
       final Call call = (Call) top;
       this.detectFreeVariables(call.args(), args, vars);
+    } else if (top instanceof Comprehension) {
+      final Comprehension comprehension = (Comprehension) top;
+      if (comprehension.upstream() != null) {
+        this.detectFreeVariables(comprehension.upstream(), args, vars);
+      } else {
+        this.detectFreeVariables(comprehension.inList(), args, vars);
+      }
+
+      // The loop variable is bound inside the filter and projection, so it is never free there.
+      final List<Variable> inner = new ArrayList<Variable>();
+      if (comprehension.filter() != null) {
+        this.detectFreeVariables(comprehension.filter(), args, inner);
+      }
+      for (final Node projection : comprehension.projection()) {
+        this.detectFreeVariables(projection, args, inner);
+      }
+      for (final Variable variable : inner) {
+        if (!variable.name.equals(comprehension.var().name)) {
+          vars.add(variable);
+        }
+      }
     }
 
   }
@@ -1332,6 +1900,14 @@ public class AsmCodeEmitter implements Opcodes {
 
   private final Emitter comprehensionEmitter = node -> {
     final Comprehension comprehension = (Comprehension) node;
+    if (comprehension.lazy()) {
+      AsmCodeEmitter.this.emitLazyComprehension(comprehension);
+      return;
+    }
+    if (comprehension.parallel()) {
+      AsmCodeEmitter.this.emitParallelComprehension(comprehension);
+      return;
+    }
 
     final Context context = AsmCodeEmitter.this.functionStack.peek();
     final MethodVisitor methodVisitor = AsmCodeEmitter.this.methodStack.peek();
@@ -1344,51 +1920,112 @@ public class AsmCodeEmitter implements Opcodes {
     methodVisitor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/util/ArrayList", "<init>", "()V");
     methodVisitor.visitVarInsn(Opcodes.ASTORE, outVarIndex);
 
-    // Now loop through the target variable.
-    final int iVarIndex = context.localVarIndex(context.newLocalVariable());
-
-    // iterator = collection.iterator()
-    AsmCodeEmitter.this.emit(comprehension.inList());
-    methodVisitor.visitTypeInsn(Opcodes.CHECKCAST, "java/util/Collection");
-    methodVisitor
-        .visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/Collection", "iterator", "()Ljava/util/Iterator;");
-    methodVisitor.visitVarInsn(Opcodes.ASTORE, iVarIndex);
+    // Fused comprehensions run as one loop, starting from the stage that reads the source.
+    final List<Comprehension> stages = new ArrayList<Comprehension>();
+    for (Comprehension stage = comprehension; stage != null; stage = stage.upstream()) {
+      stages.add(0, stage);
+    }
+    final Comprehension source = stages.get(0);
 
     final Label start = new Label();
     final Label end = new Label();
-    // {
-    // if !iterator.hasNext() jump to end
-    methodVisitor.visitLabel(start);
-    methodVisitor.visitVarInsn(Opcodes.ALOAD, iVarIndex);
-    methodVisitor.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/Iterator", "hasNext", "()Z");
-    methodVisitor.visitJumpInsn(Opcodes.IFEQ, end);
-
-    // var = iterator.next()
-    methodVisitor.visitVarInsn(Opcodes.ALOAD, iVarIndex);
-    methodVisitor.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/Iterator", "next", "()Ljava/lang/Object;");
-    final int nextIndex = context.localVarIndex(context.newLocalVariable(comprehension.var()));
-    methodVisitor.visitVarInsn(Opcodes.ASTORE, nextIndex);
-
-    // if (filter_expression)
-    if (comprehension.filter() != null) {
-      AsmCodeEmitter.this.emit(comprehension.filter());
-      // Convert to primitive type.
-      methodVisitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z");
-      methodVisitor.visitJumpInsn(Opcodes.IFEQ, start);
+    int nextIndex;
+
+    // Whatever each stage's variable shadows, put back once the stage is done with it.
+    Integer shadowed = context.localVarIndex(source.var().name);
+
+    final Node inList = source.inList();
+    if (inList instanceof ListRange) {
+      // Count over the range directly, rather than building it and walking an iterator.
+      final ListRange range = (ListRange) inList;
+      final int counterIndex = context.localVarIndex(context.newLocalVariable());
+      final int toIndex = context.localVarIndex(context.newLocalVariable());
+
+      AsmCodeEmitter.this.emit(range.from);
+      methodVisitor.visitTypeInsn(Opcodes.CHECKCAST, "java/lang/Integer");
+      methodVisitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I");
+      methodVisitor.visitVarInsn(Opcodes.ISTORE, counterIndex);
+      AsmCodeEmitter.this.emit(range.to);
+      methodVisitor.visitTypeInsn(Opcodes.CHECKCAST, "java/lang/Integer");
+      methodVisitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I");
+      methodVisitor.visitVarInsn(Opcodes.ISTORE, toIndex);
+
+      // if counter > to jump to end, else skip the increment for the first element
+      final Label first = new Label();
+      methodVisitor.visitVarInsn(Opcodes.ILOAD, counterIndex);
+      methodVisitor.visitVarInsn(Opcodes.ILOAD, toIndex);
+      methodVisitor.visitJumpInsn(Opcodes.IF_ICMPGT, end);
+      methodVisitor.visitJumpInsn(Opcodes.GOTO, first);
+
+      // The loop stops on the last element rather than past it, which may not be an int. The
+      // counter is bumped at the top of the loop, so a filter can jump straight back to start.
+      // {
+      // if counter == to jump to end
+      methodVisitor.visitLabel(start);
+      methodVisitor.visitVarInsn(Opcodes.ILOAD, counterIndex);
+      methodVisitor.visitVarInsn(Opcodes.ILOAD, toIndex);
+      methodVisitor.visitJumpInsn(Opcodes.IF_ICMPEQ, end);
+      methodVisitor.visitIincInsn(counterIndex, 1);
+
+      // var = Integer.valueOf(counter)
+      methodVisitor.visitLabel(first);
+      methodVisitor.visitVarInsn(Opcodes.ILOAD, counterIndex);
+      methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
+      nextIndex = context.localVarIndex(context.newLocalVariable(source.var()));
+      methodVisitor.visitVarInsn(Opcodes.ASTORE, nextIndex);
+    } else {
+      // Now loop through the target variable.
+      final int iVarIndex = context.localVarIndex(context.newLocalVariable());
+
+      // iterator = Collections.iterator(collection), which also accepts maps and arrays.
+      AsmCodeEmitter.this.emit(inList);
+      methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, "loop/runtime/Collections", "iterator",
+          "(Ljava/lang/Object;)Ljava/util/Iterator;");
+      methodVisitor.visitVarInsn(Opcodes.ASTORE, iVarIndex);
+
+      // {
+      // if !iterator.hasNext() jump to end
+      methodVisitor.visitLabel(start);
+      methodVisitor.visitVarInsn(Opcodes.ALOAD, iVarIndex);
+      methodVisitor.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/Iterator", "hasNext", "()Z");
+      methodVisitor.visitJumpInsn(Opcodes.IFEQ, end);
+
+      // var = iterator.next()
+      methodVisitor.visitVarInsn(Opcodes.ALOAD, iVarIndex);
+      methodVisitor.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/Iterator", "next", "()Ljava/lang/Object;");
+      nextIndex = context.localVarIndex(context.newLocalVariable(source.var()));
+      methodVisitor.visitVarInsn(Opcodes.ASTORE, nextIndex);
     }
 
-    // Dump this value into the out list.
-    methodVisitor.visitVarInsn(Opcodes.ALOAD, outVarIndex);
-    methodVisitor.visitVarInsn(Opcodes.ALOAD, nextIndex);
+    for (int k = 0, stagesSize = stages.size(); k < stagesSize; k++) {
+      final Comprehension stage = stages.get(k);
 
-    // Transform the value first using the projection expression.
-    if (comprehension.projection() != null) {
-      methodVisitor.visitInsn(Opcodes.POP);
-      for (final Node projection : comprehension.projection()) {
-        AsmCodeEmitter.this.emit(projection);
+      // if (filter_expression)
+      if (stage.filter() != null) {
+        AsmCodeEmitter.this.emit(stage.filter());
+        // Convert to primitive type.
+        methodVisitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z");
+        methodVisitor.visitJumpInsn(Opcodes.IFEQ, start);
+      }
+
+      // Feed this stage's output straight into the next stage's variable. It is only bound
+      // now, so upstream expressions never see it, and this stage's variable goes out of scope
+      // so downstream ones don't either.
+      if (k < stagesSize - 1) {
+        AsmCodeEmitter.this.emitProjection(stage, nextIndex);
+        context.restoreLocalVariable(stage.var().name, shadowed);
+
+        final Variable var = stages.get(k + 1).var();
+        shadowed = context.localVarIndex(var.name);
+        nextIndex = context.localVarIndex(context.newLocalVariable(var));
+        methodVisitor.visitVarInsn(Opcodes.ASTORE, nextIndex);
       }
     }
 
+    // Dump the transformed value into the out list.
+    methodVisitor.visitVarInsn(Opcodes.ALOAD, outVarIndex);
+    AsmCodeEmitter.this.emitProjection(comprehension, nextIndex);
+
     methodVisitor.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/List", "add", "(Ljava/lang/Object;)Z");
 
     methodVisitor.visitInsn(Opcodes.POP); // Discard result of add()
@@ -1400,6 +2037,69 @@ public class AsmCodeEmitter implements Opcodes {
     methodVisitor.visitVarInsn(Opcodes.ALOAD, outVarIndex);
   };
 
+  private void emitProjection(final Comprehension comprehension, final int varIndex) {
+    if (comprehension.projection().isEmpty()) {
+      this.methodStack.peek().visitVarInsn(Opcodes.ALOAD, varIndex);
+      return;
+    }
+
+    for (final Node projection : comprehension.projection()) {
+      this.emit(projection);
+    }
+  }
+
+  /**
+   * Lazy comprehensions compile their filter and projection into closures over the loop
+   * variable, and hand them to a runtime sequence that applies them on demand.
+   */
+  private void emitLazyComprehension(final Comprehension comprehension) {
+    final MethodVisitor methodVisitor = this.methodStack.peek();
+
+    methodVisitor.visitTypeInsn(Opcodes.NEW, "loop/runtime/LazySequence");
+    methodVisitor.visitInsn(Opcodes.DUP);
+    this.emitComprehensionClosures(comprehension);
+    methodVisitor.visitMethodInsn(Opcodes.INVOKESPECIAL, "loop/runtime/LazySequence", "<init>",
+        "(Ljava/lang/Object;Lloop/runtime/Closure;Lloop/runtime/Closure;)V");
+  }
+
+  /**
+   * Parallel comprehensions hand the same closures to a fork/join task that splits the source.
+   */
+  private void emitParallelComprehension(final Comprehension comprehension) {
+    this.emitComprehensionClosures(comprehension);
+    this.methodStack.peek().visitMethodInsn(Opcodes.INVOKESTATIC, "loop/runtime/Parallel", "comprehend",
+        "(Ljava/lang/Object;Lloop/runtime/Closure;Lloop/runtime/Closure;)Ljava/lang/Object;");
+  }
+
+  // Pushes the source, filter closure and projection closure (either may be null).
+  private void emitComprehensionClosures(final Comprehension comprehension) {
+    final MethodVisitor methodVisitor = this.methodStack.peek();
+    this.emit(comprehension.inList());
+
+    if (comprehension.filter() != null) {
+      this.emit(this.comprehensionClosure(comprehension, Arrays.asList(comprehension.filter())));
+    } else {
+      methodVisitor.visitInsn(Opcodes.ACONST_NULL);
+    }
+
+    if (!comprehension.projection().isEmpty()) {
+      this.emit(this.comprehensionClosure(comprehension, comprehension.projection()));
+    } else {
+      methodVisitor.visitInsn(Opcodes.ACONST_NULL);
+    }
+  }
+
+  private FunctionDecl comprehensionClosure(final Comprehension comprehension, final List<Node> body) {
+    final FunctionDecl function = new FunctionDecl(null, null).sourceLocation(comprehension);
+    function.arguments().add(new ArgDeclList.Argument(comprehension.var().name, null));
+    function.setModule(this.javaClass);
+
+    final Computation expression = new Computation().sourceLocation(comprehension);
+    expression.children().addAll(body);
+    function.add(expression);
+    return function;
+  }
+
   private final Emitter patternRuleEmitter = node -> {
     final PatternRule rule = (PatternRule) node;
     final Context context = AsmCodeEmitter.this.functionStack.peek();
@@ -1494,18 +2194,43 @@ public class AsmCodeEmitter implements Opcodes {
 
   private void emitTypePatternRule(final MethodVisitor methodVisitor, final Label matchedClause,
       final Label endOfClause, final int argIndex, final TypeLiteral pattern) {
-    String typeName;
     final ClassDecl resolved = this.scope.resolve(pattern.name, true);
     if (resolved != null) {
-      typeName = resolved.name;
+      this.emitLoopTypeCheck(methodVisitor, resolved, endOfClause, argIndex);
     } else {
-      typeName = this.scope.resolveJavaType(pattern.name);
+      methodVisitor.visitVarInsn(Opcodes.ALOAD, argIndex);
+      methodVisitor.visitTypeInsn(Opcodes.INSTANCEOF, this.scope.resolveJavaType(pattern.name).replace('.', '/'));
+      methodVisitor.visitJumpInsn(Opcodes.IFEQ, endOfClause);
     }
+    methodVisitor.visitJumpInsn(Opcodes.GOTO, matchedClause);
+  }
 
+  /**
+   * Loop types have one canonical descriptor each, held by their module, so a type pattern is
+   * just a reference check against it. Jumps to endOfClause if the argument is not of the given
+   * type.
+   */
+  private void emitLoopTypeCheck(final MethodVisitor methodVisitor, final ClassDecl classDecl,
+      final Label endOfClause, final int argIndex) {
     methodVisitor.visitVarInsn(Opcodes.ALOAD, argIndex);
-    methodVisitor.visitTypeInsn(Opcodes.INSTANCEOF, typeName.replace('.', '/'));
+    methodVisitor.visitTypeInsn(Opcodes.INSTANCEOF, "loop/lang/LoopObject");
     methodVisitor.visitJumpInsn(Opcodes.IFEQ, endOfClause);
-    methodVisitor.visitJumpInsn(Opcodes.GOTO, matchedClause);
+
+    methodVisitor.visitVarInsn(Opcodes.ALOAD, argIndex);
+    methodVisitor.visitTypeInsn(Opcodes.CHECKCAST, "loop/lang/LoopObject");
+    methodVisitor.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "loop/lang/LoopObject", "getType",
+        "()Lloop/lang/LoopClass;");
+    this.emitTypeDescriptor(methodVisitor, classDecl);
+    methodVisitor.visitJumpInsn(Opcodes.IF_ACMPNE, endOfClause);
+  }
+
+  private void emitTypeDescriptor(final MethodVisitor methodVisitor, final ClassDecl classDecl) {
+    methodVisitor.visitFieldInsn(Opcodes.GETSTATIC, classDecl.moduleName, AsmCodeEmitter.typeField(classDecl),
+        "Lloop/lang/LoopClass;");
+  }
+
+  private static String typeField(final ClassDecl classDecl) {
+    return LoopClass.TYPE_FIELD_PREFIX + classDecl.name;
   }
 
   private void emitPatternClauses(final PatternRule rule) {
@@ -1555,32 +2280,23 @@ public class AsmCodeEmitter implements Opcodes {
     final MapPattern pattern = (MapPattern) rule.patterns.get(argIndex);
     final MethodVisitor methodVisitor = this.methodStack.peek();
 
-    boolean hasType = false;
     final List<Node> children = pattern.children();
     for (int i = 0, childrenSize = children.size(); i < childrenSize; i++) {
       final Node child = children.get(i);
       if (child instanceof TypeLiteral) {
-        hasType = true;
-
         final TypeLiteral typeLiteral = (TypeLiteral) child;
-        String typeName;
         final ClassDecl resolved = this.scope.resolve(typeLiteral.name, true);
         if (resolved != null) {
-          typeName = resolved.name;
+          this.emitLoopTypeCheck(methodVisitor, resolved, endOfClause, argIndex);
         } else {
-          typeName = this.scope.resolveJavaType(typeLiteral.name);
+          methodVisitor.visitVarInsn(Opcodes.ALOAD, argIndex);
+          methodVisitor.visitTypeInsn(Opcodes.INSTANCEOF,
+              this.scope.resolveJavaType(typeLiteral.name).replace('.', '/'));
+          methodVisitor.visitJumpInsn(Opcodes.IFEQ, endOfClause);
         }
-
-        methodVisitor.visitVarInsn(Opcodes.ALOAD, argIndex);
-        methodVisitor.visitTypeInsn(Opcodes.INSTANCEOF, typeName.replace('.', '/'));
         continue;
       }
 
-      // Guard the first destructuring pair if there is a type pattern.
-      if (hasType && i == 1) {
-        methodVisitor.visitJumpInsn(Opcodes.IFEQ, endOfClause);
-      }
-
       final DestructuringPair pair = (DestructuringPair) child;
 
       final int destructuredVar = context.localVarIndex(context.newLocalVariable((Variable) pair.lhs));
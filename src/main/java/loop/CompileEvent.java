@@ -0,0 +1,82 @@
+package loop;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * The JFR event for a module compile, spanning the whole compile with each phase's time as a
+ * field.
+ */
+@Name("loop.Compile")
+@Label("Loop Module Compile")
+@Category("Loop")
+@Description("Compilation of a loop module, by phase")
+class CompileEvent extends Event {
+  @Label("Module")
+  String module;
+
+  @Label("Tokenize") @Timespan
+  long tokenize;
+
+  @Label("Parse") @Timespan
+  long parse;
+
+  @Label("Reduce") @Timespan
+  long reduce;
+
+  @Label("Load Dependencies") @Timespan
+  long loadDeps;
+
+  @Label("Verify") @Timespan
+  long verify;
+
+  @Label("Emit") @Timespan
+  long emit;
+
+  @Label("Load Cached") @Timespan
+  long loadCached;
+
+  @Label("Tokens")
+  int tokens;
+
+  @Label("Nodes")
+  int nodes;
+
+  @Label("Bytecode Size") @DataAmount
+  int bytecodeSize;
+
+  static boolean enabled() {
+    return EventType.getEventType(CompileEvent.class).isEnabled();
+  }
+
+  static CompileEvent started() {
+    CompileEvent event = new CompileEvent();
+    event.begin();
+    return event;
+  }
+
+  static void commit(CompileEvent event, CompileStats stats) {
+    event.end();
+    if (!event.shouldCommit())
+      return;
+
+    event.module = stats.module();
+    event.tokenize = stats.nanos(CompileStats.Phase.TOKENIZE);
+    event.parse = stats.nanos(CompileStats.Phase.PARSE);
+    event.reduce = stats.nanos(CompileStats.Phase.REDUCE);
+    event.loadDeps = stats.nanos(CompileStats.Phase.LOAD_DEPS);
+    event.verify = stats.nanos(CompileStats.Phase.VERIFY);
+    event.emit = stats.nanos(CompileStats.Phase.EMIT);
+    event.loadCached = stats.nanos(CompileStats.Phase.LOAD_CACHED);
+    event.tokens = stats.tokens();
+    event.nodes = stats.nodes();
+    event.bytecodeSize = stats.bytecodeSize();
+    event.commit();
+  }
+}
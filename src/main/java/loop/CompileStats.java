@@ -0,0 +1,233 @@
+package loop;
+
+import loop.ast.Node;
+import loop.ast.PatternRule;
+import loop.ast.script.FunctionDecl;
+import loop.ast.script.Unit;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * What it cost to compile one module: wall time and bytes allocated in each compiler phase,
+ * along with the number of tokens, AST nodes and bytes of bytecode produced.
+ * <p/>
+ * Stats are only gathered when someone is listening: a {@link Listener}, -Dloop.compile.stats
+ * (which prints a line per module to stderr) or a JFR recording with the loop.Compile event
+ * enabled. Time spent loading dependencies includes compiling them, so {@link #selfNanos()}
+ * leaves it out; and since dependencies may be compiled on other threads, allocations made
+ * there don't count toward this module.
+ */
+public final class CompileStats {
+  public static final String STATS_PROPERTY = "loop.compile.stats";
+
+  public enum Phase {
+    TOKENIZE, PARSE, REDUCE, LOAD_DEPS, VERIFY, EMIT,
+
+    // Loading a module from the module cache (including its dependencies), in place of
+    // all of the above.
+    LOAD_CACHED
+  }
+
+  public interface Listener {
+    void compiled(CompileStats stats);
+  }
+
+  private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  private final String module;
+  private final long[] nanos = new long[Phase.values().length];
+  private final long[] allocated = new long[Phase.values().length];
+  private final com.sun.management.ThreadMXBean threads;
+  private final CompileEvent event;
+
+  private int tokens;
+  private int nodes;
+  private int bytecodeSize;
+
+  private long markNanos;
+  private long markAllocated;
+
+  private CompileStats(String module, CompileEvent event) {
+    this.module = module;
+    this.event = event;
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    this.threads = threads instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+        && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled()
+        ? (com.sun.management.ThreadMXBean) threads
+        : null;
+    if (this.threads == null)
+      Arrays.fill(allocated, -1);
+
+    mark();
+  }
+
+  public static void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public static void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Starts gathering stats for the given module, or returns null if nobody is listening.
+   */
+  static CompileStats start(String module) {
+    CompileEvent event = CompileEvent.enabled() ? CompileEvent.started() : null;
+    if (event == null && listeners.isEmpty() && System.getProperty(STATS_PROPERTY) == null)
+      return null;
+
+    return new CompileStats(module, event);
+  }
+
+  /**
+   * Ends the phase that started at the last mark (or at the start).
+   */
+  void phase(Phase phase) {
+    long nanos = System.nanoTime();
+    long allocated = allocatedBytes();
+
+    this.nanos[phase.ordinal()] += nanos - markNanos;
+    if (threads != null)
+      this.allocated[phase.ordinal()] += allocated - markAllocated;
+
+    this.markNanos = nanos;
+    this.markAllocated = allocated;
+  }
+
+  /**
+   * Starts the next phase from now, so that time since the last phase isn't counted.
+   */
+  void mark() {
+    this.markNanos = System.nanoTime();
+    this.markAllocated = allocatedBytes();
+  }
+
+  private long allocatedBytes() {
+    return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  void tokens(int tokens) {
+    this.tokens = tokens;
+  }
+
+  void nodes(Unit unit) {
+    int nodes = 0;
+    for (FunctionDecl function : unit.functions())
+      nodes += count(function);
+    for (Node node : unit.classes())
+      nodes += count(node);
+    if (unit.initializer() != null)
+      for (Node node : unit.initializer())
+        nodes += count(node);
+    this.nodes = nodes;
+  }
+
+  private static int count(Node node) {
+    if (node == null)
+      return 0;
+
+    int count = 1;
+    for (Node child : node.children())
+      count += count(child);
+    if (node instanceof FunctionDecl)
+      for (Node child : ((FunctionDecl) node).whereBlock())
+        count += count(child);
+    if (node instanceof PatternRule)
+      for (Node pattern : ((PatternRule) node).patterns)
+        count += count(pattern);
+    return count;
+  }
+
+  void bytecodeSize(int bytecodeSize) {
+    this.bytecodeSize = bytecodeSize;
+  }
+
+  /**
+   * Hands these stats to everyone listening.
+   */
+  void publish() {
+    for (Listener listener : listeners)
+      listener.compiled(this);
+
+    if (System.getProperty(STATS_PROPERTY) != null)
+      System.err.println(this);
+
+    if (event != null)
+      CompileEvent.commit(event, this);
+  }
+
+  public String module() {
+    return module;
+  }
+
+  public long nanos(Phase phase) {
+    return nanos[phase.ordinal()];
+  }
+
+  /**
+   * Bytes allocated by the compiling thread during the given phase, or -1 if the VM can't
+   * measure per-thread allocation.
+   */
+  public long allocatedBytes(Phase phase) {
+    return allocated[phase.ordinal()];
+  }
+
+  public long totalNanos() {
+    long total = 0;
+    for (long phase : nanos)
+      total += phase;
+    return total;
+  }
+
+  /**
+   * Time spent compiling this module, less the time spent loading its dependencies.
+   */
+  public long selfNanos() {
+    return totalNanos() - nanos(Phase.LOAD_DEPS);
+  }
+
+  public boolean cached() {
+    return nanos(Phase.LOAD_CACHED) > 0;
+  }
+
+  public int tokens() {
+    return tokens;
+  }
+
+  public int nodes() {
+    return nodes;
+  }
+
+  public int bytecodeSize() {
+    return bytecodeSize;
+  }
+
+  @Override public String toString() {
+    StringBuilder builder = new StringBuilder("loop: compiled ").append(module)
+        .append(" in ").append(millis(totalNanos()))
+        .append(" (self ").append(millis(selfNanos())).append(')');
+    for (Phase phase : Phase.values()) {
+      if (nanos(phase) == 0)
+        continue;
+
+      builder.append(", ").append(phase.name().toLowerCase()).append(' ').append(millis(nanos(phase)));
+      if (allocatedBytes(phase) >= 0)
+        builder.append('/').append(allocatedBytes(phase) / 1024).append("KB");
+    }
+    return builder.append("; ").append(tokens).append(" tokens, ")
+        .append(nodes).append(" nodes, ")
+        .append(bytecodeSize).append(" bytes of bytecode")
+        .toString();
+  }
+
+  private static String millis(long nanos) {
+    return String.format("%.2fms", nanos / 1000000.0);
+  }
+}
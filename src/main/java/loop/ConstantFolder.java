@@ -0,0 +1,454 @@
+package loop;
+
+import loop.ast.*;
+import loop.ast.script.ArgDeclList;
+import loop.ast.script.FunctionDecl;
+import loop.ast.script.RequireDecl;
+import loop.ast.script.Unit;
+import loop.runtime.Operations;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * Evaluates the parts of a reduced AST that depend only on literals, so that they are computed
+ * once at compile time rather than on every call:
+ * <ul>
+ *   <li>Operators over literals, e.g. 60 * 60 * 24 or 'Hello, ' + 'World'. Since operators
+ *   apply left to right, the constant lead of an expression is folded even if the rest of it
+ *   isn't, e.g. 60 * 60 * days.</li>
+ *   <li>if-then-else (and unless) over a constant condition, which becomes the branch taken.</li>
+ *   <li>Calls to pure prelude functions with literal arguments, e.g. to_integer('42').</li>
+ *   <li>Where-block variables bound to a constant, which are substituted into the body of their
+ *   function so that expressions using them can be folded in turn.</li>
+ * </ul>
+ * Operators are applied with the very same {@link Operations} the program would call at
+ * runtime, so folding never changes a result. Anything that would fail is left alone to fail
+ * at runtime, as it did before.
+ *
+ * @NotThreadSafe
+ */
+public class ConstantFolder {
+  private static final List<String> PRELUDE = Arrays.asList("prelude");
+
+  private final Unit scope;
+
+  // Functions being folded, innermost last, for resolving calls to local helper functions.
+  private final Stack<FunctionDecl> functions = new Stack<FunctionDecl>();
+
+  public ConstantFolder(Unit scope) {
+    this.scope = scope;
+  }
+
+  /**
+   * Folds the given node in place, returning it, or the node it folded down to.
+   */
+  public Node fold(Node node) {
+    node = foldNode(node);
+    if (node instanceof Call)
+      return foldCall((Call) node);
+    return node;
+  }
+
+  private Node foldNode(Node node) {
+    if (node instanceof FunctionDecl) {
+      foldFunction((FunctionDecl) node);
+      return node;
+    }
+
+    List<Node> children = node.children();
+    for (int i = 0, childrenSize = children.size(); i < childrenSize; i++) {
+      Node child = foldNode(children.get(i));
+
+      // Calls further down a chain or computation are postfix calls on what precedes them.
+      if (child instanceof Call && (i == 0 || !(node instanceof CallChain || node instanceof Computation)))
+        child = foldCall((Call) child);
+      children.set(i, child);
+    }
+
+    // Fold non-children sub-nodes.
+    if (node instanceof Call) {
+      if (((Call) node).args() != null)
+        foldNode(((Call) node).args());
+    } else if (node instanceof ConstructorCall) {
+      if (((ConstructorCall) node).args() != null)
+        foldNode(((ConstructorCall) node).args());
+    } else if (node instanceof IndexIntoList) {
+      IndexIntoList indexIntoList = (IndexIntoList) node;
+      if (indexIntoList.from() != null)
+        indexIntoList.from(fold(indexIntoList.from()));
+      if (indexIntoList.to() != null)
+        indexIntoList.to(fold(indexIntoList.to()));
+    } else if (node instanceof Comprehension) {
+      Comprehension comprehension = (Comprehension) node;
+      // Fused comprehensions have no list of their own, only the stage upstream of them.
+      if (comprehension.upstream() != null)
+        foldNode(comprehension.upstream());
+      else
+        comprehension.inList(fold(comprehension.inList()));
+      if (comprehension.filter() != null)
+        comprehension.filter(fold(comprehension.filter()));
+
+      List<Node> projection = comprehension.projection();
+      for (int i = 0; i < projection.size(); i++) {
+        projection.set(i, fold(projection.get(i)));
+      }
+    } else if (node instanceof PatternRule) {
+      PatternRule rule = (PatternRule) node;
+      if (rule.rhs != null)
+        rule.rhs = fold(rule.rhs);
+    } else if (node instanceof Guard) {
+      Guard guard = (Guard) node;
+      foldNode(guard.expression);
+      foldNode(guard.line);
+    }
+
+    if (node instanceof Computation)
+      return foldComputation((Computation) node);
+    if (node instanceof TernaryIfExpression || node instanceof TernaryUnlessExpression)
+      return foldTernary(node);
+    return node;
+  }
+
+  private void foldFunction(FunctionDecl functionDecl) {
+    functions.push(functionDecl);
+
+    List<Node> whereBlock = functionDecl.whereBlock();
+    for (int i = 0; i < whereBlock.size(); i++) {
+      Node helper = foldNode(whereBlock.get(i));
+      whereBlock.set(i, helper);
+
+      if (helper instanceof Assignment && !functionDecl.patternMatching)
+        propagate(functionDecl, i, (Assignment) helper);
+    }
+
+    List<Node> children = functionDecl.children();
+    for (int i = 0; i < children.size(); i++) {
+      children.set(i, fold(children.get(i)));
+    }
+
+    functions.pop();
+  }
+
+  /**
+   * Substitutes the value of a where-block variable bound to a constant wherever it is used
+   * by the rest of the where-block and the body of its function. Nested functions and
+   * comprehensions are left as they are, as they may bind a variable of the same name. So is
+   * the binding itself, which these still see.
+   */
+  private void propagate(FunctionDecl functionDecl, int index, Assignment assignment) {
+    if (!(assignment.lhs() instanceof Variable) || assignment.condition() != null)
+      return;
+
+    Node rhs = assignment.rhs();
+    while (rhs instanceof Computation && rhs.children().size() == 1) {
+      rhs = rhs.onlyChild();
+    }
+    // Big numbers are constructed wherever they appear, so they're better off bound just once.
+    Object value = valueOf(rhs);
+    if (value == NOT_CONSTANT || value instanceof BigInteger || value instanceof BigDecimal)
+      return;
+
+    String name = ((Variable) assignment.lhs()).name;
+    for (Node argument : functionDecl.arguments().children()) {
+      if (name.equals(((ArgDeclList.Argument) argument).name()))
+        return;
+    }
+
+    List<Node> whereBlock = functionDecl.whereBlock();
+    List<Node> rest = whereBlock.subList(index + 1, whereBlock.size());
+    if (rebinds(rest, name) || rebinds(functionDecl.children(), name))
+      return;
+
+    substitute(rest, name, rhs);
+    substitute(functionDecl.children(), name, rhs);
+  }
+
+  private static boolean rebinds(List<Node> nodes, String name) {
+    for (Node node : nodes) {
+      if (node instanceof Assignment) {
+        // Either rebinds the variable, or sets something on it, e.g. x.y = z.
+        Node lhs = ((Assignment) node).lhs();
+        if (isVariable(lhs, name) || !lhs.children().isEmpty() && isVariable(lhs.children().get(0), name))
+          return true;
+      }
+      if (rebinds(node.children(), name))
+        return true;
+    }
+    return false;
+  }
+
+  private static void substitute(List<Node> nodes, String name, Node constant) {
+    for (int i = 0; i < nodes.size(); i++) {
+      Node node = nodes.get(i);
+      if (node instanceof Variable && name.equals(((Variable) node).name)) {
+        nodes.set(i, copyOf(constant, node));
+        continue;
+      }
+
+      if (node instanceof FunctionDecl || node instanceof Comprehension)
+        continue;
+
+      if (node instanceof Assignment) {
+        substitute(node.children().subList(1, 2), name, constant);
+      } else {
+        substitute(node.children(), name, constant);
+
+        if (node instanceof Call && ((Call) node).args() != null)
+          substitute(((Call) node).args().children(), name, constant);
+        else if (node instanceof ConstructorCall && ((ConstructorCall) node).args() != null)
+          substitute(((ConstructorCall) node).args().children(), name, constant);
+        else if (node instanceof IndexIntoList) {
+          IndexIntoList indexIntoList = (IndexIntoList) node;
+          if (isVariable(indexIntoList.from(), name))
+            indexIntoList.from(copyOf(constant, indexIntoList.from()));
+          else if (indexIntoList.from() != null)
+            substitute(Arrays.asList(indexIntoList.from()), name, constant);
+          if (isVariable(indexIntoList.to(), name))
+            indexIntoList.to(copyOf(constant, indexIntoList.to()));
+          else if (indexIntoList.to() != null)
+            substitute(Arrays.asList(indexIntoList.to()), name, constant);
+        }
+      }
+    }
+  }
+
+  private static boolean isVariable(Node node, String name) {
+    return node instanceof Variable && name.equals(((Variable) node).name);
+  }
+
+  private static Node copyOf(Node constant, Node at) {
+    return literal(valueOf(constant)).sourceLocation(at);
+  }
+
+  /**
+   * Folds the leading run of constant operands of an expression.
+   */
+  private Node foldComputation(Computation computation) {
+    List<Node> children = computation.children();
+    if (children.size() < 2)
+      return computation;
+
+    Object value = valueOf(children.get(0));
+    if (value == NOT_CONSTANT)
+      return computation;
+
+    int folded = 0;
+    for (int i = 1; i < children.size(); i++) {
+      Node child = children.get(i);
+      if (!(child instanceof BinaryOp) || child.children().size() != 1)
+        break;
+
+      Object operand = valueOf(child.onlyChild());
+      if (operand == NOT_CONSTANT)
+        break;
+
+      Object result = apply((BinaryOp) child, value, operand);
+      if (result == NOT_CONSTANT)
+        break;
+
+      value = result;
+      folded = i;
+    }
+
+    if (folded == 0)
+      return computation;
+
+    children.subList(1, folded + 1).clear();
+    children.set(0, literal(value).sourceLocation(computation));
+    return children.size() == 1 ? children.get(0) : computation;
+  }
+
+  private static Object apply(BinaryOp operator, Object left, Object right) {
+    Object result;
+    try {
+      switch (operator.operator.kind) {
+        case PLUS:
+          result = Operations.plus(left, right);
+          break;
+        case MINUS:
+          result = Operations.minus(left, right);
+          break;
+        case STAR:
+          result = Operations.multiply(left, right);
+          break;
+        case DIVIDE:
+          result = Operations.divide(left, right);
+          break;
+        case MODULUS:
+          result = Operations.remainder(left, right);
+          break;
+        case LESSER:
+          result = Operations.lesserThan(left, right);
+          break;
+        case LEQ:
+          result = Operations.lesserThanOrEqual(left, right);
+          break;
+        case GREATER:
+          result = Operations.greaterThan(left, right);
+          break;
+        case GEQ:
+          result = Operations.greaterThanOrEqual(left, right);
+          break;
+        case EQUALS:
+          result = Operations.equal(left, right);
+          break;
+        case NOT:
+          result = Operations.notEqual(left, right);
+          break;
+        case AND:
+          result = Operations.and(left, right);
+          break;
+        case OR:
+          result = Operations.or(left, right);
+          break;
+        default:
+          return NOT_CONSTANT;
+      }
+    } catch (RuntimeException e) {
+      // e.g. a division by zero, or a type error. Leave these to happen at runtime.
+      return NOT_CONSTANT;
+    }
+
+    return isLiteral(result) ? result : NOT_CONSTANT;
+  }
+
+  private static Node foldTernary(Node ternary) {
+    Object condition = valueOf(ternary.children().get(0));
+    if (!(condition instanceof Boolean))
+      return ternary;
+
+    boolean taken = (Boolean) condition;
+    if (ternary instanceof TernaryUnlessExpression)
+      taken = !taken;
+
+    Node branch = ternary.children().get(taken ? 1 : 2);
+    while ((branch instanceof CallChain || branch instanceof Computation) && branch.children().size() == 1) {
+      branch = branch.onlyChild();
+    }
+    return branch;
+  }
+
+  /**
+   * Evaluates calls to side-effect free prelude functions on literals, keeping to exactly
+   * what they do in prelude.loop. Calls that could resolve to any other function are left
+   * alone.
+   */
+  private Node foldCall(Call call) {
+    CallArguments args = call.args();
+    if (call.namespace() != null || call.callJava() || call.isJavaStatic() || call.isPostfix()
+        || args == null || !args.isPositional() || args.children().size() != 1
+        || !importsPrelude() || isShadowed(call.name()))
+      return call;
+
+    Object arg = valueOf(args.children().get(0));
+    if (arg == NOT_CONSTANT)
+      return call;
+
+    Object result = NOT_CONSTANT;
+    if ("negate".equals(call.name())) {
+      result = Operations.notEqual(arg, true);
+    } else if ("to_integer".equals(call.name()) && arg instanceof String) {
+      try {
+        result = Integer.valueOf((String) arg);
+      } catch (NumberFormatException e) {
+        // Leave it to fail at runtime.
+      }
+    } else if ("embiggen".equals(call.name())) {
+      if (arg instanceof Integer || arg instanceof Long)
+        result = new BigInteger(arg.toString());
+      else if (arg instanceof Double)
+        result = new BigDecimal(arg.toString());
+      else if (arg instanceof String)
+        result = ((String) arg).toUpperCase();
+    }
+
+    return result == NOT_CONSTANT ? call : literal(result).sourceLocation(call);
+  }
+
+  private boolean importsPrelude() {
+    if (scope == null)
+      return false;
+
+    for (RequireDecl requireDecl : scope.imports()) {
+      if (PRELUDE.equals(requireDecl.moduleChain) && requireDecl.alias == null)
+        return true;
+    }
+    return false;
+  }
+
+  // Whether a function of this name is declared locally, which would be called instead.
+  private boolean isShadowed(String name) {
+    if (scope.resolveFunction(name, false) != null)
+      return true;
+
+    for (FunctionDecl function : functions) {
+      if (name.equals(function.name()))
+        return true;
+      for (Node helper : function.whereBlock()) {
+        if (helper instanceof FunctionDecl && name.equals(((FunctionDecl) helper).name()))
+          return true;
+        if (helper instanceof Assignment && isVariable(((Assignment) helper).lhs(), name))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  private static final Object NOT_CONSTANT = new Object();
+
+  /**
+   * The value of a literal node, as it is at runtime, or NOT_CONSTANT.
+   */
+  private static Object valueOf(Node node) {
+    if (node instanceof IntLiteral)
+      return ((IntLiteral) node).value;
+    if (node instanceof LongLiteral)
+      return ((LongLiteral) node).value;
+    if (node instanceof DoubleLiteral)
+      return ((DoubleLiteral) node).value;
+    if (node instanceof FloatLiteral)
+      return ((FloatLiteral) node).value;
+    if (node instanceof BigIntegerLiteral)
+      return new BigInteger(((BigIntegerLiteral) node).value);
+    if (node instanceof BigDecimalLiteral)
+      return new BigDecimal(((BigDecimalLiteral) node).value);
+    if (node instanceof BooleanLiteral)
+      return ((BooleanLiteral) node).value;
+    if (node instanceof StringLiteral) {
+      String value = ((StringLiteral) node).constantValue();
+      return value != null ? value : NOT_CONSTANT;
+    }
+    return NOT_CONSTANT;
+  }
+
+  private static boolean isLiteral(Object value) {
+    return value instanceof Integer || value instanceof Long || value instanceof Double
+        || value instanceof Float || value instanceof BigInteger || value instanceof BigDecimal
+        || value instanceof Boolean || value instanceof String;
+  }
+
+  private static Node literal(Object value) {
+    if (value instanceof Integer)
+      return new IntLiteral(value.toString());
+    if (value instanceof Long)
+      return new LongLiteral(value + "L");
+    if (value instanceof Double)
+      return new DoubleLiteral(value.toString());
+    if (value instanceof Float)
+      return new FloatLiteral(value + "F");
+    if (value instanceof BigInteger)
+      return new BigIntegerLiteral(value.toString());
+    if (value instanceof BigDecimal)
+      return new BigDecimalLiteral(value.toString());
+    if (value instanceof Boolean) {
+      boolean bool = (Boolean) value;
+      return new BooleanLiteral(new Token(String.valueOf(bool),
+          bool ? Token.Kind.TRUE : Token.Kind.FALSE, 0, 0));
+    }
+    return StringLiteral.of((String) value);
+  }
+}
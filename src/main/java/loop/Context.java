@@ -8,14 +8,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class Context {
-  private static final AtomicInteger localVariableNameSequence = new AtomicInteger();
-
   public final FunctionDecl thisFunction;
   final List<String> arguments = new ArrayList<String>();
   final Map<String, Integer> argumentIndex = new HashMap<String, Integer>();
@@ -27,6 +24,9 @@ public class Context {
   final Label startOfFunction = new Label();
   final Label endOfFunction = new Label();
 
+  // Synthetic locals only need to be unique within this function.
+  private int localVariableNameSequence;
+
   public Context(FunctionDecl thisFunction) {
     this.thisFunction = thisFunction;
   }
@@ -40,7 +40,7 @@ public class Context {
   }
 
   public String newLocalVariable() {
-    String var = "$__" + localVariableNameSequence.incrementAndGet();
+    String var = "$__" + ++localVariableNameSequence;
     int index = arguments.size() + localVars.size();
 
     localVars.add(var);
@@ -69,6 +69,17 @@ public class Context {
     return index;
   }
 
+  /**
+   * Puts back a binding that a newer local variable of the same name replaced, or unbinds
+   * the name if there was none.
+   */
+  public void restoreLocalVariable(String name, Integer index) {
+    if (index == null)
+      localVarIndex.remove(name);
+    else
+      localVarIndex.put(name, index);
+  }
+
   public void newFreeVariable(Variable freeVariable) {
     localVarIndex.put(freeVariable.name, arguments.size());
   }
@@ -7,14 +7,17 @@ import loop.ast.script.RequireDecl;
 import loop.ast.script.Unit;
 import loop.runtime.Scope;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.io.StringReader;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
@@ -46,7 +49,7 @@ public class Executable {
   private static final int MAX_BACKTRACK_LINES = 5;
 
   private volatile String source;      // Raw source code, discarded after compile.
-  private final List<String> lines;    // Loop source code lines (for error tracing).
+  private List<String> lines;          // Loop source code lines (for error tracing), split on demand.
 
   private Scope scope;
 
@@ -54,6 +57,14 @@ public class Executable {
   private Class<?> compiled;
   private boolean runMain;
   private final String file;
+  private String digest;               // Identifies this compiled module, when caching is enabled.
+
+  // Set by the ahead-of-time compiler, so that this module's compiled form is kept for packaging.
+  private boolean retainCompiledForm;
+  private ModuleCache.Entry compiledForm;
+
+  // Set for scripts that are compiled afresh each time they run, see Loop#run.
+  private boolean redefine;
 
   public Executable(Reader source) {
     this(source, null);
@@ -62,36 +73,63 @@ public class Executable {
   public Executable(Reader source, String file) {
     this.file = file;
 
-    List<String> lines = new ArrayList<String>();
-    StringBuilder builder;
+    // Read in one pass; the tokenizer deals with line breaks and blank lines itself.
+    StringBuilder builder = new StringBuilder();
     try {
-      BufferedReader br = new BufferedReader(source);
+      char[] buffer = new char[8192];
+      for (int read; (read = source.read(buffer)) != -1; )
+        builder.append(buffer, 0, read);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
 
-      builder = new StringBuilder();
-      while (br.ready()) {
-        String line = br.readLine();
-        if (line == null)
-          break;
+    // Every line, including the last, ends in a line break.
+    int length = builder.length();
+    if (length > 0 && builder.charAt(length - 1) != '\n' && builder.charAt(length - 1) != '\r')
+      builder.append('\n');
 
-        builder.append(line);
-        builder.append('\n');
+    this.source = builder.toString();
+  }
 
-        lines.add(line);
+  /**
+   * The source split into lines, which only error reporting needs.
+   */
+  private List<String> lines() {
+    if (lines == null) {
+      try {
+        lines = Util.toLines(new StringReader(source == null ? "" : source));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
       }
-    } catch (IOException e) {
-      throw new RuntimeException(e);
     }
+    return lines;
+  }
 
-    this.source = builder.toString();
-    this.lines = lines;
+  // Lets go of the source, keeping its lines if they are needed to report errors.
+  private void discardSource() {
+    if (hasErrors())
+      lines();
+    this.source = null;
   }
 
-  private Unit parse(String input) {
-    Parser parser = new Parser(new Tokenizer(input).tokenize());
+  private Unit parse(String input, CompileStats stats) {
+    List<Token> tokens = new Tokenizer(input).tokenize();
+    if (stats != null) {
+      stats.phase(CompileStats.Phase.TOKENIZE);
+      stats.tokens(tokens.size());
+    }
+
+    Parser parser = new Parser(tokens);
     Unit unit = null;
     try {
       unit = parser.script(file);
+      if (stats != null)
+        stats.phase(CompileStats.Phase.PARSE);
       unit.reduceAll();
+      if (stats != null) {
+        stats.phase(CompileStats.Phase.REDUCE);
+        stats.nodes(unit);
+      }
 
       this.scope = unit;
     } catch (RuntimeException e) {
@@ -111,6 +149,10 @@ public class Executable {
     return null == (this.staticErrors = new Verifier(unit).verify());
   }
 
+  public boolean verify(Unit unit, Collection<FunctionDecl> functions) {
+    return null == (this.staticErrors = new Verifier(unit).verify(functions));
+  }
+
   public String printStaticErrorsIfNecessary() {
     if (staticErrors != null)
       return printErrors(getStaticErrors());
@@ -119,6 +161,7 @@ public class Executable {
   }
 
   public void printErrorsTo(PrintStream out, List<AnnotatedError> errors) {
+    List<String> lines = lines();
     for (int i = 0, errorsSize = errors.size(); i < errorsSize; i++) {
       AnnotatedError error = errors.get(i);
       out.println((i + 1) + ") " + error.getMessage());
@@ -253,7 +296,7 @@ public class Executable {
     } else {
       // Attempt to force class initialization.
       try {
-        Class.forName(compiled.getName(), true, LoopClassLoader.CLASS_LOADER);
+        Class.forName(compiled.getName(), true, compiled.getClassLoader());
       } catch (ClassNotFoundException e) {
         throw new Error("Not supposed to happen. A previously loaded class disappeared.", e);
       }
@@ -262,28 +305,161 @@ public class Executable {
   }
 
   public void compile() {
-    Unit unit = parse(source);
+    CompileStats stats = CompileStats.start(file);
+    ModuleCache cache = ModuleCache.open(file, source);
+    if (cache != null && compileFromCache(cache)) {
+      if (stats != null) {
+        stats.phase(CompileStats.Phase.LOAD_CACHED);
+        stats.publish();
+      }
+      return;
+    }
+
+    if (stats != null)
+      stats.mark();
+    Unit unit = parse(source, stats);
     if (hasErrors())
       return;
 
+    // Lazily compiled classes need the unit to link their functions, so they aren't cached.
+    boolean lazy = Boolean.getBoolean(LazyFunctions.LAZY_PROPERTY) && !retainCompiledForm;
+    byte[] snapshot = !lazy && (cache != null || retainCompiledForm) ? ModuleCache.snapshot(unit) : null;
+
     // Recursively loads and compiles all dependency modules.
+    if (stats != null)
+      stats.mark();
     List<AnnotatedError> depErrors = unit.loadDeps(file);
     if (depErrors != null) {
       this.staticErrors = depErrors;
       return;
     }
+    if (stats != null)
+      stats.phase(CompileStats.Phase.LOAD_DEPS);
 
     // Run the verifier just before we emit code.
     if (!verify(unit))
       return;
+    if (stats != null)
+      stats.phase(CompileStats.Phase.VERIFY);
 
     AsmCodeEmitter codeEmitter = new AsmCodeEmitter(unit);
     this.scope = unit;
-    this.compiled = codeEmitter.write(unit);
+    if (redefine)
+      LoopClassLoader.defining().release(unit.name());
+    this.compiled = lazy ? codeEmitter.writeLazily(unit) : codeEmitter.write(unit);
+    if (stats != null) {
+      stats.phase(CompileStats.Phase.EMIT);
+      stats.bytecodeSize(codeEmitter.bytecode().length);
+    }
 
     requireJavaImports(unit.imports());
 
-    this.source = null;
+    if (snapshot != null && !hasErrors()) {
+      ModuleCache.Entry entry = ModuleCache.entry(snapshot, codeEmitter.bytecode(), unit.dependencies());
+      if (retainCompiledForm)
+        this.compiledForm = entry;
+
+      if (cache != null) {
+        this.digest = cache.digest(unit.dependencies());
+        cache.store(entry);
+      }
+    }
+
+    discardSource();
+    if (stats != null)
+      stats.publish();
+  }
+
+  /**
+   * Loads this module from the on-disk cache, if there is an entry that was compiled against
+   * the same deps that resolve now. Returns false (having changed nothing) otherwise.
+   */
+  private boolean compileFromCache(ModuleCache cache) {
+    ModuleCache.Entry entry = cache.load();
+    if (entry == null)
+      return false;
+
+    Unit unit = entry.unit();
+    if (unit == null || unit.loadDeps(file) != null || !entry.matches(unit.dependencies()))
+      return false;
+
+    define(unit, entry.bytecode());
+    this.digest = cache.digest(unit.dependencies());
+    if (retainCompiledForm)
+      this.compiledForm = entry;
+    ModuleCache.hits.incrementAndGet();
+    return true;
+  }
+
+  private void define(Unit unit, byte[] bytecode) {
+    LoopClassLoader classLoader = LoopClassLoader.defining();
+    if (redefine)
+      classLoader.release(unit.name());
+    classLoader.put(unit.name(), bytecode);
+    try {
+      this.compiled = classLoader.findClass(unit.name());
+    } catch (ClassNotFoundException e) {
+      throw new RuntimeException(e);
+    }
+    this.scope = unit;
+    requireJavaImports(unit.imports());
+
+    discardSource();
+  }
+
+  /**
+   * Loads a module compiled ahead of time (see {@link AheadOfTimeCompiler}) from the given
+   * class loader's resources, without parsing. Returns null if there is no such module.
+   */
+  public static Executable loadPrecompiled(String module, ClassLoader resources) {
+    InputStream metadata = resources.getResourceAsStream(ModuleCache.PRECOMPILED_DIR + module + ".lpc");
+    if (metadata == null)
+      return null;
+
+    ModuleCache.Entry entry;
+    try {
+      entry = ModuleCache.Entry.readFrom(metadata);
+    } finally {
+      closeQuietly(metadata);
+    }
+    Unit unit = entry == null ? null : entry.unit();
+    if (unit == null)
+      throw new RuntimeException("Precompiled module is corrupt or from an incompatible compiler: " + module);
+
+    InputStream classFile = resources.getResourceAsStream(ModuleCache.PRECOMPILED_CLASSES_DIR + unit.name() + ".class");
+    if (classFile == null)
+      throw new RuntimeException("Missing class file for precompiled module: " + module);
+
+    Executable executable = new Executable(new StringReader(""), module);
+    List<AnnotatedError> depErrors = unit.loadDeps(module);
+    if (depErrors != null) {
+      executable.staticErrors = depErrors;
+      closeQuietly(classFile);
+      return executable;
+    }
+
+    try {
+      executable.define(unit, Util.toBytes(classFile));
+    } finally {
+      closeQuietly(classFile);
+    }
+    return executable;
+  }
+
+  private static void closeQuietly(InputStream in) {
+    try {
+      in.close();
+    } catch (IOException e) {
+      // Nothing more to do.
+    }
+  }
+
+  ModuleCache.Entry compiledForm() {
+    return compiledForm;
+  }
+
+  String digest() {
+    return digest;
   }
 
   public void compileExpression(Unit scope) {
@@ -294,12 +470,35 @@ public class Executable {
 
     AsmCodeEmitter codeEmitter = new AsmCodeEmitter(scope);
     this.compiled = codeEmitter.write(scope);
-    this.source = null;
+    discardSource();
+
+    requireJavaImports(scope.requires());
+  }
+
+  /**
+   * Compiles just the given function of a scope (along with its closures) into a class of its
+   * own, as the shell does for each expression.
+   */
+  public void compileExpression(Unit scope, String javaClass, FunctionDecl function) {
+    this.scope = scope;
+
+    if (!verify(scope, Collections.singletonList(function)))
+      return;
+
+    AsmCodeEmitter codeEmitter = new AsmCodeEmitter(scope);
+    this.compiled = codeEmitter.write(scope, javaClass, Collections.singletonList(function),
+        Collections.<ClassDecl>emptyList());
+    discardSource();
 
     requireJavaImports(scope.requires());
   }
 
-  public void compileClassOrFunction(Unit scope) {
+  /**
+   * Parses a function or type and declares it in the given scope, returning it, or null if
+   * there were errors. Only the new function is verified, and it is up to the caller to compile
+   * it.
+   */
+  public Node compileClassOrFunction(Unit scope) {
     this.scope = scope;
     List<Token> tokens = new Tokenizer(source).tokenize();
     Parser parser = new Parser(tokens);
@@ -312,30 +511,39 @@ public class Executable {
     } else
       node = functionDecl;
 
+    if (!parser.getErrors().isEmpty())
+      this.staticErrors = parser.getErrors();
     if (hasErrors())
-      return;
+      return null;
 
     if (node == null) {
       this.staticErrors = Arrays.<AnnotatedError>asList(
           new StaticError("malformed function definition",
           tokens.get(tokens.size() - 1)));
-      return;
+      return null;
     }
 
-    new Reducer(node).reduce();
-
-    if (!verify(scope))
-      return;
-
-    // We don't need to actually compile this code, yet.
+    new ConstantFolder(scope).fold(new Reducer(node).reduce());
 
-    this.source = null;
-    requireJavaImports(scope.requires());
-
-    if (functionDecl != null)
+    if (functionDecl != null) {
+      // Declared before verifying so that it may call itself, and put back if it doesn't verify.
+      FunctionDecl previous = scope.resolveFunction(functionDecl.name(), false);
       scope.declare(functionDecl);
-    else
+      if (!verify(scope, Collections.singletonList(functionDecl))) {
+        if (previous != null) {
+          String module = previous.moduleName;
+          scope.declare(previous);
+          previous.setModule(module);
+        } else
+          scope.undeclare(functionDecl);
+        return null;
+      }
+    } else
       scope.declare(classDecl);
+
+    discardSource();
+    requireJavaImports(scope.requires());
+    return node;
   }
 
   private static String whitespace(int amount) {
@@ -350,6 +558,22 @@ public class Executable {
     return compiled;
   }
 
+  /**
+   * Keeps this module's compiled form once compiled, see {@link #compiledForm()}. Must be set
+   * before {@link #compile()}.
+   */
+  public void retainCompiledForm(boolean retainCompiledForm) {
+    this.retainCompiledForm = retainCompiledForm;
+  }
+
+  /**
+   * Replaces any class previously compiled under this module's name, rather than failing as a
+   * duplicate. Must be set before {@link #compile()}.
+   */
+  public void redefine(boolean redefine) {
+    this.redefine = redefine;
+  }
+
   public void runMain(boolean runMain) {
     if (runMain)
       this.runMain = runMain;
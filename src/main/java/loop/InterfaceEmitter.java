@@ -0,0 +1,319 @@
+package loop;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import loop.runtime.Caller;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates classes that implement Java interfaces with the functions of a compiled loop
+ * module, for {@link Loop#implement}. Each interface method is a direct INVOKESTATIC of the
+ * loop function with the same name and number of arguments, with primitive arguments boxed
+ * and primitive results unboxed. Methods the module doesn't implement throw.
+ * <p/>
+ * Those calls are bound to the generation of the loop class loader that was current when the
+ * implementation was made. Once a reload (see ModuleLoader#reload) publishes a newer one, they
+ * go through {@link Caller} by name instead, and so reach the reloaded module.
+ * <p/>
+ * A generated class is in a runtime package of its own, so it can't implement an interface that
+ * isn't public, nor one whose signatures use types that aren't. Those are implemented with a
+ * {@link Proxy} in the interface's own package instead, which calls the module reflectively,
+ * also by name.
+ */
+class InterfaceEmitter implements Opcodes {
+  private static final String GENERATION = "Lloop/LoopClassLoader;";
+  private static final AtomicInteger implementationSequence = new AtomicInteger();
+
+  private InterfaceEmitter() {
+  }
+
+  static <I> I implement(Class<I> iface, Executable module) {
+    LoopClassLoader generation = LoopClassLoader.CLASS_LOADER;
+    Class<?> moduleClass = module.getCompiled();
+    if (!isPublic(iface))
+      return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] { iface },
+          new Delegation(moduleClass.getName(), module.file())));
+
+    String name = "$impl$" + iface.getSimpleName() + '$' + implementationSequence.incrementAndGet();
+
+    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+    classWriter.visit(V11, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, name, null, "java/lang/Object",
+        new String[] { Type.getInternalName(iface) });
+
+    classWriter.visitField(ACC_PRIVATE + ACC_FINAL, "generation", GENERATION, null, null).visitEnd();
+
+    MethodVisitor constructor = classWriter.visitMethod(ACC_PUBLIC, "<init>", "(" + GENERATION + ")V",
+        null, null);
+    constructor.visitCode();
+    constructor.visitVarInsn(ALOAD, 0);
+    constructor.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+    constructor.visitVarInsn(ALOAD, 0);
+    constructor.visitVarInsn(ALOAD, 1);
+    constructor.visitFieldInsn(PUTFIELD, name, "generation", GENERATION);
+    constructor.visitInsn(RETURN);
+    constructor.visitMaxs(0, 0);
+    constructor.visitEnd();
+
+    for (Method method : iface.getMethods()) {
+      if (!Modifier.isAbstract(method.getModifiers()))
+        continue;
+
+      MethodVisitor methodVisitor = classWriter.visitMethod(ACC_PUBLIC, method.getName(),
+          Type.getMethodDescriptor(method), null, null);
+      methodVisitor.visitCode();
+
+      if (implementsMethod(moduleClass, method))
+        emitDelegation(methodVisitor, name, moduleClass, method);
+      else
+        emitNotImplemented(methodVisitor, method, module.file());
+
+      methodVisitor.visitMaxs(0, 0);
+      methodVisitor.visitEnd();
+    }
+    classWriter.visitEnd();
+
+    try {
+      return iface.cast(new Bridge(iface, generation).define(name, classWriter.toByteArray())
+          .getDeclaredConstructor(LoopClassLoader.class)
+          .newInstance(generation));
+    } catch (ReflectiveOperationException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static boolean isPublic(Class<?> iface) {
+    if (!Modifier.isPublic(iface.getModifiers()))
+      return false;
+
+    for (Method method : iface.getMethods()) {
+      if (!isPublicType(method.getReturnType()))
+        return false;
+      for (Class<?> parameterType : method.getParameterTypes()) {
+        if (!isPublicType(parameterType))
+          return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isPublicType(Class<?> type) {
+    while (type.isArray())
+      type = type.getComponentType();
+    return type.isPrimitive() || Modifier.isPublic(type.getModifiers());
+  }
+
+  private static boolean implementsMethod(Class<?> moduleClass, Method method) {
+    for (Method function : moduleClass.getMethods()) {
+      if (function.getName().equals(method.getName())
+          && function.getDeclaringClass() == moduleClass
+          && function.getParameterTypes().length == method.getParameterTypes().length)
+        return true;
+    }
+    return false;
+  }
+
+  private static void emitDelegation(MethodVisitor methodVisitor, String name, Class<?> moduleClass,
+                                     Method method) {
+    Class<?>[] parameterTypes = method.getParameterTypes();
+    Label reloaded = new Label();
+    Label called = new Label();
+
+    // if (LoopClassLoader.CLASS_LOADER != this.generation) jump to reloaded
+    methodVisitor.visitFieldInsn(GETSTATIC, "loop/LoopClassLoader", "CLASS_LOADER", GENERATION);
+    methodVisitor.visitVarInsn(ALOAD, 0);
+    methodVisitor.visitFieldInsn(GETFIELD, name, "generation", GENERATION);
+    methodVisitor.visitJumpInsn(IF_ACMPNE, reloaded);
+
+    StringBuilder descriptor = new StringBuilder("(");
+    int local = 1;
+    for (Class<?> parameterType : parameterTypes) {
+      Type type = Type.getType(parameterType);
+      methodVisitor.visitVarInsn(type.getOpcode(ILOAD), local);
+      local += type.getSize();
+
+      if (parameterType.isPrimitive())
+        box(methodVisitor, type);
+      descriptor.append("Ljava/lang/Object;");
+    }
+    descriptor.append(")Ljava/lang/Object;");
+
+    methodVisitor.visitMethodInsn(INVOKESTATIC, Type.getInternalName(moduleClass), method.getName(),
+        descriptor.toString(), false);
+    methodVisitor.visitJumpInsn(GOTO, called);
+
+    // Caller.callStatic(moduleClass, function, new Object[] { args... })
+    methodVisitor.visitLabel(reloaded);
+    methodVisitor.visitLdcInsn(moduleClass.getName());
+    methodVisitor.visitLdcInsn(method.getName());
+    methodVisitor.visitLdcInsn(parameterTypes.length);
+    methodVisitor.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+    local = 1;
+    for (int i = 0; i < parameterTypes.length; i++) {
+      Type type = Type.getType(parameterTypes[i]);
+      methodVisitor.visitInsn(DUP);
+      methodVisitor.visitLdcInsn(i);
+      methodVisitor.visitVarInsn(type.getOpcode(ILOAD), local);
+      local += type.getSize();
+
+      if (parameterTypes[i].isPrimitive())
+        box(methodVisitor, type);
+      methodVisitor.visitInsn(AASTORE);
+    }
+    methodVisitor.visitMethodInsn(INVOKESTATIC, "loop/runtime/Caller", "callStatic",
+        "(Ljava/lang/String;Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/Object;", false);
+
+    methodVisitor.visitLabel(called);
+
+    Class<?> returnType = method.getReturnType();
+    if (returnType == void.class) {
+      methodVisitor.visitInsn(POP);
+      methodVisitor.visitInsn(RETURN);
+      return;
+    }
+
+    Type type = Type.getType(returnType);
+    if (returnType.isPrimitive())
+      unbox(methodVisitor, type);
+    else if (returnType != Object.class)
+      methodVisitor.visitTypeInsn(CHECKCAST, type.getInternalName());
+    methodVisitor.visitInsn(type.getOpcode(IRETURN));
+  }
+
+  private static void box(MethodVisitor methodVisitor, Type type) {
+    String wrapper = wrapperOf(type);
+    methodVisitor.visitMethodInsn(INVOKESTATIC, wrapper, "valueOf",
+        "(" + type.getDescriptor() + ")L" + wrapper + ";", false);
+  }
+
+  // Numbers are converted, so that e.g. a loop integer can be returned as a double.
+  private static void unbox(MethodVisitor methodVisitor, Type type) {
+    switch (type.getSort()) {
+      case Type.BOOLEAN:
+        methodVisitor.visitTypeInsn(CHECKCAST, "java/lang/Boolean");
+        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z", false);
+        break;
+      case Type.CHAR:
+        methodVisitor.visitTypeInsn(CHECKCAST, "java/lang/Character");
+        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Character", "charValue", "()C", false);
+        break;
+      default:
+        methodVisitor.visitTypeInsn(CHECKCAST, "java/lang/Number");
+        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Number", type.getClassName() + "Value",
+            "()" + type.getDescriptor(), false);
+    }
+  }
+
+  private static String wrapperOf(Type type) {
+    switch (type.getSort()) {
+      case Type.BOOLEAN: return "java/lang/Boolean";
+      case Type.CHAR: return "java/lang/Character";
+      case Type.BYTE: return "java/lang/Byte";
+      case Type.SHORT: return "java/lang/Short";
+      case Type.INT: return "java/lang/Integer";
+      case Type.LONG: return "java/lang/Long";
+      case Type.FLOAT: return "java/lang/Float";
+      default: return "java/lang/Double";
+    }
+  }
+
+  private static void emitNotImplemented(MethodVisitor methodVisitor, Method method, String file) {
+    methodVisitor.visitTypeInsn(NEW, "java/lang/RuntimeException");
+    methodVisitor.visitInsn(DUP);
+    methodVisitor.visitLdcInsn(method.toGenericString() + " is not implemented on " + file);
+    methodVisitor.visitMethodInsn(INVOKESPECIAL, "java/lang/RuntimeException", "<init>",
+        "(Ljava/lang/String;)V", false);
+    methodVisitor.visitInsn(ATHROW);
+  }
+
+  // Calls module functions by name and number of arguments, for interfaces that can't be
+  // implemented by a generated class. The module is looked up in the current generation.
+  private static class Delegation implements InvocationHandler {
+    private final String moduleClass;
+    private final String file;
+
+    private Delegation(String moduleClass, String file) {
+      this.moduleClass = moduleClass;
+      this.file = file;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        if ("equals".equals(method.getName()))
+          return proxy == args[0];
+        if ("hashCode".equals(method.getName()))
+          return System.identityHashCode(proxy);
+        return proxy.getClass().getInterfaces()[0].getName() + " implemented by " + file + '@'
+            + Integer.toHexString(System.identityHashCode(proxy));
+      }
+
+      Class<?>[] argTypes = new Class<?>[args == null ? 0 : args.length];
+      Arrays.fill(argTypes, Object.class);
+
+      Method function;
+      try {
+        function = LoopClassLoader.CLASS_LOADER.loadClass(moduleClass)
+            .getMethod(method.getName(), argTypes);
+      } catch (NoSuchMethodException e) {
+        throw new RuntimeException(method.toGenericString() + " is not implemented on " + file);
+      }
+
+      Object result;
+      try {
+        result = function.invoke(null, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      return convert(result, method.getReturnType());
+    }
+
+    // Numbers are converted, as the generated classes do.
+    private static Object convert(Object result, Class<?> type) {
+      if (!type.isPrimitive() || !(result instanceof Number))
+        return result;
+
+      Number number = (Number) result;
+      if (type == int.class) return number.intValue();
+      if (type == long.class) return number.longValue();
+      if (type == double.class) return number.doubleValue();
+      if (type == float.class) return number.floatValue();
+      if (type == short.class) return number.shortValue();
+      if (type == byte.class) return number.byteValue();
+      return result;
+    }
+  }
+
+  // Sees loop classes through the loop class loader, and the interface (along with the types
+  // in its signatures) through the interface's own class loader.
+  private static class Bridge extends ClassLoader {
+    private final ClassLoader interfaceLoader;
+
+    private Bridge(Class<?> iface, LoopClassLoader generation) {
+      super(generation);
+      this.interfaceLoader = iface.getClassLoader();
+    }
+
+    private Class<?> define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      if (interfaceLoader == null)
+        throw new ClassNotFoundException(name);
+
+      return interfaceLoader.loadClass(name);
+    }
+  }
+}
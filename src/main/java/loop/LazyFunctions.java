@@ -0,0 +1,63 @@
+package loop;
+
+import loop.ast.script.FunctionDecl;
+import loop.ast.script.Unit;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Compiles the functions of a module as they're first called, rather than all up front. This is
+ * enabled with -Dloop.lazy, and saves startup time for programs that require large modules
+ * (such as the prelude) but call only a few of their functions.
+ * <p/>
+ * A lazily compiled module's class holds a stub for each function, which makes an invokedynamic
+ * call to the same name. The first time a stub runs, its call site is linked here: the function
+ * is compiled into a class of its own, and the site bound directly to it. Modules are parsed and
+ * verified as usual, so errors are still reported when they're compiled, and their parsed form
+ * is kept for linking by the class loader generation that defines them. Releasing or reloading
+ * a module drops its parsed form along with the classes of its function bodies.
+ */
+public class LazyFunctions {
+  public static final String LAZY_PROPERTY = "loop.lazy";
+  static final String BODY_CLASS_SEPARATOR = "$lazy$";
+
+  /**
+   * Bootstrap method of the stubs. The functions of a module are linked one at a time, so that
+   * a function is compiled once even if it's first called on several threads at the same time.
+   */
+  public static CallSite link(MethodHandles.Lookup caller, String name, MethodType type)
+      throws ReflectiveOperationException {
+    Class<?> module = caller.lookupClass();
+
+    // Each loop class is defined by a loader of its own, under the routing class loader. That
+    // keeps the parsed module until the module is released or reloaded.
+    LoopClassLoader classLoader = (LoopClassLoader) module.getClassLoader().getParent();
+    Unit unit = classLoader.lazyUnits.get(module.getName());
+    FunctionDecl function = unit == null ? null : function(unit, name);
+    if (function == null)
+      throw new RuntimeException("No lazily compiled function " + name + " in " + module.getName());
+
+    String javaClass = module.getName() + BODY_CLASS_SEPARATOR + name;
+    Class<?> body;
+    synchronized (unit) {
+      body = classLoader.isDefined(javaClass)
+          ? classLoader.loadClass(javaClass)
+          : new AsmCodeEmitter(unit).writeLazyBody(unit, javaClass, function, classLoader);
+    }
+
+    // Private functions aren't public in their class either.
+    return new ConstantCallSite(MethodHandles.privateLookupIn(body, MethodHandles.lookup())
+        .findStatic(body, name, type));
+  }
+
+  private static FunctionDecl function(Unit unit, String name) {
+    for (FunctionDecl function : unit.functions()) {
+      if (name.equals(AsmCodeEmitter.normalizeMethodName(function.scopedName())))
+        return function;
+    }
+    return null;
+  }
+}
@@ -1,10 +1,12 @@
 package loop;
 
+import loop.ast.script.ModuleLoader;
+import loop.ast.script.ModuleWatcher;
 import loop.ast.script.Unit;
-import loop.runtime.LoopInvocationHandler;
 
 import java.io.*;
-import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Converts parsed, type-solved, emitted code to Java classes.
@@ -16,8 +18,15 @@ public class Loop {
       LoopShell.shell();
     }
 
+    if (Boolean.getBoolean(ModuleWatcher.WATCH_PROPERTY))
+      ModuleWatcher.start();
+    if (System.getProperty(Profiler.PROFILE_PROPERTY) != null)
+      Profiler.startForRun(new File(System.getProperty(Profiler.PROFILE_PROPERTY)));
+
     try {
-      if (args.length > 1)
+      if (!new File(args[0]).exists() && ModuleCache.isPrecompiled(args[0]))
+        runModule(args[0], args.length > 1 ? args : null);
+      else if (args.length > 1)
         run(args[0], args);
       else
         run(args[0]);
@@ -54,6 +63,26 @@ public class Loop {
     return safeEval(unit, args);
   }
 
+  /**
+   * Executes a loop module found on the module search path, such as one compiled ahead of
+   * time by loopc, and returns the result of evaluating main()--which is optional.
+   */
+  public static Object runModule(String module, String[] args) {
+    List<Executable> executables = ModuleLoader.INSTANCE.loadAndCompile(Arrays.asList(module.split("/")));
+    if (executables == null || executables.isEmpty())
+      throw new LoopExecutionException("No such module: " + module);
+
+    Executable unit = executables.get(0);
+    if (unit.hasErrors()) {
+      String errors = unit.printStaticErrorsIfNecessary();
+
+      throw new LoopCompileException("Syntax errors exist:\n" + errors, unit);
+    }
+    unit.runMain(true);
+
+    return safeEval(unit, args);
+  }
+
   public static Object run(String name, Reader reader) {
     Executable unit = loopCompile(name, reader);
     unit.runMain(true);
@@ -114,6 +143,22 @@ public class Loop {
     return loopCompile(name, reader).getCompiled();
   }
 
+  /**
+   * Compiles the specified file into a handle whose functions can be called repeatedly, from
+   * many threads. See {@link LoopScript}.
+   */
+  public static LoopScript compileScript(String file) {
+    return new LoopScript(new File(file).getName(), compile(file));
+  }
+
+  /**
+   * Compiles the given script (fed by reader) into a handle whose functions can be called
+   * repeatedly, from many threads. See {@link LoopScript}.
+   */
+  public static LoopScript compileScript(String name, Reader reader) {
+    return new LoopScript(name, compile(name, reader));
+  }
+
   /**
    * Returns an executable that represents the compiled form of the Loop program.
    * <p/>
@@ -129,8 +174,11 @@ public class Loop {
     }
   }
 
+  // Scripts may be compiled and run over and over (by a rule engine, say), each time replacing
+  // the class compiled the time before, so that it can be unloaded.
   private static Executable loopCompile(String name, Reader reader) {
     Executable executable = new Executable(reader, name);
+    executable.redefine(true);
     executable.compile();
     if (executable.hasErrors()) {
       String errors = executable.printStaticErrorsIfNecessary();
@@ -146,20 +194,25 @@ public class Loop {
 
   /**
    * Returns an implementation of the given Java interface that
-   * is backed by the specified Loop module. The generated Java class is loaded into
-   * the common runtime Loop class loader. See {@link LoopClassLoader} for details.
+   * is backed by the specified Loop module. Each interface method calls straight into the
+   * module function of the same name and arity, through a class generated for the purpose.
+   * Methods that the module does not implement throw when called.
    *
    * @param iface  A Java interface that you wish to implement using Loop
    * @param module The name of a Loop module minus the '.loop' extension. This name may
    *               contain a path-prefix from the current directory.
    */
-  @SuppressWarnings("unchecked")
   public static <I> I implement(Class<I> iface, String module) {
     if (!iface.isInterface()) {
       throw new RuntimeException(iface + " is not an interface ");
     }
 
-    return (I) Proxy.newProxyInstance(LoopClassLoader.CLASS_LOADER, new Class[]{iface},
-        new LoopInvocationHandler(iface, module));
+    String name = module != null ? module : iface.getSimpleName();
+    List<Executable> executables = ModuleLoader.INSTANCE.loadAndCompile(Arrays.asList(name));
+    if (executables == null || executables.isEmpty()) {
+      throw new RuntimeException("Unable to find/compile: " + name + ".loop");
+    }
+
+    return InterfaceEmitter.implement(iface, executables.get(0));
   }
 }
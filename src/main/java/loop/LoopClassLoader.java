@@ -1,19 +1,51 @@
 package loop;
 
+import loop.ast.script.Unit;
+import loop.runtime.Caller;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Routes loop class names to their current definitions. Each class is defined by a loader of
+ * its own, so that a class is unloaded once it is released (or redefined) and nothing else
+ * refers to it. Long-running programs that keep compiling new scripts, such as rule engines
+ * or the shell, therefore don't accumulate dead code.
+ * <p/>
+ * These aren't hidden classes (see Lookup#defineHiddenClass) because loop classes refer to one
+ * another by name, e.g. a constructor call reads the type field of the module that declares the
+ * type, and a hidden class can't be named from the constant pool of another class.
+ *
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class LoopClassLoader extends ClassLoader {
   final ConcurrentMap<String, byte[]> rawClasses = new ConcurrentHashMap<String, byte[]>();
   final ConcurrentMap<String, Class<?>> loaded = new ConcurrentHashMap<String, Class<?>>();
+  final ConcurrentMap<String, Integer> codeSizes = new ConcurrentHashMap<String, Integer>();
+
+  // Parsed modules whose functions are compiled as they're first called, see LazyFunctions.
+  final ConcurrentMap<String, Unit> lazyUnits = new ConcurrentHashMap<String, Unit>();
   public static volatile LoopClassLoader CLASS_LOADER = new LoopClassLoader();
 
+  // A generation being built by a reload on this thread, not yet visible to running code.
+  private static final ThreadLocal<LoopClassLoader> staged = new ThreadLocal<LoopClassLoader>();
+
+  static {
+    ClassLoader.registerAsParallelCapable();
+  }
+
+  /**
+   * Adds a class to be defined on first use. To redefine a class, release it first (as the
+   * shell does), or compile it into a new generation (as reloading does).
+   */
   public void put(final String javaClass, final byte[] bytes) {
-    if (null != this.rawClasses.putIfAbsent(javaClass, bytes)) {
-      throw new RuntimeException("Illegal attempt to define duplicate class");
+    synchronized (this.getClassLoadingLock(javaClass)) {
+      if (this.loaded.containsKey(javaClass) || null != this.rawClasses.putIfAbsent(javaClass, bytes)) {
+        throw new RuntimeException("Illegal attempt to define duplicate class " + javaClass);
+      }
     }
   }
 
@@ -21,29 +53,167 @@ public class LoopClassLoader extends ClassLoader {
     return this.loaded.containsKey(javaClass);
   }
 
+  boolean isDefined(final String javaClass) {
+    return this.loaded.containsKey(javaClass) || this.rawClasses.containsKey(javaClass);
+  }
+
+  /**
+   * Forgets the given class, so that it can be unloaded once nothing else refers to it. The
+   * bodies of its lazily compiled functions go with it.
+   */
+  public void release(final String javaClass) {
+    final Set<String> released = this.forget(javaClass);
+    Caller.evict(released);
+  }
+
+  /**
+   * Releases the given class, unless its name has since been redefined by another class.
+   */
+  public void release(final Class<?> javaClass) {
+    final String name = javaClass.getName();
+    synchronized (this.getClassLoadingLock(name)) {
+      if (this.loaded.get(name) == javaClass) {
+        this.release(name);
+      }
+    }
+  }
+
+  // Forgets a class and its lazily compiled function bodies, returning their names.
+  private Set<String> forget(final String javaClass) {
+    final Set<String> forgotten = new HashSet<String>();
+    forgotten.add(javaClass);
+    if (this.lazyUnits.remove(javaClass) != null) {
+      final String bodies = javaClass + LazyFunctions.BODY_CLASS_SEPARATOR;
+      for (final String name : this.loaded.keySet()) {
+        if (name.startsWith(bodies)) {
+          forgotten.add(name);
+        }
+      }
+      for (final String name : this.rawClasses.keySet()) {
+        if (name.startsWith(bodies)) {
+          forgotten.add(name);
+        }
+      }
+    }
+
+    for (final String name : forgotten) {
+      synchronized (this.getClassLoadingLock(name)) {
+        this.rawClasses.remove(name);
+        this.codeSizes.remove(name);
+        this.loaded.remove(name);
+      }
+    }
+    return forgotten;
+  }
+
+  /**
+   * The total size, in bytes of class file, of the loop classes currently defined.
+   */
+  public long loadedCodeSize() {
+    long size = 0;
+    for (final Integer classSize : this.codeSizes.values()) {
+      size += classSize;
+    }
+    return size;
+  }
+
+  /**
+   * Looks up loop classes before delegating to the parent. Use this rather than
+   * Class.forName(), which may keep resolving a name to the class it found first.
+   */
   @Override
-  protected Class<?> findClass(final String name) throws ClassNotFoundException {
-    Class<?> clazz = this.loaded.get(name);
-    if (null != clazz) {
-      return clazz;
+  protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+    synchronized (this.getClassLoadingLock(name)) {
+      final Class<?> clazz = this.loaded.get(name);
+      if (clazz != null) {
+        return clazz;
+      }
+      if (this.rawClasses.containsKey(name)) {
+        return this.findClass(name);
+      }
+      return super.loadClass(name, resolve);
     }
+  }
+
+  @Override
+  protected Class<?> findClass(final String name) throws ClassNotFoundException {
+    synchronized (this.getClassLoadingLock(name)) {
+      Class<?> clazz = this.loaded.get(name);
+      if (null != clazz) {
+        return clazz;
+      }
 
-    final byte[] bytes = this.rawClasses.remove(name);
-    if (bytes != null) {
+      final byte[] bytes = this.rawClasses.get(name);
+      if (bytes != null) {
+        clazz = this.defineClass(name, bytes);
 
-      // We don't define loop classes in the parent class loader.
-      clazz = this.defineClass(name, bytes);
+        if (this.loaded.putIfAbsent(name, clazz) != null) {
+          throw new RuntimeException("Attempted duplicate class definition for " + name);
+        }
+        this.codeSizes.put(name, bytes.length);
 
-      if (this.loaded.putIfAbsent(name, clazz) != null) {
-        throw new RuntimeException("Attempted duplicate class definition for " + name);
+        // Only now, so that a concurrent lookup finds either the bytes or the class.
+        this.rawClasses.remove(name);
+        return clazz;
       }
-      return clazz;
+      return super.findClass(name);
     }
-    return super.findClass(name);
   }
 
   public Class<?> defineClass(final String name, final byte[] b) {
-    return this.defineClass(name, b, 0, b.length);
+    // We don't define loop classes in this loader, nor in its parent.
+    return new Definition(this).define(name, b);
+  }
+
+  // Defines exactly one class, resolving everything else through the routing loader.
+  private static class Definition extends ClassLoader {
+    private Definition(final LoopClassLoader parent) {
+      super(parent);
+    }
+
+    private Class<?> define(final String name, final byte[] b) {
+      return this.defineClass(name, b, 0, b.length);
+    }
+  }
+
+  /**
+   * A new generation of this class loader, sharing every class defined so far except the
+   * named ones, which are left free to be redefined.
+   */
+  public LoopClassLoader nextGeneration(final Collection<String> redefined) {
+    final LoopClassLoader next = new LoopClassLoader();
+    next.loaded.putAll(this.loaded);
+    next.rawClasses.putAll(this.rawClasses);
+    next.codeSizes.putAll(this.codeSizes);
+    next.lazyUnits.putAll(this.lazyUnits);
+    for (final String javaClass : redefined) {
+      next.forget(javaClass);
+    }
+    return next;
+  }
+
+  /**
+   * The class loader that newly compiled classes are defined in: a staged generation if this
+   * thread is building one, otherwise the current one.
+   */
+  public static LoopClassLoader defining() {
+    final LoopClassLoader generation = LoopClassLoader.staged.get();
+    return generation != null ? generation : LoopClassLoader.CLASS_LOADER;
+  }
+
+  public static void stage(final LoopClassLoader generation) {
+    if (generation == null) {
+      LoopClassLoader.staged.remove();
+    } else {
+      LoopClassLoader.staged.set(generation);
+    }
+  }
+
+  /**
+   * Atomically makes the given generation current, for all subsequent calls into loop code.
+   */
+  public static void publish(final LoopClassLoader generation) {
+    LoopClassLoader.CLASS_LOADER = generation;
   }
 
   public static void reset() {
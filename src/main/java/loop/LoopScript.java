@@ -0,0 +1,133 @@
+package loop;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A compiled loop script, for embedding: compile once with {@link Loop#compileScript}, then
+ * call its functions as often as needed, from any number of threads.
+ * <pre>
+ *   LoopScript rules = Loop.compileScript("rules", reader);
+ *   Boolean approved = rules.invoke(Boolean.class, "approve", order, customer);
+ * </pre>
+ * Functions are bound to method handles on first use, so later calls skip reflective lookup
+ * entirely. Callers that call a function often can instead fetch a typed handle once, with
+ * {@link #function(String, MethodType)}, which checks the function's arity up front:
+ * <pre>
+ *   MethodHandle approve = rules.function("approve",
+ *       MethodType.methodType(boolean.class, Order.class, Customer.class));
+ *   boolean approved = (boolean) approve.invokeExact(order, customer);
+ * </pre>
+ * Only a script's public functions can be called.
+ */
+public final class LoopScript implements AutoCloseable {
+  private final String name;
+  private final Class<?> compiled;
+
+  // Spread handles, of type (Object[])Object, keyed by function name and arity.
+  private final ConcurrentMap<String, MethodHandle> spreaders = new ConcurrentHashMap<String, MethodHandle>();
+
+  LoopScript(String name, Class<?> compiled) {
+    this.name = name;
+    this.compiled = compiled;
+  }
+
+  public String name() {
+    return name;
+  }
+
+  /**
+   * Calls the named function with the given arguments and returns its result.
+   */
+  public Object invoke(String function, Object... args) {
+    MethodHandle spreader = spreaders.get(function + '/' + args.length);
+    if (spreader == null) {
+      MethodHandle handle = function(function, args.length);
+      spreader = handle.asSpreader(Object[].class, args.length);
+      spreaders.putIfAbsent(function + '/' + args.length, spreader);
+    }
+
+    try {
+      return (Object) spreader.invokeExact(args);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable throwable) {
+      throw new RuntimeException(throwable);
+    }
+  }
+
+  /**
+   * Calls the named function and casts its result to the given type, boxing primitive types.
+   */
+  public <T> T invoke(Class<T> resultType, String function, Object... args) {
+    @SuppressWarnings("unchecked")
+    Class<T> boxed = (Class<T>) MethodType.methodType(resultType).wrap().returnType();
+
+    return boxed.cast(invoke(function, args));
+  }
+
+  /**
+   * A method handle of type (Object, ...)Object for the named function, for callers that want
+   * to bind it themselves, e.g. with asType() to (String, int)boolean, or with bindTo().
+   */
+  public MethodHandle function(String function, int arity) {
+    for (Method method : compiled.getMethods()) {
+      if (method.getName().equals(function)
+          && method.getParameterTypes().length == arity
+          && Modifier.isStatic(method.getModifiers())
+          && method.getDeclaringClass() == compiled) {
+        try {
+          return MethodHandles.publicLookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
+    throw new LoopExecutionException("Function not found: " + name + "#" + function
+        + " taking " + arity + " argument(s)");
+  }
+
+  /**
+   * A method handle of the given type for the named function, whose arity is the number of
+   * parameters of the type. Arguments and results are converted as per
+   * {@link MethodHandle#asType}, so the handle may be called with invokeExact(); a result that
+   * isn't of the return type fails with a ClassCastException.
+   *
+   * @throws LoopExecutionException if the script has no function of that name and arity.
+   */
+  public MethodHandle function(String function, MethodType type) {
+    return function(function, type.parameterCount()).asType(type);
+  }
+
+  /**
+   * Releases the script's class, so that it can be unloaded once no handles to its functions
+   * remain. Compiling a script of the same name again also replaces it.
+   */
+  @Override
+  public void close() {
+    spreaders.clear();
+    LoopClassLoader.CLASS_LOADER.release(compiled);
+  }
+
+  /**
+   * Runs main(), which may take the command line as a list, and returns its result.
+   */
+  public Object main(String... commandLine) {
+    for (Method method : compiled.getMethods()) {
+      if (method.getName().equals("main") && method.getParameterTypes().length == 0)
+        return invoke("main");
+    }
+
+    return invoke("main", new ArrayList<String>(Arrays.asList(commandLine)));
+  }
+}
@@ -1,10 +1,8 @@
 package loop;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -12,14 +10,9 @@ import java.util.Set;
 import jline.console.ConsoleReader;
 import jline.console.completer.Completer;
 import jline.console.completer.FileNameCompleter;
-import loop.ast.Assignment;
 import loop.ast.Node;
-import loop.ast.Variable;
 import loop.ast.script.FunctionDecl;
-import loop.ast.script.ModuleDecl;
-import loop.ast.script.ModuleLoader;
 import loop.ast.script.RequireDecl;
-import loop.ast.script.Unit;
 import loop.lang.LoopObject;
 import loop.runtime.Closure;
 
@@ -27,12 +20,6 @@ import loop.runtime.Closure;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class LoopShell {
-  private static Map<String, Object> shellContext;
-
-  public static Object shellObtain(final String var) {
-    return LoopShell.shellContext.get(var);
-  }
-
   public static void shell() throws Exception {
     System.out.println("loOp (http://looplang.org)");
     System.out.println("     by Dhanji R. Prasanna\n");
@@ -42,12 +29,10 @@ public class LoopShell {
       reader.setExpandEvents(false);
       reader.addCompleter(new MetaCommandCompleter());
 
-      Unit shellScope = new Unit(null, ModuleDecl.SHELL);
-      FunctionDecl main = new FunctionDecl("main", null);
-      shellScope.declare(main);
-      LoopShell.shellContext = new HashMap<String, Object>();
+      ShellSession session = new ShellSession();
 
       boolean inFunction = false;
+      Profiler profiler = null;
 
       // Used to build up multiline statement blocks (like functions)
       StringBuilder block = null;
@@ -60,8 +45,8 @@ public class LoopShell {
           if (rawLine == null || rawLine.trim().isEmpty()) {
             inFunction = false;
 
-            // Eval the function to verify it.
-            LoopShell.printResult(Loop.evalClassOrFunction(block.toString(), shellScope));
+            // Compile the function (or type) into the session.
+            LoopShell.printResult(session.define(block.toString()));
             block = null;
             continue;
           }
@@ -82,8 +67,7 @@ public class LoopShell {
 
         // Add a require import.
         if (line.startsWith("require ")) {
-          shellScope.declare(new Parser(new Tokenizer(line + '\n').tokenize()).require());
-          shellScope.loadDeps("<shell>");
+          session.require(line);
           continue;
         }
 
@@ -95,6 +79,11 @@ public class LoopShell {
           LoopShell.printHelp();
         }
 
+        if (line.startsWith(":profile")) {
+          profiler = LoopShell.toggleProfiler(profiler, line);
+          continue;
+        }
+
         if (line.startsWith(":run")) {
           final String[] split = line.split("[ ]+", 2);
           if (split.length < 2 || !split[1].endsWith(".loop")) {
@@ -106,21 +95,19 @@ public class LoopShell {
 
         if (line.startsWith(":r") || line.startsWith(":reset")) {
           System.out.println("Context reset.");
-          shellScope = new Unit(null, ModuleDecl.SHELL);
-          main = new FunctionDecl("main", null);
-          shellScope.declare(main);
-          LoopShell.shellContext = new HashMap<String, Object>();
+          session.close();
+          session = new ShellSession();
           continue;
         }
         if (line.startsWith(":i") || line.startsWith(":imports")) {
-          for (final RequireDecl requireDecl : shellScope.imports()) {
+          for (final RequireDecl requireDecl : session.scope().imports()) {
             System.out.println(requireDecl.toSymbol());
           }
           System.out.println();
           continue;
         }
         if (line.startsWith(":f") || line.startsWith(":functions")) {
-          for (final FunctionDecl functionDecl : shellScope.functions()) {
+          for (final FunctionDecl functionDecl : session.scope().functions()) {
             final StringBuilder args = new StringBuilder();
             final List<Node> children = functionDecl.arguments().children();
             for (int i = 0, childrenSize = children.size(); i < childrenSize; i++) {
@@ -145,7 +132,7 @@ public class LoopShell {
             continue;
           }
 
-          final Object result = LoopShell.evalInFunction(split[1], main, shellScope, false);
+          final Object result = session.eval(split[1], false);
           LoopShell.printTypeOf(result);
           continue;
         }
@@ -157,7 +144,7 @@ public class LoopShell {
             continue;
           }
 
-          final Object result = LoopShell.evalInFunction(split[1], main, shellScope, false);
+          final Object result = session.eval(split[1], false);
           if (result instanceof LoopError) {
             System.out.println(result.toString());
           } else {
@@ -185,18 +172,15 @@ public class LoopShell {
           block = null;
         }
 
-        // First determine what kind of expression this is.
-        main.children().clear();
-
         // OK execute expression.
         try {
-          LoopShell.printResult(LoopShell.evalInFunction(rawLine, main, shellScope, true));
+          LoopShell.printResult(session.eval(rawLine, true));
         } catch (final ClassCastException e) {
-          StackTraceSanitizer.cleanForShell(e);
+          StackTraceSanitizer.cleanForShell(e, session.name());
           System.out.println("#error: " + e.getMessage());
           System.out.println();
         } catch (final RuntimeException e) {
-          StackTraceSanitizer.cleanForShell(e);
+          StackTraceSanitizer.cleanForShell(e, session.name());
           e.printStackTrace();
           System.out.println();
         }
@@ -209,6 +193,32 @@ public class LoopShell {
     }
   }
 
+  private static Profiler toggleProfiler(final Profiler profiler, final String line) {
+    if (profiler == null) {
+      System.out.println("Profiling. Run some code, then :profile again to see where the time went.");
+      System.out.println();
+      return Profiler.start();
+    }
+
+    profiler.stop();
+    System.out.println(profiler.samples() + " samples, hottest lines:");
+    for (final Map.Entry<String, Long> entry : profiler.hottestLines(10)) {
+      System.out.println("  " + entry.getValue() + "\t" + entry.getKey());
+    }
+
+    final String[] split = line.split("[ ]+", 2);
+    if (split.length > 1) {
+      try {
+        profiler.writeTo(new File(split[1]));
+        System.out.println("Collapsed stacks written to " + split[1]);
+      } catch (final IOException e) {
+        System.out.println("#error: " + e.getMessage());
+      }
+    }
+    System.out.println();
+    return null;
+  }
+
   private static void printHelp() {
     System.out.println("loOp Shell v1.0");
     System.out.println("  :run <file.loop>  - executes the specified loop file");
@@ -217,6 +227,7 @@ public class LoopShell {
     System.out.println("  :functions        - lists all currently defined functions by signature");
     System.out.println("  :type <expr>      - prints the type of the given expression");
     System.out.println("  :javatype <expr>  - prints the underlying java type (for examining loop internals)");
+    System.out.println("  :profile [file]   - starts profiling, or stops and prints (and saves) the profile");
     System.out.println("  :quit (or Ctrl-D) - exits the loop shell");
     System.out.println("  :help             - prints this help card");
     System.out.println();
@@ -235,98 +246,6 @@ public class LoopShell {
     }
   }
 
-  private static Object evalInFunction(String rawLine, final FunctionDecl func, final Unit shellScope,
-      final boolean addToWhereBlock) {
-    rawLine = rawLine.trim() + '\n';
-    final Executable executable = new Executable(new StringReader(rawLine));
-    Node parsedLine;
-    try {
-      final Parser parser = new Parser(new Tokenizer(rawLine).tokenize(), shellScope);
-      parsedLine = parser.line();
-      if (parsedLine == null || !parser.getErrors().isEmpty()) {
-        executable.printErrors(parser.getErrors());
-        return "";
-      }
-
-      // If this is an assignment, just check the rhs portion of it.
-      // This is a bit hacky but prevents verification from balking about new
-      // vars declared in the lhs.
-      if (parsedLine instanceof Assignment) {
-        new Reducer(parsedLine).reduce();
-        final Assignment assignment = (Assignment) parsedLine;
-
-        // Strip the lhs of the assignment if this is a simple variable setter
-        // as that will happen after the fact in a where-block.
-        // However we still do have Assignment nodes that assign "in-place", i.e.
-        // mutate the state of existing variables (example: a.b = c), and these need
-        // to continue untouched.
-        if (assignment.lhs() instanceof Variable) {
-          func.children().add(assignment.rhs());
-        } else {
-          func.children().add(parsedLine);
-        }
-      } else {
-        func.children().add(parsedLine);
-      }
-
-      // Compress nodes and eliminate redundancies.
-      new Reducer(func).reduce();
-
-      shellScope.loadDeps("<shell>");
-      executable.runMain(true);
-      executable.compileExpression(shellScope);
-
-      if (executable.hasErrors()) {
-        executable.printStaticErrorsIfNecessary();
-
-        return "";
-      }
-    } catch (final Exception e) {
-      e.printStackTrace();
-      return new LoopError("malformed expression " + rawLine);
-    }
-
-    try {
-      final Object result = Loop.safeEval(executable, null);
-
-      if (addToWhereBlock && parsedLine instanceof Assignment) {
-        final Assignment assignment = (Assignment) parsedLine;
-
-        boolean shouldReplace = false, shouldAddToWhere = true;
-        if (assignment.lhs() instanceof Variable) {
-          final String name = ((Variable) assignment.lhs()).name;
-          LoopShell.shellContext.put(name, result);
-
-          // Look up the value of the RHS of the variable from the shell context,
-          // if this is the second reference to the same variable.
-          assignment.setRhs(new Parser(new Tokenizer("`loop.LoopShell`.shellObtain('" + name + "')").tokenize())
-              .parse());
-          shouldReplace = true;
-        } else {
-          shouldAddToWhere = false; // Do not add state-mutating assignments to where block.
-        }
-
-        // If this assignment is already present in the current scope, we should replace it.
-        if (shouldReplace) {
-          for (final Iterator<Node> iterator = func.whereBlock().iterator(); iterator.hasNext();) {
-            final Node node = iterator.next();
-            if (node instanceof Assignment && ((Assignment) node).lhs() instanceof Variable) {
-              iterator.remove();
-            }
-          }
-        }
-
-        if (shouldAddToWhere) {
-          func.declareLocally(parsedLine);
-        }
-      }
-
-      return result;
-    } finally {
-      ModuleLoader.INSTANCE.reset(); // Cleans up the loaded classes.
-    }
-  }
-
   private static void printResult(final Object result) {
     if (result instanceof Closure) {
       final Closure fun = (Closure) result;
@@ -384,7 +303,7 @@ public class LoopShell {
 
   private static class MetaCommandCompleter implements Completer {
     private final List<String> commands = Arrays.asList(":help", ":run", ":quit", ":reset", ":type", ":imports",
-        ":javatype", ":functions");
+        ":javatype", ":functions", ":profile");
 
     private final FileNameCompleter fileNameCompleter = new FileNameCompleter();
 
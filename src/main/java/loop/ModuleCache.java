@@ -0,0 +1,294 @@
+package loop;
+
+import loop.ast.script.Unit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An opt-in, on-disk cache of compiled modules. Enable it with -Dloop.cache=<dir>.
+ * <p/>
+ * Entries are looked up by a hash of the module's source, its name and the compiler itself
+ * (including the runtime, see {@link #compilerVersion}).
+ * Each entry holds the emitted class and the unit as it was just after parsing, so a warm
+ * start skips tokenizing, parsing, verifying and emitting. The entry also records a digest of
+ * every dependency it was compiled against, and it is only used if those still match.
+ */
+class ModuleCache {
+  static final String CACHE_DIR_PROPERTY = "loop.cache";
+  private static final String ENTRY_EXT = ".lpc";
+
+  // Where modules compiled ahead of time (see AheadOfTimeCompiler) live on the classpath.
+  static final String PRECOMPILED_DIR = "META-INF/loop/";
+  static final String PRECOMPILED_CLASSES_DIR = PRECOMPILED_DIR + "classes/";
+
+  // Cache directories (and JARs) may be writable by others, so entries are only ever read as
+  // the classes that make them up: nodes, tokens, plain collections and boxed primitives, and
+  // within bounds well beyond those of any real module.
+  private static final ObjectInputFilter ENTRY_FILTER = ObjectInputFilter.Config.createFilter(
+      "maxdepth=1000;maxrefs=1000000;maxarray=4194304;"
+      + "loop.ModuleCache$Entry;loop.Token;loop.Token$Kind;loop.ast.**;"
+      + "java.lang.Object;java.lang.String;java.lang.Enum;java.lang.Number;java.lang.Boolean;java.lang.Character;java.lang.Byte;"
+      + "java.lang.Short;java.lang.Integer;java.lang.Long;java.lang.Float;java.lang.Double;"
+      + "java.util.ArrayList;java.util.Arrays$ArrayList;java.util.LinkedList;java.util.Stack;"
+      + "java.util.Vector;java.util.HashMap;java.util.LinkedHashMap;java.util.TreeMap;"
+      + "java.util.HashSet;java.util.LinkedHashSet;java.util.TreeSet;java.util.Map$Entry;"
+      + "java.util.Collections$EmptyList;java.util.Collections$EmptyMap;"
+      + "java.util.Collections$EmptySet;!*");
+
+  // A fingerprint of the compiler and runtime, which is part of every cache key.
+  private static volatile String compilerVersion;
+
+  // Number of modules loaded from the cache in this VM.
+  static final AtomicInteger hits = new AtomicInteger();
+
+  private final File entry;
+  private final String key;
+
+  private ModuleCache(File directory, String key) {
+    this.entry = new File(directory, key + ENTRY_EXT);
+    this.key = key;
+  }
+
+  /**
+   * Returns the cache slot for the given module source, or null if caching is disabled.
+   */
+  static ModuleCache open(String file, String source) {
+    String directory = System.getProperty(CACHE_DIR_PROPERTY);
+    if (directory == null || source == null)
+      return null;
+
+    return new ModuleCache(new File(directory), sha256(compilerVersion() + '\0' + file + '\0' + source));
+  }
+
+  /**
+   * True if the given module was compiled ahead of time and is on the classpath.
+   */
+  static boolean isPrecompiled(String module) {
+    ClassLoader resources = Thread.currentThread().getContextClassLoader();
+    return resources.getResource(PRECOMPILED_DIR + module + ".lpc") != null;
+  }
+
+  /**
+   * A digest that changes whenever this module, or anything it was compiled against, changes.
+   */
+  String digest(Collection<Executable> deps) {
+    StringBuilder builder = new StringBuilder(key);
+    for (Executable dep : deps) {
+      if (dep.digest() == null)
+        return null;
+
+      builder.append('\0').append(dep.file()).append('=').append(dep.digest());
+    }
+    return sha256(builder.toString());
+  }
+
+  /**
+   * Serializes a freshly parsed unit, before deps are resolved or code is emitted (both of
+   * which mutate it).
+   */
+  static byte[] snapshot(Unit unit) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(unit);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      // Some node isn't serializable; just don't cache this module.
+      return null;
+    }
+  }
+
+  /**
+   * Bundles a compiled module, or returns null if it cannot be cached.
+   */
+  static Entry entry(byte[] snapshot, byte[] bytecode, Collection<Executable> deps) {
+    if (snapshot == null || bytecode == null)
+      return null;
+
+    Entry entry = new Entry();
+    entry.unit = snapshot;
+    entry.bytecode = bytecode;
+    for (Executable dep : deps)
+      entry.deps.put(dep.file(), dep.digest());
+
+    return entry;
+  }
+
+  void store(Entry cached) {
+    if (cached == null || cached.deps.containsValue(null))
+      return;
+
+    try {
+      File directory = entry.getParentFile();
+      if (!directory.isDirectory() && !directory.mkdirs())
+        return;
+
+      // Write to a temp file and move it into place, so concurrent VMs never see partial entries.
+      File temp = File.createTempFile(key, ".tmp", directory);
+      OutputStream out = Files.newOutputStream(temp.toPath());
+      try {
+        cached.writeTo(out);
+      } finally {
+        out.close();
+      }
+      Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      // The cache is only an optimization.
+    }
+  }
+
+  Entry load() {
+    if (!entry.isFile())
+      return null;
+
+    try {
+      InputStream in = Files.newInputStream(entry.toPath());
+      try {
+        return Entry.readFrom(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  static class Entry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private byte[] unit;
+    private byte[] bytecode;
+    private final Map<String, String> deps = new LinkedHashMap<String, String>();
+
+    Unit unit() {
+      try {
+        return (Unit) readObject(new ByteArrayInputStream(unit));
+      } catch (Exception e) {
+        return null;
+      }
+    }
+
+    byte[] bytecode() {
+      return bytecode;
+    }
+
+    /**
+     * This entry without its class bytes, for when those are stored separately.
+     */
+    Entry metadata() {
+      Entry metadata = new Entry();
+      metadata.unit = unit;
+      metadata.deps.putAll(deps);
+      return metadata;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      ObjectOutputStream objects = new ObjectOutputStream(out);
+      objects.writeObject(this);
+      objects.flush();
+    }
+
+    /**
+     * Returns null if the entry is corrupt or was written by an incompatible compiler.
+     */
+    static Entry readFrom(InputStream in) {
+      try {
+        return (Entry) readObject(in);
+      } catch (Exception e) {
+        return null;
+      }
+    }
+
+    private static Object readObject(InputStream in) throws IOException, ClassNotFoundException {
+      ObjectInputStream objects = new ObjectInputStream(in);
+      objects.setObjectInputFilter(ENTRY_FILTER);
+      return objects.readObject();
+    }
+
+    /**
+     * True if the given (freshly resolved) deps are exactly those this entry was compiled against.
+     */
+    boolean matches(Collection<Executable> resolved) {
+      Map<String, String> current = new LinkedHashMap<String, String>();
+      for (Executable dep : resolved)
+        current.put(dep.file(), dep.digest());
+
+      return deps.equals(current);
+    }
+  }
+
+  /**
+   * Hashes everything the compiler is loaded from: its jar, or every class under its classes
+   * directory. Any change to the compiler or runtime therefore invalidates the cache.
+   */
+  private static String compilerVersion() {
+    String version = compilerVersion;
+    if (version != null)
+      return version;
+
+    try {
+      Path location = Paths.get(ModuleCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+      if (!Files.isDirectory(location))
+        return compilerVersion = sha256(Files.readAllBytes(location));
+
+      List<Path> classes;
+      Stream<Path> files = Files.walk(location);
+      try {
+        classes = files.filter(file -> file.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+      } finally {
+        files.close();
+      }
+
+      StringBuilder fingerprint = new StringBuilder();
+      for (Path file : classes)
+        fingerprint.append(location.relativize(file)).append('=').append(sha256(Files.readAllBytes(file)));
+      return compilerVersion = sha256(fingerprint.toString());
+    } catch (Exception e) {
+      // Nothing cached can be trusted without a fingerprint, so this VM won't hit the cache.
+      return compilerVersion = UUID.randomUUID().toString();
+    }
+  }
+
+  private static String sha256(String text) {
+    return sha256(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String sha256(byte[] bytes) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest)
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
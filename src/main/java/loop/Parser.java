@@ -351,7 +351,7 @@ public class Parser {
 
     // We need to set the module name here because closures are not declared as
     // top level functions in the module.
-    if (anonymous) {
+    if (anonymous && this.scope != null) {
       functionDecl.setModule(this.scope.getModuleName());
     }
 
@@ -1041,7 +1041,7 @@ public class Parser {
   }
 
   /**
-   * comprehension := FOR variable IN computation (AND computation)?
+   * comprehension := FOR ('lazy' | 'par')? variable IN computation (AND computation)?
    */
   private Node comprehension() {
     final List<Token> forTokens = this.match(Kind.FOR);
@@ -1049,6 +1049,19 @@ public class Parser {
       return null;
     }
 
+    // 'lazy' and 'par' are only keywords when followed by the loop variable, so they remain legal
+    // identifiers.
+    boolean lazy = false, parallel = false;
+    if (this.i + 1 < this.tokens.size() && this.tokens.get(this.i).kind == Kind.IDENT
+        && this.tokens.get(this.i + 1).kind == Kind.IDENT) {
+      final String mode = this.tokens.get(this.i).value;
+      lazy = Comprehension.LAZY.equals(mode);
+      parallel = Comprehension.PAR.equals(mode);
+      if (lazy || parallel) {
+        this.i++;
+      }
+    }
+
     final Node variable = this.variable();
     if (null == variable) {
       this.addError("Expected variable identifier after 'for' in list comprehension", this.tokens.get(this.i - 1));
@@ -1067,7 +1080,7 @@ public class Parser {
     }
 
     if (this.match(Token.Kind.IF) == null) {
-      return new Comprehension(variable, inList, null).sourceLocation(forTokens);
+      return new Comprehension(variable, inList, null).lazy(lazy).parallel(parallel).sourceLocation(forTokens);
     }
 
     final Node filter = this.computation();
@@ -1076,7 +1089,7 @@ public class Parser {
       throw new LoopCompileException();
     }
 
-    return new Comprehension(variable, inList, filter).sourceLocation(forTokens);
+    return new Comprehension(variable, inList, filter).lazy(lazy).parallel(parallel).sourceLocation(forTokens);
   }
 
   /**
@@ -1650,7 +1663,7 @@ public class Parser {
     case LONG:
       return new LongLiteral(token.value).sourceLocation(token);
     case STRING:
-      return new StringLiteral(token.value).sourceLocation(token);
+      return new StringLiteral(token).sourceLocation(token);
     case TYPE_IDENT:
       return new TypeLiteral(token.value).sourceLocation(token);
     case JAVA_LITERAL:
@@ -0,0 +1,235 @@
+package loop;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A sampling profiler for loop code. Every few milliseconds it takes the stack of each
+ * running thread, keeps only the frames of loop functions and counts the resulting stack,
+ * with each frame named by module, source function and line, e.g. {@code quicksort#main:9}.
+ * <p/>
+ * Closures ($fn_N$...) and where-block helpers ($wh$...) are named after the source function
+ * they are written in, and the steps of mutually tail-recursive functions ($tc$...) after their own
+ * function. Output is in the collapsed stack format read by flamegraph.pl and
+ * speedscope. Enable it for a whole run with -Dloop.profile=<file>, or with :profile in the
+ * shell.
+ */
+public final class Profiler {
+  public static final String PROFILE_PROPERTY = "loop.profile";
+  public static final String INTERVAL_PROPERTY = "loop.profile.interval";
+  private static final long DEFAULT_INTERVAL_MILLIS = 5;
+
+  private static final String WHERE_SCOPE_FN_PREFIX = "$wh$";
+
+  private final ConcurrentMap<String, Long> stacks = new ConcurrentHashMap<String, Long>();
+  private final long intervalMillis;
+  private final Thread sampler;
+  private volatile boolean running = true;
+  private volatile int samples;
+
+  private Profiler(long intervalMillis) {
+    this.intervalMillis = intervalMillis;
+    this.sampler = new Thread(new Runnable() {
+      @Override public void run() {
+        sample();
+      }
+    }, "loop-profiler");
+    this.sampler.setDaemon(true);
+  }
+
+  /**
+   * Starts sampling at the interval given by -Dloop.profile.interval (in milliseconds).
+   */
+  public static Profiler start() {
+    return start(Long.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL_MILLIS));
+  }
+
+  public static Profiler start(long intervalMillis) {
+    Profiler profiler = new Profiler(intervalMillis);
+    profiler.sampler.start();
+    return profiler;
+  }
+
+  /**
+   * Starts sampling, and writes the collapsed stacks to the given file when the VM exits.
+   */
+  public static Profiler startForRun(final File output) {
+    final Profiler profiler = start();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override public void run() {
+        profiler.stop();
+        try {
+          profiler.writeTo(output);
+        } catch (IOException e) {
+          System.err.println("Unable to write profile: " + e.getMessage());
+        }
+      }
+    });
+    return profiler;
+  }
+
+  private void sample() {
+    while (running) {
+      for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+        if (entry.getKey() == sampler || entry.getKey().getState() != Thread.State.RUNNABLE)
+          continue;
+
+        String stack = collapse(entry.getValue());
+        if (stack != null) {
+          Long count = stacks.putIfAbsent(stack, 1L);
+          while (count != null && !stacks.replace(stack, count, count + 1))
+            count = stacks.get(stack);
+        }
+      }
+      samples++;
+
+      try {
+        Thread.sleep(intervalMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  public void stop() {
+    running = false;
+    sampler.interrupt();
+    try {
+      sampler.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The loop frames of a Java stack, outermost first and separated by ';', or null if there
+   * are none.
+   */
+  static String collapse(StackTraceElement[] trace) {
+    StringBuilder builder = null;
+    for (int i = trace.length - 1; i >= 0; i--) {
+      StackTraceElement element = trace[i];
+      if (!isLoopFrame(element) || AsmCodeEmitter.TRAMPOLINE.equals(element.getMethodName())
+          || isLazyStub(trace, i))
+        continue;
+
+      if (builder == null)
+        builder = new StringBuilder();
+      else
+        builder.append(';');
+      builder.append(module(element)).append('#').append(function(element.getMethodName()));
+      if (element.getLineNumber() > 0)
+        builder.append(':').append(element.getLineNumber());
+    }
+    return builder == null ? null : builder.toString();
+  }
+
+  // The stub of a lazily compiled function, whose next loop frame is the function's body.
+  private static boolean isLazyStub(StackTraceElement[] trace, int i) {
+    for (int next = i - 1; next >= 0; next--) {
+      if (isLoopFrame(trace[next]))
+        return trace[next].getClassName().equals(trace[i].getClassName()
+            + LazyFunctions.BODY_CLASS_SEPARATOR + trace[i].getMethodName());
+    }
+    return false;
+  }
+
+  private static boolean isLoopFrame(StackTraceElement element) {
+    String file = element.getFileName();
+    if (file != null)
+      return file.endsWith(".loop");
+
+    return LoopClassLoader.CLASS_LOADER.isLoaded(element.getClassName());
+  }
+
+  private static String module(StackTraceElement element) {
+    String file = element.getFileName();
+    if (file != null && element.getClassName().startsWith("_"))
+      return file.substring(0, file.length() - ".loop".length());
+
+    // Lazily compiled functions are in classes of their own.
+    String className = element.getClassName();
+    int lazy = className.indexOf(LazyFunctions.BODY_CLASS_SEPARATOR);
+    return lazy > 0 ? className.substring(0, lazy) : className;
+  }
+
+  static String function(String method) {
+    // Closures are named $fn_N$ followed by the function they're written in.
+    if (method.startsWith(AsmCodeEmitter.CLOSURE_PREFIX)) {
+      int start = method.indexOf('$', AsmCodeEmitter.CLOSURE_PREFIX.length());
+      return start > 0 ? function(method.substring(start + 1)) : method;
+    }
+
+    if (method.startsWith(AsmCodeEmitter.TAIL_CALL_PREFIX))
+      return method.substring(AsmCodeEmitter.TAIL_CALL_PREFIX.length());
+
+    if (method.startsWith(WHERE_SCOPE_FN_PREFIX)) {
+      int end = method.indexOf('$', WHERE_SCOPE_FN_PREFIX.length());
+      return end > 0 ? method.substring(WHERE_SCOPE_FN_PREFIX.length(), end) : method;
+    }
+
+    return method;
+  }
+
+  public int samples() {
+    return samples;
+  }
+
+  /**
+   * Sample counts keyed by collapsed stack.
+   */
+  public Map<String, Long> stacks() {
+    return new TreeMap<String, Long>(stacks);
+  }
+
+  /**
+   * Sample counts by innermost frame, i.e. by the loop line that was running, hottest first.
+   */
+  public List<Map.Entry<String, Long>> hottestLines(int limit) {
+    Map<String, Long> lines = new TreeMap<String, Long>();
+    for (Map.Entry<String, Long> entry : stacks.entrySet()) {
+      String stack = entry.getKey();
+      String line = stack.substring(stack.lastIndexOf(';') + 1);
+      Long count = lines.get(line);
+      lines.put(line, count == null ? entry.getValue() : count + entry.getValue());
+    }
+
+    List<Map.Entry<String, Long>> hottest = new ArrayList<Map.Entry<String, Long>>(lines.entrySet());
+    Collections.sort(hottest, new Comparator<Map.Entry<String, Long>>() {
+      @Override public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+        return b.getValue().compareTo(a.getValue());
+      }
+    });
+    return hottest.size() > limit ? hottest.subList(0, limit) : hottest;
+  }
+
+  /**
+   * Writes one line per distinct stack: the frames, a space and the number of samples.
+   */
+  public void writeCollapsed(Writer out) {
+    PrintWriter writer = new PrintWriter(out);
+    for (Map.Entry<String, Long> entry : stacks().entrySet())
+      writer.println(entry.getKey() + ' ' + entry.getValue());
+    writer.flush();
+  }
+
+  public void writeTo(File output) throws IOException {
+    FileWriter writer = new FileWriter(output);
+    try {
+      writeCollapsed(writer);
+    } finally {
+      writer.close();
+    }
+  }
+}
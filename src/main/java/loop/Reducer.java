@@ -88,6 +88,8 @@ public class Reducer {
           comprehension.filter(onlyChildOf(comprehension.filter()));
         }
       }
+
+      fuse(comprehension);
     } else if (bloated instanceof Call) {
       Call call = (Call) bloated;
 
@@ -113,8 +115,9 @@ public class Reducer {
     } else if (bloated instanceof FunctionDecl) {
       FunctionDecl decl = (FunctionDecl) bloated;
       if (!decl.whereBlock().isEmpty()) {
+        // Where-bindings are values used by the function, but helper functions have tail calls.
         for (Node node : decl.whereBlock()) {
-          reduce(node, true);
+          reduce(node, node instanceof FunctionDecl);
         }
       }
     }
@@ -130,11 +133,14 @@ public class Reducer {
 
   private static boolean isTailPath(int i, int childrenSize, Node node) {
 
-    // It's the tail path, if this is the last node and it is not a descendent of a binary op.
-    return (i == childrenSize - 1 && (!(node instanceof BinaryOp)))
+    // Either branch of an if-then-else is returned as it is.
+    if (node instanceof TernaryIfExpression || node instanceof TernaryUnlessExpression)
+      return i > 0;
 
-        // Or this is the "then" part of an if-then-else
-        || (node instanceof TernaryIfExpression && i == 1);
+    // As is the last line of a function, or the last link of a call chain. Anything else
+    // (operands, list and map elements, assignments) is used by its parent, not returned.
+    return i == childrenSize - 1
+        && (node instanceof FunctionDecl || node instanceof CallChain || shouldUnwrap(node));
   }
 
   private void reduceComprehension(List<Node> reduced) {
@@ -155,11 +161,36 @@ public class Reducer {
     }
   }
 
+  /**
+   * Fuses a comprehension over the output of another comprehension into a single loop, so
+   * that no intermediate list is built. E.g. (y + 1 for y in (x * 2 for x in ls)) becomes
+   * one pass over ls. Lazy and parallel comprehensions are left alone.
+   *
+   * Each stage still sees only its own variable: the emitter binds a stage's variable once the
+   * stages upstream of it are emitted and unbinds it before the next, and the verifier rejects
+   * references to an upstream stage's variable.
+   */
+  private void fuse(Comprehension comprehension) {
+    // Parenthesized sources may still be wrapped in single-child groups at this point.
+    Node inList = comprehension.inList();
+    while (shouldUnwrap(inList)) {
+      inList = onlyChildOf(inList);
+    }
+    if (!(inList instanceof Comprehension))
+      return;
+
+    Comprehension upstream = (Comprehension) inList;
+    if (comprehension.lazy() || upstream.lazy() || comprehension.parallel() || upstream.parallel())
+      return;
+
+    comprehension.upstream(upstream);
+  }
+
   private Node onlyChildOf(Node node) {
     return node.children().get(0);
   }
 
-  private boolean shouldUnwrap(Node node) {
+  private static boolean shouldUnwrap(Node node) {
     return (node instanceof CallChain || node instanceof Computation)
         && node.children().size() == 1;
   }
@@ -0,0 +1,275 @@
+package loop;
+
+import loop.ast.Assignment;
+import loop.ast.ClassDecl;
+import loop.ast.Node;
+import loop.ast.Variable;
+import loop.ast.script.FunctionDecl;
+import loop.ast.script.ModuleDecl;
+import loop.ast.script.Unit;
+
+import java.io.StringReader;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An incremental compilation session, as used by the shell (or an editor integration). The
+ * session keeps its parsed functions, types and variables across lines. Each function or type
+ * is compiled once, when it is defined, into a small class of its own. Redefining it replaces
+ * just that class, and since calls between loop functions are bound by class name, callers
+ * pick up the new definition without being recompiled.
+ * <p/>
+ * Each expression is compiled on its own into a throwaway class, which is released once it has
+ * run, so the cost of a line doesn't grow with the session and memory doesn't climb with each
+ * line.
+ * <p/>
+ * These are ordinary named classes rather than hidden ones, for two reasons. Hidden classes
+ * (Lookup.defineHiddenClass) need Java 15, and loop targets Java 11. And they can't be
+ * referred to by name, whereas session classes are: callers bind to functions by class name,
+ * which is what lets a redefinition take effect, and constructors read a type's descriptor
+ * from the static field of its class.
+ * <p/>
+ * A session should be closed once done with. One that is dropped without being closed has its
+ * classes released when it is collected, the next time a session is opened.
+ *
+ * @NotThreadSafe
+ */
+public class ShellSession {
+  private static final AtomicInteger sessionSequence = new AtomicInteger();
+
+  // Open sessions by name, so that compiled expressions can look up session variables. Held
+  // weakly, so that sessions which are never closed don't stay reachable from here.
+  private static final ConcurrentMap<String, SessionReference> sessions =
+      new ConcurrentHashMap<String, SessionReference>();
+  private static final ReferenceQueue<ShellSession> dropped = new ReferenceQueue<ShellSession>();
+
+  private final String name;
+  private final Unit scope = new Unit(null, ModuleDecl.SHELL);
+  private final FunctionDecl main = new FunctionDecl("main", null);
+  private final Map<String, Object> variables = new HashMap<String, Object>();
+  private final Set<String> compiled = new LinkedHashSet<String>();
+
+  public ShellSession() {
+    releaseDropped();
+
+    this.name = ModuleDecl.SHELL.name + '$' + sessionSequence.incrementAndGet();
+    this.scope.declare(main);
+    this.main.setModule(name);
+    this.scope.loadDeps("<shell>");
+
+    sessions.put(name, new SessionReference(this));
+  }
+
+  private static final class SessionReference extends WeakReference<ShellSession> {
+    private final String name;
+
+    // Shared with the session, so that its classes can be released after it is collected.
+    private final Set<String> compiled;
+
+    private SessionReference(ShellSession session) {
+      super(session, dropped);
+      this.name = session.name;
+      this.compiled = session.compiled;
+    }
+
+    private void release() {
+      for (String javaClass : compiled) {
+        LoopClassLoader.CLASS_LOADER.release(javaClass);
+      }
+      compiled.clear();
+    }
+  }
+
+  // Releases the classes of sessions that were collected without being closed.
+  private static void releaseDropped() {
+    SessionReference reference;
+    while ((reference = (SessionReference) dropped.poll()) != null) {
+      if (sessions.remove(reference.name, reference))
+        reference.release();
+    }
+  }
+
+  /**
+   * The name of the class each expression is compiled into.
+   */
+  public String name() {
+    return name;
+  }
+
+  public Unit scope() {
+    return scope;
+  }
+
+  public static Object obtain(String session, String variable) {
+    SessionReference reference = sessions.get(session);
+    ShellSession shellSession = reference == null ? null : reference.get();
+    if (shellSession == null)
+      throw new RuntimeException("Shell session is closed: " + session);
+
+    return shellSession.variables.get(variable);
+  }
+
+  public Object variable(String variable) {
+    return variables.get(variable);
+  }
+
+  /**
+   * Adds a module or Java import, e.g. require `java.util.Date`.
+   */
+  public void require(String line) {
+    scope.declare(new Parser(new Tokenizer(line + '\n').tokenize()).require());
+    scope.loadDeps("<shell>");
+  }
+
+  /**
+   * Compiles a function or type into the session, replacing any of the same name. Returns "ok",
+   * or "" if there were errors, which are printed.
+   */
+  public Object define(String source) {
+    Executable executable = new Executable(new StringReader(source));
+    Node node;
+    try {
+      node = executable.compileClassOrFunction(scope);
+    } catch (Exception e) {
+      e.printStackTrace();
+      return new LoopError("malformed function");
+    }
+
+    if (node == null) {
+      executable.printStaticErrorsIfNecessary();
+      return "";
+    }
+
+    AsmCodeEmitter emitter = new AsmCodeEmitter(scope);
+    if (node instanceof FunctionDecl) {
+      FunctionDecl function = (FunctionDecl) node;
+      String javaClass = redefine(name + '$' + function.name());
+      function.setModule(javaClass);
+      emitter.write(scope, javaClass, Collections.singletonList(function),
+          Collections.<ClassDecl>emptyList());
+    } else {
+      ClassDecl classDecl = (ClassDecl) node;
+      String javaClass = redefine(name + "$$" + classDecl.name);
+      classDecl.moduleName = javaClass;
+      emitter.write(scope, javaClass, Collections.<FunctionDecl>emptyList(),
+          Collections.singletonList(classDecl));
+    }
+    return "ok";
+  }
+
+  // Releases any previous definition of the given class, so that it can be compiled again.
+  private String redefine(String javaClass) {
+    if (!compiled.add(javaClass))
+      LoopClassLoader.CLASS_LOADER.release(javaClass);
+    return javaClass;
+  }
+
+  /**
+   * Compiles and runs a line. Variables it assigns are kept in the session if remember is set.
+   */
+  public Object eval(String line, boolean remember) {
+    line = line.trim() + '\n';
+    main.children().clear();
+
+    final Executable executable = new Executable(new StringReader(line));
+    Node parsedLine;
+    try {
+      final Parser parser = new Parser(new Tokenizer(line).tokenize(), scope);
+      parsedLine = parser.line();
+      if (parsedLine == null || !parser.getErrors().isEmpty()) {
+        executable.printErrors(parser.getErrors());
+        return "";
+      }
+
+      // If this is an assignment, just check the rhs portion of it.
+      // This is a bit hacky but prevents verification from balking about new
+      // vars declared in the lhs.
+      if (parsedLine instanceof Assignment) {
+        new Reducer(parsedLine).reduce();
+        final Assignment assignment = (Assignment) parsedLine;
+
+        // Strip the lhs of the assignment if this is a simple variable setter
+        // as that will happen after the fact in a where-block.
+        // However we still do have Assignment nodes that assign "in-place", i.e.
+        // mutate the state of existing variables (example: a.b = c), and these need
+        // to continue untouched.
+        if (assignment.lhs() instanceof Variable) {
+          main.children().add(assignment.rhs());
+        } else {
+          main.children().add(parsedLine);
+        }
+      } else {
+        main.children().add(parsedLine);
+      }
+
+      // Compress nodes and eliminate redundancies.
+      new ConstantFolder(scope).fold(new Reducer(main).reduce());
+
+      executable.runMain(true);
+      executable.compileExpression(scope, name, main);
+
+      if (executable.hasErrors()) {
+        executable.printStaticErrorsIfNecessary();
+
+        return "";
+      }
+    } catch (final Exception e) {
+      e.printStackTrace();
+      return new LoopError("malformed expression " + line);
+    }
+
+    try {
+      final Object result = Loop.safeEval(executable, null);
+
+      if (remember && parsedLine instanceof Assignment) {
+        final Assignment assignment = (Assignment) parsedLine;
+
+        // Do not add state-mutating assignments to where block.
+        if (assignment.lhs() instanceof Variable) {
+          final String variable = ((Variable) assignment.lhs()).name;
+          variables.put(variable, result);
+
+          // Look up the value of the RHS of the variable from the session,
+          // if this is the second reference to the same variable.
+          assignment.setRhs(new Parser(new Tokenizer("`loop.ShellSession`.obtain('" + name + "', '"
+              + variable + "')").tokenize()).parse());
+
+          // If this variable is already present in the current scope, we should replace it.
+          for (final Iterator<Node> iterator = main.whereBlock().iterator(); iterator.hasNext();) {
+            final Node node = iterator.next();
+            if (node instanceof Assignment && ((Assignment) node).lhs() instanceof Variable
+                && variable.equals(((Variable) ((Assignment) node).lhs()).name)) {
+              iterator.remove();
+            }
+          }
+          main.declareLocally(parsedLine);
+        }
+      }
+
+      return result;
+    } finally {
+      // Unloads this line's class. Functions, types and required modules stay compiled.
+      LoopClassLoader.CLASS_LOADER.release(name);
+    }
+  }
+
+  /**
+   * Unloads everything compiled in this session.
+   */
+  public void close() {
+    SessionReference reference = sessions.remove(name);
+    if (reference != null) {
+      reference.clear();
+      reference.release();
+    }
+  }
+}
@@ -49,12 +49,19 @@ public class StackTraceSanitizer {
   }
 
   public static void cleanForShell(Throwable e) {
+    cleanForShell(e, ModuleDecl.SHELL.name);
+  }
+
+  /**
+   * Cuts the trace off at the class the shell compiled the current line into.
+   */
+  public static void cleanForShell(Throwable e, String javaClass) {
     StackTraceElement[] trace = e.getStackTrace();
     List<StackTraceElement> pruned = new ArrayList<StackTraceElement>(trace.length);
     for (StackTraceElement element : trace) {
       pruned.add(element);
 
-      if (ModuleDecl.SHELL.name.equals(element.getClassName()))
+      if (javaClass.equals(element.getClassName()))
         break;
     }
 
@@ -7,53 +7,73 @@ import java.util.List;
  * Tokenizes strings that require interpolation. E.g.:
  * <p/>
  * "Hello, @{name}!"
+ * <p/>
+ * The main {@link Tokenizer} does this as it bakes each string, so the expressions are lexed
+ * in place, once, and carry their real source lines.
  *
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class StringLerpTokenizer {
   public static List<StringToken> tokenize(String source) {
+    return tokenize(source, 0, source.length(), 0);
+  }
+
+  /**
+   * Splits the quoted string in the given range of input, whose opening quote is on the given
+   * line, into literal text and lexed expressions.
+   */
+  static List<StringToken> tokenize(CharSequence input, int start, int end, int line) {
     // Strip quotes.
-    source = source.substring(1, source.length() - 1);
+    start++;
+    end--;
 
     int braces = 0;
-    int length = source.length();
 
     List<StringToken> tokens = new ArrayList<StringToken>();
 
-    StringBuilder currentToken = new StringBuilder();
-    for (int i = 0; i < length; i++) {
-      char c = source.charAt(i);
+    int currentToken = start;
+    for (int i = start; i < end; i++) {
+      char c = input.charAt(i);
 
-      if (c == '@') {
-        if (i < length - 1 && source.charAt(i + 1) == '{') {
+      if (c == '\n') {
+        line++;
+      } else if (c == '@') {
+        if (i < end - 1 && input.charAt(i + 1) == '{') {
           braces += 1;
 
-          tokens.add(new StringToken(currentToken.toString(), StringToken.Kind.CHAR_SEQUENCE, 0, 0));
-          currentToken = new StringBuilder();
+          tokens.add(new StringToken(input.subSequence(currentToken, i).toString(),
+              StringToken.Kind.CHAR_SEQUENCE, 0, 0));
+          currentToken = i;
         }
       } else if (c == '}') {
         braces--;
 
         if (braces == 0) {
-          // Delete leading '@{'
-          currentToken.deleteCharAt(0).deleteCharAt(0);
-
-          // bake token!
-          tokens.add(new StringToken(currentToken.toString(), StringToken.Kind.EXPRESSION, 0, 0));
-          currentToken = new StringBuilder();
+          // Leave out the leading '@{' and bake token!
+          final int expression = currentToken + 2;
+          tokens.add(new StringToken(input.subSequence(expression, i).toString(),
+              StringToken.Kind.EXPRESSION, 0, 0,
+              new Tokenizer(input, expression, i, line - countLines(input, expression, i)).tokenize()));
 
           // Skip trailing '}'
-          continue;
+          currentToken = i + 1;
         }
       }
-
-      currentToken.append(c);
     }
 
     // Slurp up remainder.
-    if (currentToken.length() > 0)
-      tokens.add(new StringToken(currentToken.toString(), StringToken.Kind.CHAR_SEQUENCE, 0, 0));
+    if (end > currentToken)
+      tokens.add(new StringToken(input.subSequence(currentToken, end).toString(),
+          StringToken.Kind.CHAR_SEQUENCE, 0, 0));
 
     return tokens;
   }
+
+  static int countLines(CharSequence input, int start, int end) {
+    int lines = 0;
+    for (int i = start; i < end; i++)
+      if (input.charAt(i) == '\n')
+        lines++;
+    return lines;
+  }
 }
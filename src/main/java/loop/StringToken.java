@@ -1,5 +1,7 @@
 package loop;
 
+import java.util.List;
+
 /**
  * @author Dhanji R. Prasanna
  */
@@ -10,11 +12,19 @@ public class StringToken {
   public final int line;
   public final int column;
 
+  // The lexed expression, if this is one.
+  public final List<Token> tokens;
+
   public StringToken(String value, Kind kind, int line, int column) {
+    this(value, kind, line, column, null);
+  }
+
+  public StringToken(String value, Kind kind, int line, int column, List<Token> tokens) {
     this.value = value;
     this.kind = kind;
     this.line = line;
     this.column = column;
+    this.tokens = tokens;
   }
 
   public static enum Kind {
@@ -1,23 +1,35 @@
 package loop;
 
+import java.io.Serializable;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * @author Dhanji R. Prasanna
  */
-public class Token {
+public class Token implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   public final String value;
   public final Kind kind;
 
   public final int line;
   public final int column;
 
+  // The literal text and lexed expressions of an interpolated string, or null.
+  public final transient List<StringToken> parts;
+
   public Token(String value, Kind kind, int line, int column) {
+    this(value, kind, line, column, null);
+  }
+
+  public Token(String value, Kind kind, int line, int column, List<StringToken> parts) {
     this.value = kind == Kind.IDENT ? value.trim() : value;
     this.kind = kind;
     this.line = line;
     this.column = column;
+    this.parts = parts;
   }
 
   public static enum Kind {
@@ -0,0 +1,153 @@
+package loop;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tokens as the tokenizer produces them, packed into parallel int arrays of value, kind, line
+ * and column. Values are interned straight from the source, so each distinct piece of text is
+ * only copied out (and its kind determined) once, no matter how often it appears.
+ */
+final class TokenBuffer {
+  private static final Token.Kind[] KINDS = Token.Kind.values();
+
+  private int[] values;
+  private int[] kinds;
+  private int[] lines;
+  private int[] columns;
+  private int size;
+
+  // Parts of interpolated strings, by token; only allocated once there is one.
+  private Object[] parts;
+
+  // Interned values, their hashes and kinds, and an open-addressed table of (index + 1).
+  private String[] strings = new String[64];
+  private int[] hashes = new int[64];
+  private Token.Kind[] stringKinds = new Token.Kind[64];
+  private int[] table = new int[128];
+  private int stringCount;
+
+  TokenBuffer(int capacity) {
+    capacity = Math.max(capacity, 16);
+    this.values = new int[capacity];
+    this.kinds = new int[capacity];
+    this.lines = new int[capacity];
+    this.columns = new int[capacity];
+  }
+
+  /**
+   * Returns the interned value for the given range of input, copying it out if it's new.
+   */
+  int intern(CharSequence input, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++)
+      hash = 31 * hash + input.charAt(i);
+
+    final int mask = table.length - 1;
+    int slot = (hash ^ (hash >>> 16)) & mask;
+    for (int entry; (entry = table[slot]) != 0; slot = (slot + 1) & mask) {
+      if (hashes[entry - 1] == hash && matches(strings[entry - 1], input, start, end))
+        return entry - 1;
+    }
+
+    return add(slot, input.subSequence(start, end).toString(), hash);
+  }
+
+  int intern(String value) {
+    return intern(value, 0, value.length());
+  }
+
+  private static boolean matches(String string, CharSequence input, int start, int end) {
+    if (string.length() != end - start)
+      return false;
+    for (int i = start; i < end; i++)
+      if (string.charAt(i - start) != input.charAt(i))
+        return false;
+    return true;
+  }
+
+  private int add(int slot, String value, int hash) {
+    if (stringCount == strings.length) {
+      strings = Arrays.copyOf(strings, stringCount * 2);
+      hashes = Arrays.copyOf(hashes, stringCount * 2);
+      stringKinds = Arrays.copyOf(stringKinds, stringCount * 2);
+    }
+    final int index = stringCount++;
+    strings[index] = value;
+    hashes[index] = hash;
+    stringKinds[index] = Token.Kind.determine(value);
+    table[slot] = index + 1;
+
+    // Keep the table at most half full.
+    if (stringCount * 2 > table.length) {
+      table = new int[table.length * 2];
+      final int mask = table.length - 1;
+      for (int i = 0; i < stringCount; i++) {
+        int rehashed = (hashes[i] ^ (hashes[i] >>> 16)) & mask;
+        while (table[rehashed] != 0)
+          rehashed = (rehashed + 1) & mask;
+        table[rehashed] = i + 1;
+      }
+    }
+    return index;
+  }
+
+  void add(int value, int line, int column) {
+    add(value, stringKinds[value], line, column);
+  }
+
+  void add(int value, Token.Kind kind, int line, int column) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+      kinds = Arrays.copyOf(kinds, size * 2);
+      lines = Arrays.copyOf(lines, size * 2);
+      columns = Arrays.copyOf(columns, size * 2);
+      if (parts != null)
+        parts = Arrays.copyOf(parts, size * 2);
+    }
+    values[size] = value;
+    kinds[size] = kind.ordinal();
+    lines[size] = line;
+    columns[size] = column;
+    size++;
+  }
+
+  /**
+   * Sets the parts of the last token added, an interpolated string.
+   */
+  void parts(List<StringToken> parts) {
+    if (this.parts == null)
+      this.parts = new Object[values.length];
+    this.parts[size - 1] = parts;
+  }
+
+  int size() {
+    return size;
+  }
+
+  Token.Kind kind(int i) {
+    return KINDS[kinds[i]];
+  }
+
+  /**
+   * Moves the token at the given index down to another, for filtering in place.
+   */
+  void move(int from, int to) {
+    values[to] = values[from];
+    kinds[to] = kinds[from];
+    lines[to] = lines[from];
+    columns[to] = columns[from];
+    if (parts != null)
+      parts[to] = parts[from];
+  }
+
+  void truncate(int size) {
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  Token token(int i) {
+    return new Token(strings[values[i]], KINDS[kinds[i]], lines[i], columns[i],
+        parts == null ? null : (List<StringToken>) parts[i]);
+  }
+}
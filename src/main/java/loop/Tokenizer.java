@@ -1,46 +1,34 @@
 package loop;
 
-import java.io.IOException;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Stack;
 
 /**
  * @author Dhanji R. Prasanna
  */
 public class Tokenizer {
-  private final String input;
-
-  public Tokenizer(final String input) {
-    try {
-      // Clean input of leading whitespace on empty lines.
-      final StringBuilder cleaned = new StringBuilder();
-
-      final List<String> lines = Util.toLines(new StringReader(input));
-      for (int i = 0, linesSize = lines.size(); i < linesSize; i++) {
-        final String line = lines.get(i);
-        if (!line.trim().isEmpty()) {
-          cleaned.append(line);
-        }
-
-        // Append newlines for all but the last line, because we don't want to introduce an
-        // unnecessary newline at the eof.
-        if (i < linesSize - 1) {
-          cleaned.append('\n');
-        }
-      }
-
-      // Unless it explicitly has one.
-      if (input.endsWith("\n") || input.endsWith("\r")) {
-        cleaned.append('\n');
-      }
+  private final CharSequence input;
+  private final int from, to, firstLine;
+
+  /**
+   * Tokenizes the given source as is, in a single pass: lines holding only whitespace are
+   * treated as empty and \r\n or \r line breaks as \n while lexing, so the source is never
+   * copied or split up front. Any CharSequence will do, e.g. a CharBuffer over a mapped file.
+   */
+  public Tokenizer(final CharSequence input) {
+    this(input, 0, input.length(), 0);
+  }
 
-      this.input = cleaned.toString();
-    } catch (final IOException e) {
-      throw new RuntimeException(e);
-    }
+  /**
+   * Tokenizes just the given range of input, whose first line is the given line. This is how
+   * expressions interpolated into strings are lexed, in place.
+   */
+  Tokenizer(final CharSequence input, final int from, final int to, final int firstLine) {
+    this.input = input;
+    this.from = from;
+    this.to = to;
+    this.firstLine = firstLine;
   }
 
   private static final int NON = 0; // MUST be zero
@@ -77,21 +65,57 @@ public class Tokenizer {
   }
 
   public List<Token> tokenize() {
-    final List<Token> tokens = new ArrayList<Token>();
-    final char[] input = this.input.toCharArray();
+    final CharSequence input = this.input;
+    final int length = this.to;
+    final TokenBuffer tokens = new TokenBuffer((length - this.from) / 4);
 
-    int line = 0, column = 0;
+    int line = this.firstLine, column = 0;
 
-    int i = 0, start = 0;
-    boolean inWhitespace = false, inDelimiter = false, inComment = false, leading = true;
+    int i = this.from, start = this.from;
+    boolean inWhitespace = false, inDelimiter = false, inComment = false, leading = true, lineStart = true;
     char inStringSequence = 0;
-    for (; i < input.length; i++) {
-      final char c = input[i];
+    for (; i < length; i++) {
+      if (lineStart) {
+        lineStart = false;
+
+        // Skip over lines holding only whitespace, as though they were empty.
+        final int endOfBlank = Tokenizer.endOfBlankLine(input, i, length);
+        if (endOfBlank > i) {
+          // Baked as though at the blank line's break, which is where it would have ended.
+          if (inStringSequence == 0 && i > start) {
+            Tokenizer.bakeToken(tokens, input, i, start, endOfBlank < length ? line + 1 : line,
+                endOfBlank < length ? 0 : column);
+          }
+          if (inStringSequence == 0) {
+            start = endOfBlank;
+          }
+
+          i = endOfBlank;
+          if (i == length) {
+            break;
+          }
+        }
+      }
+
+      char c = input.charAt(i);
+      if (c == '\r') {
+        // A \r before \n ends whatever came before it as though it were the \n, otherwise it
+        // ends the line by itself. Strings keep it, and have it normalized when baked.
+        if (i + 1 < length && input.charAt(i + 1) == '\n') {
+          if (inStringSequence == 0 && !inComment) {
+            Tokenizer.bakeToken(tokens, input, i, start, line + 1, 0);
+            start = i + 1;
+          }
+          continue;
+        }
+        c = '\n';
+      }
       column++;
 
       if (c == '\n') {
         line++;
         column = 0;
+        lineStart = true;
       }
 
       // strings and sequences
@@ -158,7 +182,7 @@ public class Tokenizer {
 
         // leading whitespace is a special token...
         if (leading) {
-          tokens.add(new Token(" ", Token.Kind.INDENT, line, column));
+          tokens.add(tokens.intern(" "), Token.Kind.INDENT, line, column);
         }
 
         // skip whitespace
@@ -214,61 +238,62 @@ public class Tokenizer {
     return this.cleanTokens(tokens);
   }
 
-  private List<Token> cleanTokens(final List<Token> tokens) {
-    // Analyze token stream and remove line breaks inside groups and such.
+  private List<Token> cleanTokens(final TokenBuffer tokens) {
+    // Analyze token stream and remove line breaks inside groups and such, in place.
     int groups = 0;
     Stack<Token.Kind> groupStack = new Stack<Token.Kind>();
 
-    for (final ListIterator<Token> iterator = tokens.listIterator(); iterator.hasNext();) {
-      final Token token = iterator.next();
+    int kept = 0;
+    for (int i = 0, size = tokens.size(); i < size; i++) {
+      final Token.Kind kind = tokens.kind(i);
 
-      if (Token.Kind.LPAREN == token.kind || Token.Kind.LBRACE == token.kind || Token.Kind.LBRACKET == token.kind) {
-        groupStack.push(token.kind);
+      if (Token.Kind.LPAREN == kind || Token.Kind.LBRACE == kind || Token.Kind.LBRACKET == kind) {
+        groupStack.push(kind);
         groups++;
-      } else if (Token.Kind.RPAREN == token.kind || Token.Kind.RBRACE == token.kind
-          || Token.Kind.RBRACKET == token.kind) {
-        if (!groupStack.empty() && groupStack.peek() == token.kind) {
+      } else if (Token.Kind.RPAREN == kind || Token.Kind.RBRACE == kind || Token.Kind.RBRACKET == kind) {
+        if (!groupStack.empty() && groupStack.peek() == kind) {
           groupStack.pop();
         }
         groups--;
       }
 
       // Remove token.
-      if (groups > 0 && (token.kind == Token.Kind.EOL || token.kind == Token.Kind.INDENT)) {
-        iterator.remove();
+      if (groups > 0 && (kind == Token.Kind.EOL || kind == Token.Kind.INDENT)) {
+        continue;
       }
+      tokens.move(i, kept++);
     }
+    tokens.truncate(kept);
 
-    // Iterate again and dress function bodies with { }
+    // Go again and dress function bodies with { }, building the final list as we go.
+    final List<Token> cleaned = new ArrayList<Token>(kept + kept / 8);
     groupStack = new Stack<Token.Kind>();
-    for (final ListIterator<Token> iterator = tokens.listIterator(); iterator.hasNext();) {
-      final Token token = iterator.next();
+    for (int i = 0; i < kept; i++) {
+      final Token token = tokens.token(i);
 
       // Insert new function start token if necessary.
       if (Tokenizer.isThinOrFatArrow(token)) {
-        // Don't bother doing this if there is already an lbrace next.
-        if (iterator.hasNext() && iterator.next().kind != Token.Kind.LBRACE) {
-          iterator.previous();
-          iterator.add(new Token("{", Token.Kind.LBRACE, token.line, token.column));
-          groupStack.push(Token.Kind.LBRACE);
+        cleaned.add(token);
+
+        // Don't bother doing this if there is already an lbrace next (which is then passed over).
+        if (i + 1 < kept) {
+          if (tokens.kind(i + 1) != Token.Kind.LBRACE) {
+            cleaned.add(new Token("{", Token.Kind.LBRACE, token.line, token.column));
+            groupStack.push(Token.Kind.LBRACE);
+          } else {
+            cleaned.add(tokens.token(++i));
+          }
         }
+        continue;
       }
 
-      Token previous = null;
-      if (iterator.previousIndex() - 1 >= 0) {
-        previous = tokens.get(iterator.previousIndex() - 1);
-      }
-
+      final Token previous = cleaned.isEmpty() ? null : cleaned.get(cleaned.size() - 1);
       if (token.kind == Token.Kind.EOL && previous != null
           && (Tokenizer.isThinOrFatArrow(previous) || previous.kind == Token.Kind.EOL)
           || token.kind == Token.Kind.RPAREN && groups > 0) {
 
         while (!groupStack.isEmpty() && groupStack.peek() == Token.Kind.LBRACE) {
-          // Add before cursor.
-          final Token prev = iterator.previous();
-          iterator.add(new Token("}", Token.Kind.RBRACE, prev.line, prev.column));
-          iterator.next();
-
+          cleaned.add(new Token("}", Token.Kind.RBRACE, token.line, token.column));
           groupStack.pop();
         }
       }
@@ -277,27 +302,24 @@ public class Tokenizer {
         groupStack.push(Token.Kind.LPAREN);
       } else if (Token.Kind.RPAREN == token.kind) {
         while (groupStack.peek() != Token.Kind.LPAREN) {
-          // Add before cursor.
-          final Token prev = iterator.previous();
-          iterator.add(new Token("}", Token.Kind.RBRACE, prev.line, prev.column));
-          iterator.next();
-
+          cleaned.add(new Token("}", Token.Kind.RBRACE, token.line, token.column));
           groupStack.pop();
         }
 
         // Pop the matching lparen.
         groupStack.pop();
       }
+      cleaned.add(token);
     }
 
     // Close dangling functions
     while (!groupStack.isEmpty()) {
       if (groupStack.pop() == Token.Kind.LBRACE) {
-        tokens.add(new Token("}", Token.Kind.RBRACE, 0, 0));
+        cleaned.add(new Token("}", Token.Kind.RBRACE, 0, 0));
       }
     }
 
-    return tokens;
+    return cleaned;
   }
 
   private static boolean isThinOrFatArrow(final Token token) {
@@ -331,13 +353,101 @@ public class Tokenizer {
     return Tokenizer.DELIMITERS[c] != Tokenizer.NON;
   }
 
-  private static void bakeToken(final List<Token> tokens, final char[] input, final int i, final int start,
+  /**
+   * If the line starting at the given index holds only whitespace, returns the index of its
+   * line break (or the end of input). Otherwise returns the index itself.
+   */
+  private static int endOfBlankLine(final CharSequence input, final int lineStart, final int length) {
+    int i = lineStart;
+    for (; i < length; i++) {
+      final char c = input.charAt(i);
+      if (c == '\n' || c == '\r') {
+        return i;
+      }
+      if (c > ' ') {
+        return lineStart;
+      }
+    }
+    return i;
+  }
+
+  /**
+   * Normalizes the line breaks in a token that spans lines (i.e. a multiline string), and
+   * empties any of its lines that hold only whitespace, as for the rest of the source.
+   */
+  private static String normalizeLines(final String value) {
+    final StringBuilder builder = new StringBuilder(value.length());
+    int lineStart = 0;
+    for (int i = 0, length = value.length(); i <= length; i++) {
+      final char c = i < length ? value.charAt(i) : '\n';
+      if (c != '\n' && c != '\r') {
+        continue;
+      }
+
+      final String line = value.substring(lineStart, i);
+      if (!line.trim().isEmpty()) {
+        builder.append(line);
+      }
+      if (i < length) {
+        builder.append('\n');
+      }
+
+      if (c == '\r' && i + 1 < length && value.charAt(i + 1) == '\n') {
+        i++;
+      }
+      lineStart = i + 1;
+    }
+    return builder.toString();
+  }
+
+  private static void bakeToken(final TokenBuffer tokens, final CharSequence input, final int i, final int start,
       final int line, final int column) {
     if (i > start) {
-      final String value = new String(input, start, i - start);
+      final int value;
+      List<StringToken> parts = null;
+      if (i - start > 1 ? Tokenizer.spansLines(input, start, i) : input.charAt(start) == '\r') {
+        final String normalized = Tokenizer.normalizeLines(input.subSequence(start, i).toString());
+        value = tokens.intern(normalized);
+        if (Tokenizer.isLerp(normalized, 0, normalized.length())) {
+          parts = StringLerpTokenizer.tokenize(normalized, 0, normalized.length(),
+              line - StringLerpTokenizer.countLines(normalized, 0, normalized.length()));
+        }
+      } else {
+        value = tokens.intern(input, start, i);
+        if (Tokenizer.isLerp(input, start, i)) {
+          parts = StringLerpTokenizer.tokenize(input, start, i, line);
+        }
+      }
+
+      tokens.add(value, line, column);
+      if (parts != null) {
+        tokens.parts(parts);
+      }
+    }
+  }
 
-      // remove this disgusting hack when you can fix the lexer.
-      tokens.add(new Token(value, Token.Kind.determine(value), line, column));
+  /**
+   * Whether the given range is a double-quoted string with expressions to interpolate.
+   */
+  private static boolean isLerp(final CharSequence input, final int start, final int end) {
+    if (input.charAt(start) != '"') {
+      return false;
+    }
+    for (int i = start + 1; i < end - 1; i++) {
+      if (input.charAt(i) == '@' && input.charAt(i + 1) == '{') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean spansLines(final CharSequence input, final int start, final int end) {
+    for (int i = start; i < end; i++) {
+      final char c = input.charAt(i);
+      if (c == '\n' || c == '\r') {
+        return true;
+      }
     }
+    return false;
   }
 }
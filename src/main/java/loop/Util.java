@@ -1,6 +1,7 @@
 package loop;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -34,6 +35,20 @@ public class Util {
     }
   }
 
+  public static byte[] toBytes(final InputStream input) {
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[Util.DEFAULT_BUFFER_SIZE];
+      int n;
+      while (-1 != (n = input.read(buffer))) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    } catch (final IOException e) {
+      throw new RuntimeException("Error while reading an InputStream", e);
+    }
+  }
+
   public static List<String> toLines(final Reader input) throws IOException {
     final BufferedReader reader = new BufferedReader(input);
     final List<String> list = new ArrayList<String>();
@@ -8,8 +8,11 @@ import loop.runtime.regex.NamedPattern;
 
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Set;
 import java.util.Stack;
 
 /**
@@ -20,6 +23,11 @@ import java.util.Stack;
  * with no ill-effects for semantically correct programs.
  */
 class Verifier {
+  // Shared memory that parallel comprehensions may not touch, see verifyParallelPurity().
+  private static final String MEMORY = "loop.runtime.Memory";
+  private static final String CHANNEL = "loop.runtime.Channel";
+  private static final String CURRENT_MEMORY = "currentMemory";
+
   private final Unit unit;
   private final Stack<FunctionContext> functionStack = new Stack<FunctionContext>();
 
@@ -30,7 +38,14 @@ class Verifier {
   }
 
   public List<AnnotatedError> verify() {
-    for (FunctionDecl functionDecl : unit.functions()) {
+    return verify(unit.functions());
+  }
+
+  /**
+   * Verifies just the given functions of the unit, e.g. those the shell has just added to it.
+   */
+  public List<AnnotatedError> verify(Collection<FunctionDecl> functions) {
+    for (FunctionDecl functionDecl : functions) {
       verify(functionDecl);
     }
 
@@ -158,6 +173,26 @@ class Verifier {
         addError("Incorrect number of patterns in: '" + function.name() + "' (expected " + argsSize
             + " found " + patternsSize + ")", patternRule.sourceLine, patternRule.sourceColumn);
 
+    } else if (node instanceof Comprehension) {
+      Comprehension comprehension = (Comprehension) node;
+      if (comprehension.parallel()) {
+        verifyParallelPurity(comprehension.filter());
+        for (Node projection : comprehension.projection())
+          verifyParallelPurity(projection);
+      }
+
+      // Each stage of a fused comprehension sees only its own variable, not upstream ones.
+      for (Comprehension stage = comprehension; stage.upstream() != null; stage = stage.upstream()) {
+        for (Comprehension upstream = stage.upstream(); upstream != null; upstream = upstream.upstream()) {
+          String name = upstream.var().name;
+          if (name.equals(stage.var().name) || resolveVar(name))
+            continue;
+
+          verifyOutOfScope(stage.filter(), name);
+          for (Node projection : stage.projection())
+            verifyOutOfScope(projection, name);
+        }
+      }
     } else if (node instanceof Guard) {
       Guard guard = (Guard) node;
       verifyNode(guard.expression);
@@ -191,6 +226,128 @@ class Verifier {
     }
   }
 
+  // Reports references to the given variable, which is out of scope here.
+  private void verifyOutOfScope(Node node, String name) {
+    if (node == null)
+      return;
+
+    if (node instanceof Variable && name.equals(((Variable) node).name))
+      addError("Cannot resolve symbol: " + name, node.sourceLine, node.sourceColumn);
+    if (node instanceof Comprehension && name.equals(((Comprehension) node).var().name))
+      return;
+
+    for (Node child : node.children())
+      verifyOutOfScope(child, name);
+
+    if (node instanceof Call)
+      verifyOutOfScope(((Call) node).args(), name);
+  }
+
+  /**
+   * Parallel comprehensions run their filter and projection on fork/join worker threads, so
+   * they may not touch unsynchronized global memory or the (thread-bound) channel memory:
+   * neither directly, nor through a where-block variable bound to it, nor through the loop
+   * functions they call.
+   */
+  private void verifyParallelPurity(Node node) {
+    if (node == null)
+      return;
+
+    String memory = sharedMemoryReachedBy(node, new HashSet<Node>());
+    if (memory != null) {
+      // Call chains carry no position of their own, so point at their receiver.
+      Node at = node.sourceLine == 0 && !node.children().isEmpty() ? node.children().get(0) : node;
+      addError("Parallel comprehensions may not access shared memory: " + memory
+          + " (Hint: use transactional cells instead)", at.sourceLine, at.sourceColumn);
+      return;
+    }
+
+    for (Node child : node.children())
+      verifyParallelPurity(child);
+
+    if (node instanceof Call)
+      verifyParallelPurity(((Call) node).args());
+  }
+
+  // The shared memory that this node accesses itself, or through the where-block variable or
+  // loop function it names. Null if none.
+  private String sharedMemoryReachedBy(Node node, Set<Node> visited) {
+    if (!visited.add(node))
+      return null;
+
+    if (node instanceof CallChain && node.children().size() > 1
+        && node.children().get(0) instanceof JavaLiteral) {
+      String type = resolveJavaType((JavaLiteral) node.children().get(0));
+      Node member = node.children().get(1);
+      if (MEMORY.equals(type))
+        return type;
+      if (CHANNEL.equals(type) && member instanceof MemberAccess
+          && CURRENT_MEMORY.equals(((MemberAccess) member).name()))
+        return type + '.' + CURRENT_MEMORY;
+
+    } else if (node instanceof Variable) {
+      String name = ((Variable) node).name;
+      for (FunctionContext context : functionStack) {
+        for (Node inner : context.function.whereBlock()) {
+          if (inner instanceof Assignment && ((Assignment) inner).lhs() instanceof Variable
+              && name.equals(((Variable) ((Assignment) inner).lhs()).name))
+            return sharedMemoryWithin(((Assignment) inner).rhs(), visited);
+        }
+      }
+
+    } else if (node instanceof Call && !((Call) node).isJavaStatic() && !((Call) node).isPostfix()) {
+      FunctionDecl function = resolveCall(((Call) node).name);
+      if (function != null && visited.add(function)) {
+        String memory = sharedMemoryWithin(function, visited);
+        for (Node inner : function.whereBlock()) {
+          if (memory == null)
+            memory = sharedMemoryWithin(inner, visited);
+        }
+        if (memory != null)
+          return memory + " (via " + function.name() + "())";
+      }
+    }
+    return null;
+  }
+
+  // The shared memory that anything within the given tree reaches. Null if none.
+  private String sharedMemoryWithin(Node node, Set<Node> visited) {
+    if (node == null)
+      return null;
+
+    String memory = sharedMemoryReachedBy(node, visited);
+    if (memory != null)
+      return memory;
+
+    List<Node> parts = new ArrayList<Node>(node.children());
+    if (node instanceof Call)
+      parts.add(((Call) node).args());
+    else if (node instanceof PatternRule)
+      parts.add(((PatternRule) node).rhs);
+    else if (node instanceof Guard) {
+      parts.add(((Guard) node).expression);
+      parts.add(((Guard) node).line);
+    } else if (node instanceof Comprehension) {
+      Comprehension comprehension = (Comprehension) node;
+      parts.addAll(comprehension.projection());
+      parts.add(comprehension.filter());
+      parts.add(comprehension.inList());
+    }
+
+    for (Node part : parts) {
+      memory = sharedMemoryWithin(part, visited);
+      if (memory != null)
+        return memory;
+    }
+    return null;
+  }
+
+  private String resolveJavaType(JavaLiteral literal) {
+    if (literal.value.indexOf('.') != -1)
+      return literal.value;
+    return unit.resolveJavaType(literal.value);
+  }
+
   private boolean resolveType(TypeLiteral literal, Class<?> superType) {
     // First resolve as Loop type. Then Java type.
     ClassDecl classDecl = unit.resolve(literal.name, true);
@@ -261,6 +418,10 @@ class Verifier {
         if (pattern instanceof MapPattern) {
           // Look in destructuring pairs
           for (Node child : pattern.children()) {
+            // Skip the optional type guard.
+            if (child instanceof TypeLiteral)
+              continue;
+
             Variable lhs = (Variable)((DestructuringPair)child).lhs;
             if (name.equals(lhs.name))
               return true;
@@ -6,6 +6,8 @@ import loop.Parser;
  * A right to left assignment statement.
  */
 public class Assignment extends Node {
+  private static final long serialVersionUID = 1L;
+
   private final Node condition;
   public Assignment(Node condition) {
     this.condition = condition;
@@ -15,6 +17,10 @@ public class Assignment extends Node {
     this(null);
   }
 
+  public Node condition() {
+    return condition;
+  }
+
   public Node lhs() {
     return children.get(0);
   }
@@ -4,6 +4,8 @@ package loop.ast;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class BigIntegerLiteral extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final String value;
   public BigIntegerLiteral(String value) {
     this.value = value.replace("@", "");
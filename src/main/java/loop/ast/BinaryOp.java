@@ -6,6 +6,8 @@ import loop.Token;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class BinaryOp extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final Token operator;
 
   public BinaryOp(Token operator) {
@@ -6,6 +6,8 @@ import loop.Token;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class BooleanLiteral extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final boolean value;
   public BooleanLiteral(Token token) {
     this.value = token.kind == Token.Kind.TRUE;
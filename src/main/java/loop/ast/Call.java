@@ -6,6 +6,8 @@ import loop.Parser;
  * Represents a method call or member dereference.
  */
 public class Call extends MemberAccess {
+  private static final long serialVersionUID = 1L;
+
   public final String name;
 
   private CallArguments args;
@@ -13,6 +13,8 @@ import loop.Parser;
  * (arg0: x, arg1: x + 1, arg2: [1..3])
  */
 public class CallArguments extends Node {
+  private static final long serialVersionUID = 1L;
+
   private final boolean positional;
 
   public CallArguments(boolean positional) {
@@ -24,6 +26,8 @@ public class CallArguments extends Node {
   }
 
   public static class NamedArg extends Node {
+    private static final long serialVersionUID = 1L;
+
     public final String name;
     public final Node arg;
 
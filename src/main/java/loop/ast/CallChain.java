@@ -4,6 +4,8 @@ package loop.ast;
  * A call chain of dereferences or method calls, strung together.
  */
 public class CallChain extends Node {
+  private static final long serialVersionUID = 1L;
+
   public boolean nullSafe = true;
 
   public void nullSafe(boolean nullSafe) {
@@ -4,9 +4,14 @@ package loop.ast;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class ClassDecl extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final String name;
   public final boolean immutable;
 
+  // The module (i.e. generated Java class) that holds this type's descriptor.
+  public String moduleName;
+
   public ClassDecl(String name, boolean immutable) {
     this.name = name;
     this.immutable = immutable;
@@ -9,10 +9,23 @@ import java.util.List;
  * A list comprehension
  */
 public class Comprehension extends Node {
+  private static final long serialVersionUID = 1L;
+
+  // Contextual keyword, i.e. "for lazy x in ls" streams results instead of building a list.
+  public static final String LAZY = "lazy";
+
+  // Contextual keyword, i.e. "for par x in ls" evaluates elements in parallel, preserving order.
+  public static final String PAR = "par";
+
   private List<Node> projection = new ArrayList<Node>();
   private final Variable var;
   private Node inList;
   private Node filter;
+  private boolean lazy;
+  private boolean parallel;
+
+  // Set when fused with the comprehension that produces this one's input, see Reducer.
+  private Comprehension upstream;
 
   public Comprehension(Node var, Node inList, Node filter) {
     this.var = (Variable) var;
@@ -48,6 +61,37 @@ public class Comprehension extends Node {
     return var;
   }
 
+  /**
+   * The comprehension whose output this one consumes, when the two have been fused into a
+   * single loop. In that case there is no separate inList.
+   */
+  public Comprehension upstream() {
+    return upstream;
+  }
+
+  public void upstream(Comprehension upstream) {
+    this.upstream = upstream;
+    this.inList = null;
+  }
+
+  public boolean lazy() {
+    return lazy;
+  }
+
+  public Comprehension lazy(boolean lazy) {
+    this.lazy = lazy;
+    return this;
+  }
+
+  public boolean parallel() {
+    return parallel;
+  }
+
+  public Comprehension parallel(boolean parallel) {
+    this.parallel = parallel;
+    return this;
+  }
+
   @Override
   public String toSymbol() {
     StringBuilder symbol = new StringBuilder("(cpr ");
@@ -55,9 +99,11 @@ public class Comprehension extends Node {
       symbol.append(Parser.stringify(child)).append(' ');
     }
     return symbol.append("for ")
+        .append(lazy ? LAZY + " " : "")
+        .append(parallel ? PAR + " " : "")
         .append(var.toSymbol())
         .append(" in ")
-        .append(Parser.stringify(inList))
+        .append(upstream != null ? upstream.toSymbol() : Parser.stringify(inList))
         .append(filter == null ? "" : " if " + Parser.stringify(filter))
         .append(")")
         .toString();
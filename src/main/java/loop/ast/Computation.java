@@ -4,6 +4,8 @@ package loop.ast;
  * Represents an expression fragment.
  */
 public class Computation extends Node {
+  private static final long serialVersionUID = 1L;
+
   @Override
   public String toSymbol() {
     return "comput";
@@ -6,6 +6,8 @@ import loop.Parser;
  * Represents a constructor call on either Java or Loop types.
  */
 public class ConstructorCall extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final String modulePart;
   public final String name;
 
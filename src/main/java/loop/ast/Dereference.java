@@ -4,6 +4,8 @@ package loop.ast;
  * Represents a method call or member dereference.
  */
 public class Dereference extends MemberAccess {
+  private static final long serialVersionUID = 1L;
+
   private final String name;
 
   private boolean javaStatic;
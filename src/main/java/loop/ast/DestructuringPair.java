@@ -6,6 +6,8 @@ import loop.Parser;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class DestructuringPair extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final Node lhs;
   public Node rhs;
 
@@ -4,6 +4,8 @@ package loop.ast;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class DoubleLiteral extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final double value;
   public DoubleLiteral(String value) {
     this.value = Double.parseDouble(value);
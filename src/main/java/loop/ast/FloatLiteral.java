@@ -4,6 +4,8 @@ package loop.ast;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class FloatLiteral extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final float value;
   public FloatLiteral(String value) {
     // Strip trailing 'L'
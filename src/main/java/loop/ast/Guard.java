@@ -6,6 +6,8 @@ import loop.Parser;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class Guard extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final Node expression;
   public final Node line;
 
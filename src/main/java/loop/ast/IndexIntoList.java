@@ -25,6 +25,8 @@ import loop.Parser;
  *
  */
 public class IndexIntoList extends Node {
+  private static final long serialVersionUID = 1L;
+
   private Node from;
   private final boolean slice;
   private Node to;
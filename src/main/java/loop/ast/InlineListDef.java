@@ -4,6 +4,8 @@ package loop.ast;
  * Inline list definition.
  */
 public class InlineListDef extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final boolean isSet;
 
   public InlineListDef(boolean set) {
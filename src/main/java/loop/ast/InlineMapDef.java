@@ -5,6 +5,8 @@ package loop.ast;
  * by alternating keys/values as 1st-level children of this node.
  */
 public class InlineMapDef extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final boolean isTree;
 
   public InlineMapDef(boolean isTree) {
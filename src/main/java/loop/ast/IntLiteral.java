@@ -4,6 +4,8 @@ package loop.ast;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class IntLiteral extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final int value;
   public IntLiteral(String value) {
     this.value = Integer.parseInt(value);
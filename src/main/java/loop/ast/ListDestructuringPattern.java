@@ -6,6 +6,8 @@ package loop.ast;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class ListDestructuringPattern extends Node {
+  private static final long serialVersionUID = 1L;
+
 
   @Override public String toSymbol() {
     return "[]";
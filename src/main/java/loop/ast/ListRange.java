@@ -6,6 +6,8 @@ import loop.Parser;
  * An inline list. Can be a range or
  */
 public class ListRange extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final Node from;
   private final boolean slice;
   public final Node to;
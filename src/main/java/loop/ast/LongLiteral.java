@@ -4,6 +4,8 @@ package loop.ast;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class LongLiteral extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final long value;
   public LongLiteral(String value) {
     // Strip trailing 'L'
@@ -4,6 +4,8 @@ package loop.ast;
  * Any kind of member access, a function call or a field/property dereference.
  */
 public abstract class MemberAccess extends Node {
+  private static final long serialVersionUID = 1L;
+
   public abstract Node postfix(boolean postfix);
 
   public abstract MemberAccess javaStatic(boolean javaStatic);
@@ -1,5 +1,6 @@
 package loop.ast;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -10,7 +11,9 @@ import loop.Token;
  *
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
-public abstract class Node {
+public abstract class Node implements Serializable {
+  private static final long serialVersionUID = 1L;
+
   // the rest of the tree under this node
   protected final List<Node> children = new ArrayList<Node>();
 
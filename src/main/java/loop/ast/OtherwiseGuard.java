@@ -4,6 +4,8 @@ package loop.ast;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class OtherwiseGuard extends Node {
+  private static final long serialVersionUID = 1L;
+
   @Override public String toSymbol() {
     return "otherwise";
   }
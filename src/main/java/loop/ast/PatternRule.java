@@ -12,6 +12,8 @@ import java.util.List;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class PatternRule extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final List<Node> patterns = new ArrayList<Node>();
   public Node rhs;
 
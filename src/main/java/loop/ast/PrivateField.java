@@ -4,6 +4,8 @@ package loop.ast;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class PrivateField extends Node {
+  private static final long serialVersionUID = 1L;
+
   private final String name;
 
   public PrivateField(String name) {
@@ -4,6 +4,8 @@ package loop.ast;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class RegexLiteral extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final String value;
 
   public RegexLiteral(String value) {
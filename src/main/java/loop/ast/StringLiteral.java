@@ -9,11 +9,19 @@ import java.util.List;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class StringLiteral extends Node {
+  private static final long serialVersionUID = 1L;
+
   public static final String NEWLINE_ESCAPES = "[^\\\\]\\\\n";
   public final String value;
   public final List<Node> parts;
 
   public StringLiteral(String value) {
+    this(new Token(value, Token.Kind.STRING, 0, 0));
+  }
+
+  public StringLiteral(Token token) {
+    final String value = token.value;
+
     // Single quote strings cannot be lerped.
     if (value.charAt(0) == '\'') {
       parts = null;
@@ -23,24 +31,47 @@ public class StringLiteral extends Node {
 
     this.value = value;
 
-    // Parse any expressions embedded in this string.
-    List<StringToken> stringTokens = StringLerpTokenizer.tokenize(value);
+    // Parse any expressions embedded in this string, which the tokenizer has already lexed.
+    List<StringToken> stringTokens = token.parts != null ? token.parts : StringLerpTokenizer.tokenize(value);
     parts = new ArrayList<Node>(stringTokens.size());
     for (StringToken stringToken : stringTokens) {
-      if (stringToken.kind == StringToken.Kind.EXPRESSION) {
-        List<Token> tokens = new Tokenizer(stringToken.value).tokenize();
-
-        parts.add(new Parser(tokens).computation());
-      } else
-        parts.add(new StringLiteral(stringToken.value, null));
+      if (stringToken.kind == StringToken.Kind.EXPRESSION)
+        parts.add(new Parser(stringToken.tokens).computation());
+      else
+        parts.add(new StringLiteral(Escaper.unescape_perl_string(stringToken.value), null));
     }
   }
 
   private StringLiteral(String value, List<Node> parts) {
-    this.value = Escaper.unescape_perl_string(value);
+    this.value = value;
     this.parts = parts;
   }
 
+  /**
+   * A plain string of the given text, which is taken as is. Used for strings computed at
+   * compile time.
+   */
+  public static StringLiteral of(String text) {
+    return new StringLiteral('\'' + text + '\'', null);
+  }
+
+  /**
+   * The text of this string if it is known at compile time, i.e. it interpolates nothing.
+   * Otherwise null.
+   */
+  public String constantValue() {
+    if (parts == null)
+      return unquotedValue();
+
+    StringBuilder text = new StringBuilder();
+    for (Node part : parts) {
+      if (!(part instanceof StringLiteral))
+        return null;
+      text.append(((StringLiteral) part).value);
+    }
+    return text.toString();
+  }
+
   public String unquotedValue() {
     return value != null ? value.substring(1, value.length() - 1) : null; // strip quotes
   }
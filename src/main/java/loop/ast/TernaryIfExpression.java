@@ -4,6 +4,8 @@ package loop.ast;
  * Same as the ?: operator in Java.
  */
 public class TernaryIfExpression extends Node {
+  private static final long serialVersionUID = 1L;
+
   @Override
   public String toSymbol() {
     return "if-then-else";
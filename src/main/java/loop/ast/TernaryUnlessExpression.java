@@ -4,6 +4,8 @@ package loop.ast;
  * Same as the ?: operator in Java except with a flipped condition.
  */
 public class TernaryUnlessExpression extends Node {
+  private static final long serialVersionUID = 1L;
+
   @Override
   public String toSymbol() {
     return "unless-then-else";
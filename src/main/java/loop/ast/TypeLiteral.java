@@ -4,6 +4,8 @@ package loop.ast;
  * A Type literal. Similar to XX.class in Java.
  */
 public class TypeLiteral extends Node {
+  private static final long serialVersionUID = 1L;
+
   public static final String NOTHING = "Nothing";
   public final String name;
 
@@ -4,6 +4,8 @@ package loop.ast;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class Variable extends Node {
+  private static final long serialVersionUID = 1L;
+
   public String name;
   public String type;
 
@@ -6,7 +6,11 @@ import loop.ast.Node;
  * Represents a declaration of arguments of a function.
  */
 public class ArgDeclList extends Node {
+  private static final long serialVersionUID = 1L;
+
   public static class Argument extends Node {
+    private static final long serialVersionUID = 1L;
+
     private final String name;
     private final String type;
 
@@ -15,6 +15,8 @@ import java.util.List;
  * A declaration of a function. May be free or a member of a class.
  */
 public class FunctionDecl extends Node {
+  private static final long serialVersionUID = 1L;
+
   public static FunctionDecl STATIC_INITIALIZER = new FunctionDecl("<clinit>", null);
 
   public String moduleName;
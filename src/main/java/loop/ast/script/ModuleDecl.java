@@ -9,6 +9,8 @@ import java.util.List;
  * Import declaration at the top of a script.
  */
 public class ModuleDecl extends Node {
+  private static final long serialVersionUID = 1L;
+
   public static final ModuleDecl SHELL = new ModuleDecl(Arrays.asList("_shell"));
   public static final ModuleDecl DEFAULT = new ModuleDecl(Arrays.asList("_default"));
 
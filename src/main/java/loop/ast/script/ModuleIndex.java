@@ -0,0 +1,219 @@
+package loop.ast.script;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Resolves module names to loop source files. Resolution order is:
+ * <ol>
+ * <li>the current directory, e.g. require a.b is ./a/b.loop</li>
+ * <li>each directory on the search path, set with -Dloop.path (separated like the classpath)</li>
+ * <li>the classpath root, e.g. a/b.loop in any directory or JAR on the classpath</li>
+ * <li>any .loop file on the classpath whose path ends in the module's path, e.g. x/y/a/b.loop</li>
+ * </ol>
+ * The last is kept for compatibility with scripts that require modules by the tail of their
+ * path. It is backed by an index of .loop files keyed by file name, built lazily: classpath
+ * elements (directories or JARs) are scanned in order only until the module is found, so a
+ * large classpath is never walked eagerly, and the first match in classpath order wins. JARs
+ * inside classpath directories are searched too, but not JARs nested in other JARs.
+ * <p/>
+ * A module missing from an index built (even partly) by earlier lookups is looked for again in
+ * a fresh one, so .loop files and JARs added to classpath directories since are found. The
+ * listings of JARs are kept across rescans for as long as each JAR is unchanged.
+ */
+class ModuleIndex {
+  static final String SEARCH_PATH_PROPERTY = "loop.path";
+
+  // Classpath elements, in classpath order.
+  private final List<File> elements = new ArrayList<File>();
+
+  // Classpath elements not yet scanned into the index, in classpath order.
+  private final Deque<File> unscanned = new ArrayDeque<File>();
+
+  // Indexed .loop files by file name (without extension), in classpath order.
+  private final Map<String, List<Resource>> index = new HashMap<String, List<Resource>>();
+
+  // The .loop files in each JAR scanned, as of the JAR's last modification.
+  private final Map<File, JarListing> jars = new HashMap<File, JarListing>();
+
+  ModuleIndex() {
+    for (final String element : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      if (!element.isEmpty()) {
+        this.elements.add(new File(element));
+      }
+    }
+    this.unscanned.addAll(this.elements);
+  }
+
+  /**
+   * Returns the source file for the given module (e.g. a/b), or null if there is none.
+   */
+  URL resolve(final String moduleName) {
+    final String path = moduleName + ModuleLoader.LOOP_FILES_EXT;
+
+    final File local = new File(path);
+    if (local.isFile()) {
+      return ModuleIndex.toUrl(local);
+    }
+
+    final String searchPath = System.getProperty(ModuleIndex.SEARCH_PATH_PROPERTY);
+    if (searchPath != null) {
+      for (final String directory : searchPath.split(File.pathSeparator)) {
+        final File file = new File(directory, path);
+        if (!directory.isEmpty() && file.isFile()) {
+          return ModuleIndex.toUrl(file);
+        }
+      }
+    }
+
+    final URL resource = Thread.currentThread().getContextClassLoader().getResource(path);
+    if (resource != null) {
+      return resource;
+    }
+
+    return this.findBySuffix(moduleName);
+  }
+
+  private synchronized URL findBySuffix(final String moduleName) {
+    final String fileName = moduleName.substring(moduleName.lastIndexOf('/') + 1);
+
+    // Elements scanned earlier may predate the module's file, so miss only once a fresh index does.
+    final boolean stale = this.unscanned.size() < this.elements.size();
+    URL found = this.scanUntilFound(fileName, moduleName);
+    if (found == null && stale) {
+      this.index.clear();
+      this.unscanned.addAll(this.elements);
+      found = this.scanUntilFound(fileName, moduleName);
+    }
+    return found;
+  }
+
+  private URL scanUntilFound(final String fileName, final String moduleName) {
+    URL found = this.lookup(fileName, moduleName);
+    while (found == null && !this.unscanned.isEmpty()) {
+      this.scan(this.unscanned.poll());
+      found = this.lookup(fileName, moduleName);
+    }
+    return found;
+  }
+
+  private URL lookup(final String fileName, final String moduleName) {
+    final List<Resource> candidates = this.index.get(fileName);
+    if (candidates != null) {
+      for (final Resource candidate : candidates) {
+        // Match whole path segments only, so foo doesn't resolve to xfoo.loop.
+        if (candidate.modulePath.equals(moduleName) || candidate.modulePath.endsWith('/' + moduleName)) {
+          return candidate.url;
+        }
+      }
+    }
+    return null;
+  }
+
+  private void scan(final File element) {
+    try {
+      if (element.isDirectory()) {
+        this.scanDirectory(element, "");
+      } else if (element.isFile()) {
+        this.scanJar(element);
+      }
+    } catch (final IOException e) {
+      // Unreadable classpath elements can't contain modules.
+    }
+  }
+
+  private void scanDirectory(final File directory, final String prefix) throws IOException {
+    final File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+
+    for (final File file : files) {
+      if (file.isDirectory()) {
+        this.scanDirectory(file, prefix + file.getName() + '/');
+      } else if (file.getName().endsWith(ModuleLoader.LOOP_FILES_EXT)) {
+        this.add(prefix + file.getName(), ModuleIndex.toUrl(file));
+      } else if (file.getName().endsWith(".jar")) {
+        try {
+          this.scanJar(file);
+        } catch (final IOException e) {
+          // Neither can unreadable JARs, but the rest of the directory still might.
+        }
+      }
+    }
+  }
+
+  private void scanJar(final File jar) throws IOException {
+    JarListing listing = this.jars.get(jar);
+    if (listing == null || listing.lastModified != jar.lastModified()) {
+      listing = new JarListing(jar);
+      this.jars.put(jar, listing);
+    }
+
+    final String base = "jar:" + jar.toURI() + "!/";
+    for (final String entry : listing.loopFiles) {
+      this.add(entry, new URL(base + entry));
+    }
+  }
+
+  private void add(final String path, final URL url) {
+    final String modulePath = path.substring(0, path.length() - ModuleLoader.LOOP_FILES_EXT.length());
+    final String fileName = modulePath.substring(modulePath.lastIndexOf('/') + 1);
+
+    List<Resource> resources = this.index.get(fileName);
+    if (resources == null) {
+      this.index.put(fileName, resources = new ArrayList<Resource>(1));
+    }
+    resources.add(new Resource(modulePath, url));
+  }
+
+  private static URL toUrl(final File file) {
+    try {
+      return file.toURI().toURL();
+    } catch (final MalformedURLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static class JarListing {
+    private final long lastModified;
+    private final List<String> loopFiles = new ArrayList<String>();
+
+    private JarListing(final File jar) throws IOException {
+      this.lastModified = jar.lastModified();
+
+      final JarFile jarFile = new JarFile(jar);
+      try {
+        for (final Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+          final JarEntry entry = entries.nextElement();
+          if (!entry.isDirectory() && entry.getName().endsWith(ModuleLoader.LOOP_FILES_EXT)) {
+            this.loopFiles.add(entry.getName());
+          }
+        }
+      } finally {
+        jarFile.close();
+      }
+    }
+  }
+
+  private static class Resource {
+    private final String modulePath;
+    private final URL url;
+
+    private Resource(final String modulePath, final URL url) {
+      this.modulePath = modulePath;
+      this.url = url;
+    }
+  }
+}
@@ -7,13 +7,25 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
 
 import loop.Executable;
 import loop.LoopClassLoader;
@@ -31,8 +43,11 @@ import loop.runtime.Caller;
  * <p/>
  * Module resolution order is as follows:
  * <ol>
+ * <li>modules compiled ahead of time, under META-INF/loop/ on the classpath</li>
+ * <li>core modules (prelude, etc.)</li>
  * <li>current directory</li>
- * <li>explicit search path</li>
+ * <li>explicit search path, set with -Dloop.path</li>
+ * <li>classpath, see {@link ModuleIndex}</li>
  * </ol>
  *
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
@@ -41,6 +56,10 @@ public enum ModuleLoader {
   INSTANCE;
 
   public static final String LOOP_FILES_EXT = ".loop";
+  public static final String COMPILE_THREADS_PROPERTY = "loop.compile.threads";
+
+  // Marks a module required in a cycle, see loadAndCompileAll().
+  public static final List<Executable> CYCLIC = Collections.unmodifiableList(new ArrayList<Executable>());
 
   private static final Set<String> CORE_MODULES = new HashSet<String>(Arrays.asList("prelude", //
       "console", //
@@ -48,71 +67,119 @@ public enum ModuleLoader {
       "file" //
       ));
 
-  private final Set<String> availableResources = new HashSet<>();
-
   // For faster loading of core modules.
   private final Map<String, String> coreModulesCache = new ConcurrentHashMap<>();
 
   // Prevents cyclic reloading of identical modules.
   private final Map<String, List<Executable>> modules = new ConcurrentHashMap<>();
 
-  // Scan the classpath at startup and map loop files
-  private ModuleLoader() {
-    this.findAvailableResources();
+  // Modules being compiled right now, so that concurrent requirers share a single compile.
+  private final Map<String, FutureTask<List<Executable>>> compilingModules = new ConcurrentHashMap<>();
+
+  // The module being compiled on each thread, and the modules each one is waiting on.
+  private final ThreadLocal<String> compiling = new ThreadLocal<>();
+  private final Map<String, Set<String>> waitingOn = new HashMap<>();
+
+  // Independent dependencies are compiled concurrently on this pool, sized by -Dloop.compile.threads.
+  private static volatile ForkJoinPool compilerPool;
+
+  // Finds module sources; see ModuleIndex for the resolution order.
+  private final ModuleIndex moduleIndex = new ModuleIndex();
+
+  // Source files of modules loaded from the file system, which can be reloaded.
+  private final Map<String, File> sourceFiles = new ConcurrentHashMap<>();
+
+  // Modules being recompiled by a reload on this thread, not yet visible to anyone else.
+  private final ThreadLocal<Map<String, List<Executable>>> staging = new ThreadLocal<>();
+
+  // Set while this thread compiles modules for packaging, see compileRetained().
+  private final ThreadLocal<Boolean> retaining = new ThreadLocal<>();
+
+  public void reset() {
+    this.modules.clear();
+    this.compilingModules.clear();
+    this.sourceFiles.clear();
+    Caller.reset();
+    LoopClassLoader.reset();
   }
 
-  private void findAvailableResources() {
-    final String classpath = System.getProperty("java.class.path");
-    final String[] elements = classpath.split(System.getProperty("path.separator"));
+  public List<Executable> loadAndCompile(final List<String> moduleChain) {
+    return this.loadAndCompileAll(Collections.singletonList(moduleChain)).get(0);
+  }
 
-    for (final String element : elements) {
-      try {
-        final File newFile = new File(element);
+  /**
+   * Loads several modules, compiling independent ones concurrently. Results are in the order
+   * of the given module chains: null for a module that cannot be found, and {@link #CYCLIC}
+   * for one that requires (perhaps transitively) the module currently being compiled.
+   */
+  public List<List<Executable>> loadAndCompileAll(final List<List<String>> moduleChains) {
+    final String requirer = this.compiling.get();
+    final List<String> moduleNames = new ArrayList<>(moduleChains.size());
+    final List<List<Executable>> loaded = new ArrayList<>(moduleChains.size());
+    final List<String> awaited = new ArrayList<>(moduleChains.size());
+
+    for (final List<String> moduleChain : moduleChains) {
+      final String moduleName = ModuleLoader.moduleName(moduleChain);
+      moduleNames.add(moduleName);
+
+      if (requirer != null && !this.await(requirer, moduleName)) {
+        loaded.add(ModuleLoader.CYCLIC);
+      } else {
+        loaded.add(null);
+        awaited.add(moduleName);
+      }
+    }
 
-        if (newFile.isDirectory()) {
-          this.findLoopFilesInDirectory(newFile, newFile.getAbsolutePath());
+    try {
+      final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+      final List<ForkJoinTask<List<Executable>>> tasks = new ArrayList<>(moduleNames.size());
+      int inline = -1;
+      for (int i = 0; i < moduleNames.size(); i++) {
+        final String moduleName = moduleNames.get(i);
+        if (loaded.get(i) == ModuleLoader.CYCLIC || this.modules().containsKey(moduleName)) {
+          tasks.add(null);
+        } else if (inline == -1 || this.staging.get() != null) {
+          // The first module to compile runs on this thread, the rest are forked. Reloads
+          // compile serially since their staged modules are only visible to this thread.
+          tasks.add(null);
+          inline = i;
         } else {
-          this.findLoopFilesInJar(newFile);
+          tasks.add(ModuleLoader.compilerPool().submit(() -> {
+            final Thread thread = Thread.currentThread();
+            final ClassLoader workerClassLoader = thread.getContextClassLoader();
+            thread.setContextClassLoader(contextClassLoader);
+            try {
+              return this.load(moduleName);
+            } finally {
+              thread.setContextClassLoader(workerClassLoader);
+            }
+          }));
         }
-      } catch (final Exception e) {
-
       }
-    }
-  }
 
-  private void findLoopFilesInDirectory(final File directory, final String rootDir) {
-    final File[] files = directory.listFiles();
+      for (int i = 0; i < moduleNames.size(); i++) {
+        if (loaded.get(i) == ModuleLoader.CYCLIC) {
+          continue;
+        }
 
-    for (final File currentFile : files) {
-      if (currentFile.isDirectory()) {
-        this.findLoopFilesInDirectory(currentFile, rootDir);
-      } else {
-        final String absolutePath = currentFile.getAbsolutePath().replace(rootDir, "").replace('\\', '/');
-        if (absolutePath.endsWith(".jar")) {
-          this.findLoopFilesInJar(currentFile);
-        } else if (absolutePath.endsWith(ModuleLoader.LOOP_FILES_EXT)) {
-          this.availableResources.add(absolutePath);
+        final ForkJoinTask<List<Executable>> task = tasks.get(i);
+        loaded.set(i, task == null || i == inline ? this.load(moduleNames.get(i)) : task.join());
+      }
+    } finally {
+      if (requirer != null) {
+        synchronized (this.waitingOn) {
+          final Set<String> edges = this.waitingOn.get(requirer);
+          if (edges != null && edges.removeAll(awaited) && edges.isEmpty()) {
+            this.waitingOn.remove(requirer);
+          }
         }
       }
     }
-  }
 
-  private void findLoopFilesInJar(final File jarFile) {
-    // TODO: ... The thing is that I don't know what is less efficient
-    // 1. adding the path of the jar followed by the path of the resource to the set
-    // and loading the resource every time we need it
-    // 2. caching each loop files as string like core modules
-    // (1) is inefficient as it can take a while to read a file inside a zip (jar) file
-    // (2) can be memory consuming
+    return loaded;
   }
 
-  public void reset() {
-    this.modules.clear();
-    Caller.reset();
-    LoopClassLoader.reset();
-  }
-
-  public List<Executable> loadAndCompile(final List<String> moduleChain) {
+  private static String moduleName(final List<String> moduleChain) {
     final StringBuilder nameBuilder = new StringBuilder();
 
     for (int i = 0, moduleChainSize = moduleChain.size(); i < moduleChainSize; i++) {
@@ -124,14 +191,138 @@ public enum ModuleLoader {
       }
     }
 
-    final String moduleName = nameBuilder.toString();
+    return nameBuilder.toString();
+  }
 
-    // Module already compiled
-    final List<Executable> executables = this.modules.get(moduleName);
+  // Records that requirer is waiting on module. Returns false instead if that would close a
+  // cycle, since each would then wait forever for the other to finish compiling.
+  private boolean await(final String requirer, final String module) {
+    synchronized (this.waitingOn) {
+      if (this.isWaitingOn(module, requirer, new HashSet<String>())) {
+        return false;
+      }
+
+      this.waitingOn.computeIfAbsent(requirer, k -> new HashSet<String>()).add(module);
+      return true;
+    }
+  }
+
+  private boolean isWaitingOn(final String module, final String target, final Set<String> visited) {
+    if (module.equals(target)) {
+      return true;
+    }
+    if (!visited.add(module)) {
+      return false;
+    }
+
+    final Set<String> edges = this.waitingOn.get(module);
+    if (edges != null) {
+      for (final String edge : edges) {
+        if (this.isWaitingOn(edge, target, visited)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // Compiles each module once: concurrent requirers of the same module wait for a single compile.
+  private List<Executable> load(final String moduleName) {
+    final List<Executable> executables = this.modules().get(moduleName);
     if (executables != null) {
       return executables;
     }
 
+    final FutureTask<List<Executable>> task = new FutureTask<>(() -> {
+      final String outer = this.compiling.get();
+      this.compiling.set(moduleName);
+      try {
+        return this.compileModule(moduleName);
+      } finally {
+        this.compiling.set(outer);
+      }
+    });
+
+    if (this.staging.get() != null) {
+      task.run();
+      return ModuleLoader.join(task);
+    }
+
+    final FutureTask<List<Executable>> inFlight = this.compilingModules.putIfAbsent(moduleName, task);
+    if (inFlight != null) {
+      return ModuleLoader.join(inFlight);
+    }
+
+    try {
+      task.run();
+    } finally {
+      this.compilingModules.remove(moduleName, task);
+    }
+    return ModuleLoader.join(task);
+  }
+
+  private static List<Executable> join(final FutureTask<List<Executable>> task) {
+    try {
+      // Lets the pool start a compensating thread, if this is one of its workers.
+      ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+        @Override
+        public boolean block() throws InterruptedException {
+          try {
+            task.get();
+          } catch (final ExecutionException e) {
+            // Rethrown below.
+          }
+          return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+          return task.isDone();
+        }
+      });
+
+      return task.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private static ForkJoinPool compilerPool() {
+    ForkJoinPool pool = ModuleLoader.compilerPool;
+    if (pool == null) {
+      synchronized (ModuleLoader.class) {
+        pool = ModuleLoader.compilerPool;
+        if (pool == null) {
+          final int threads = Integer.getInteger(ModuleLoader.COMPILE_THREADS_PROPERTY,
+              Runtime.getRuntime().availableProcessors());
+          pool = ModuleLoader.compilerPool = new ForkJoinPool(Math.max(1, threads));
+        }
+      }
+    }
+    return pool;
+  }
+
+  private List<Executable> compileModule(final String moduleName) {
+    // Another thread may have finished compiling it, since we last looked.
+    final List<Executable> executables = this.modules().get(moduleName);
+    if (executables != null) {
+      return executables;
+    }
+
+    final List<Executable> precompiled = this.loadPrecompiled(moduleName);
+    if (precompiled != null) {
+      return precompiled;
+    }
+
     if (ModuleLoader.CORE_MODULES.contains(moduleName)) {
       final String code = this.coreModulesCache.get(moduleName);
 
@@ -145,6 +336,187 @@ public enum ModuleLoader {
     }
   }
 
+  // Modules compiled ahead of time by loopc take precedence over sources.
+  private List<Executable> loadPrecompiled(final String moduleName) {
+    final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+    final Executable executable = Executable.loadPrecompiled(moduleName, contextClassLoader);
+    if (executable == null) {
+      return null;
+    }
+
+    final List<Executable> list = Arrays.asList(executable);
+    this.modules().putIfAbsent(moduleName, list);
+
+    return list;
+  }
+
+  private Map<String, List<Executable>> modules() {
+    final Map<String, List<Executable>> staged = this.staging.get();
+    return staged != null ? staged : this.modules;
+  }
+
+  /**
+   * Source files of the loaded modules that can be reloaded, keyed by module name.
+   */
+  public Map<String, File> sourceFiles() {
+    return Collections.unmodifiableMap(this.sourceFiles);
+  }
+
+  /**
+   * Recompiles the given modules and every loaded module that depends on them, into a new
+   * generation of the loop class loader, then swaps them in at once. Code that is already
+   * running (e.g. a channel's current message) finishes on the old code, while every call
+   * made after the swap goes to the new code. Reloaded modules run their initializers again.
+   * <p/>
+   * If any module fails to compile, its errors are printed and nothing is swapped. Returns
+   * the names of the modules that were reloaded.
+   */
+  public synchronized Set<String> reload(final Collection<String> changed) {
+    final List<String> affected = this.dependentsOf(changed);
+    if (affected.isEmpty()) {
+      return Collections.emptySet();
+    }
+
+    final Map<String, List<Executable>> staged = new ConcurrentHashMap<>(this.modules);
+    final Set<String> classes = new HashSet<>();
+    for (final String moduleName : affected) {
+      for (final Executable executable : staged.remove(moduleName)) {
+        if (executable.getScope() != null) {
+          classes.add(executable.getScope().getModuleName());
+        }
+      }
+    }
+    final LoopClassLoader generation = LoopClassLoader.CLASS_LOADER.nextGeneration(classes);
+
+    final Thread thread = Thread.currentThread();
+    final ClassLoader contextClassLoader = thread.getContextClassLoader();
+    this.staging.set(staged);
+    LoopClassLoader.stage(generation);
+    try {
+      for (final String moduleName : affected) {
+        final List<Executable> executables = this.load(moduleName);
+        if (executables == null) {
+          System.out.println("Unable to reload module: " + moduleName);
+          return Collections.emptySet();
+        }
+
+        for (final Executable executable : executables) {
+          if (executable.hasErrors()) {
+            executable.printStaticErrorsIfNecessary();
+            return Collections.emptySet();
+          }
+        }
+      }
+    } finally {
+      this.staging.remove();
+      LoopClassLoader.stage(null);
+      thread.setContextClassLoader(contextClassLoader);
+    }
+
+    LoopClassLoader.publish(generation);
+    for (final Map.Entry<String, List<Executable>> module : staged.entrySet()) {
+      if (this.modules.get(module.getKey()) != module.getValue()) {
+        this.modules.put(module.getKey(), module.getValue());
+      }
+    }
+    Caller.evict(classes);
+
+    return new LinkedHashSet<>(affected);
+  }
+
+  /**
+   * Runs the given compilation with every module it requires compiled afresh, each with its
+   * compiled form retained, for packaging by loopc. Modules are compiled into a class loader
+   * generation and module table of their own, neither of which is ever published, so modules
+   * that are loaded already (and other threads' compiles) are left as they were. Returns the
+   * modules that were compiled, keyed by module name.
+   */
+  public synchronized Map<String, List<Executable>> compileRetained(final Runnable compilation) {
+    final Map<String, List<Executable>> staged = new ConcurrentHashMap<>();
+
+    final Thread thread = Thread.currentThread();
+    final ClassLoader contextClassLoader = thread.getContextClassLoader();
+    this.staging.set(staged);
+    this.retaining.set(Boolean.TRUE);
+    LoopClassLoader.stage(new LoopClassLoader());
+    try {
+      compilation.run();
+    } finally {
+      this.staging.remove();
+      this.retaining.remove();
+      LoopClassLoader.stage(null);
+      thread.setContextClassLoader(contextClassLoader);
+    }
+
+    return staged;
+  }
+
+  // The given modules and all loaded modules that depend on them, in dependency order.
+  private List<String> dependentsOf(final Collection<String> changed) {
+    final Map<Executable, String> names = new IdentityHashMap<>();
+    for (final Map.Entry<String, List<Executable>> module : this.modules.entrySet()) {
+      for (final Executable executable : module.getValue()) {
+        names.put(executable, module.getKey());
+      }
+    }
+
+    final Map<String, Set<String>> dependencies = new TreeMap<>();
+    for (final Map.Entry<String, List<Executable>> module : this.modules.entrySet()) {
+      final Set<String> required = new HashSet<>();
+      for (final Executable executable : module.getValue()) {
+        if (executable.getScope() instanceof Unit) {
+          for (final Executable dependency : ((Unit) executable.getScope()).dependencies()) {
+            final String name = names.get(dependency);
+            if (name != null) {
+              required.add(name);
+            }
+          }
+        }
+      }
+      dependencies.put(module.getKey(), required);
+    }
+
+    final Set<String> affected = new HashSet<>(changed);
+    affected.retainAll(dependencies.keySet());
+    for (boolean grew = true; grew; ) {
+      grew = false;
+      for (final Map.Entry<String, Set<String>> module : dependencies.entrySet()) {
+        if (!affected.contains(module.getKey()) && !Collections.disjoint(module.getValue(), affected)) {
+          grew = affected.add(module.getKey());
+        }
+      }
+    }
+
+    final List<String> ordered = new ArrayList<>(affected.size());
+    for (final String moduleName : dependencies.keySet()) {
+      if (affected.contains(moduleName)) {
+        ModuleLoader.visit(moduleName, dependencies, affected, new HashSet<String>(), ordered);
+      }
+    }
+    return ordered;
+  }
+
+  private static void visit(final String moduleName, final Map<String, Set<String>> dependencies,
+      final Set<String> affected, final Set<String> visiting, final List<String> ordered) {
+    if (ordered.contains(moduleName) || !visiting.add(moduleName)) {
+      return;
+    }
+
+    for (final String dependency : dependencies.get(moduleName)) {
+      if (affected.contains(dependency)) {
+        ModuleLoader.visit(dependency, dependencies, affected, visiting, ordered);
+      }
+    }
+    ordered.add(moduleName);
+  }
+
+  /**
+   * Every module loaded since the last reset, keyed by module name.
+   */
+  public Map<String, List<Executable>> loadedModules() {
+    return Collections.unmodifiableMap(this.modules);
+  }
+
   private List<Executable> loadAndCompileCoreLib(final String coreModuleName) {
     final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
     final InputStream inputStream = contextClassLoader.getResourceAsStream("loop/lang/" + coreModuleName
@@ -157,10 +529,11 @@ public enum ModuleLoader {
 
   private List<Executable> compile(final String moduleName, final Reader reader) {
     final Executable executable = new Executable(reader, moduleName);
+    executable.retainCompiledForm(this.retaining.get() != null);
     executable.compile();
 
     final List<Executable> list = Arrays.asList(executable);
-    this.modules.putIfAbsent(moduleName, list);
+    this.modules().putIfAbsent(moduleName, list);
 
     return list;
   }
@@ -170,36 +543,25 @@ public enum ModuleLoader {
     return this.compile(moduleName, reader);
   }
 
-  private Executable compileFromClasspath(final String moduleName, final String path) {
-    final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
-    final InputStream inputStream = contextClassLoader.getResourceAsStream(path.substring(1, path.length()));
-
-    try (final Reader reader = new BufferedReader(new InputStreamReader(inputStream))) {
-      return this.compile(moduleName, reader).get(0);
-    } catch (final IOException e) {
-      e.printStackTrace();
+  private List<Executable> findAndCompile(final String moduleName) {
+    final URL source = this.moduleIndex.resolve(moduleName);
+    if (source == null) {
       return null;
     }
-  }
 
-  private List<Executable> findAndCompile(final String moduleName) {
-    final List<Executable> executables = this.availableResources.parallelStream() //
-        .filter(e -> this.moduleMatch(moduleName, e)) //
-        .map(e -> this.compileFromClasspath(moduleName, e)) //
-        .collect(Collectors.toList());
-    if (executables == null || executables.size() > 0) {
-      return executables;
-    } else {
-      return null;
+    if ("file".equals(source.getProtocol())) {
+      try {
+        this.sourceFiles.put(moduleName, new File(source.toURI()));
+      } catch (final URISyntaxException e) {
+        // Not watchable, then.
+      }
     }
-  }
 
-  // FIXME: Makes the tests pass but absolutely broken mechanism
-  // For example if we have 2 files with the same name but from different directories we will pretty much screwed
-  // at some point as both resources will be loaded
-  // Same goes if we have 2 files with the same ended (ie, xxxFoo.loop and foo.loop)
-  private boolean moduleMatch(final String moduleName, final String filePath) {
-    final String path = filePath.substring(0, filePath.lastIndexOf('.'));
-    return path.endsWith(moduleName);
+    try (final Reader reader = new BufferedReader(new InputStreamReader(source.openStream()))) {
+      return this.compile(moduleName, reader);
+    } catch (final IOException e) {
+      e.printStackTrace();
+      return null;
+    }
   }
 }
@@ -0,0 +1,127 @@
+package loop.ast.script;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the source files of loaded modules and hot reloads them when they change, see
+ * {@link ModuleLoader#reload}. Enable it from the command line with -Dloop.watch=true.
+ * <p/>
+ * Only modules loaded from the file system are watched (not core modules, or modules in
+ * JARs), and directories are picked up as modules in them are loaded.
+ */
+public class ModuleWatcher implements Runnable {
+  public static final String WATCH_PROPERTY = "loop.watch";
+
+  // How long to wait for the rest of a burst of changes, e.g. an editor saving several files.
+  private static final long SETTLE_MILLIS = 50;
+  private static final long POLL_MILLIS = 500;
+
+  private final WatchService watchService;
+  private final Set<Path> watched = new HashSet<Path>();
+
+  private ModuleWatcher(final WatchService watchService) {
+    this.watchService = watchService;
+  }
+
+  /**
+   * Starts watching on a daemon thread.
+   */
+  public static ModuleWatcher start() {
+    final ModuleWatcher watcher;
+    try {
+      watcher = new ModuleWatcher(FileSystems.getDefault().newWatchService());
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    final Thread thread = new Thread(watcher, "loop-module-watcher");
+    thread.setDaemon(true);
+    thread.start();
+    return watcher;
+  }
+
+  public void stop() {
+    try {
+      this.watchService.close();
+    } catch (final IOException e) {
+      // Already closed.
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        this.watchNewDirectories();
+
+        WatchKey key = this.watchService.poll(ModuleWatcher.POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (key == null) {
+          continue;
+        }
+
+        final Set<Path> changed = new HashSet<Path>();
+        while (key != null) {
+          final Path directory = (Path) key.watchable();
+          for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path) {
+              changed.add(directory.resolve((Path) event.context()).toAbsolutePath().normalize());
+            }
+          }
+          key.reset();
+
+          key = this.watchService.poll(ModuleWatcher.SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        final Set<String> modules = new HashSet<String>();
+        for (final Map.Entry<String, File> source : ModuleLoader.INSTANCE.sourceFiles().entrySet()) {
+          if (changed.contains(source.getValue().toPath().toAbsolutePath().normalize())) {
+            modules.add(source.getKey());
+          }
+        }
+
+        if (!modules.isEmpty()) {
+          try {
+            ModuleLoader.INSTANCE.reload(modules);
+          } catch (final RuntimeException e) {
+            // Keep watching: the next save may well fix it.
+            e.printStackTrace();
+          }
+        }
+      }
+    } catch (final ClosedWatchServiceException e) {
+      // Stopped.
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void watchNewDirectories() {
+    for (final File source : ModuleLoader.INSTANCE.sourceFiles().values()) {
+      final Path directory = source.getAbsoluteFile().getParentFile().toPath().normalize();
+      if (this.watched.contains(directory)) {
+        continue;
+      }
+
+      try {
+        // Editors often save by writing a new file and renaming it over the old one.
+        directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+        this.watched.add(directory);
+      } catch (final IOException e) {
+        // Try again next time around.
+      }
+    }
+  }
+}
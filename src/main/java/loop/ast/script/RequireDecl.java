@@ -8,6 +8,8 @@ import java.util.List;
  * Import declaration at the top of a script.
  */
 public class RequireDecl extends Node {
+  private static final long serialVersionUID = 1L;
+
   public final List<String> moduleChain;
   public final String javaLiteral;
   public final String alias;
@@ -3,12 +3,16 @@ package loop.ast.script;
 import loop.AnnotatedError;
 import loop.Context;
 import loop.Executable;
+import loop.ConstantFolder;
 import loop.Reducer;
 import loop.StaticError;
 import loop.ast.ClassDecl;
 import loop.ast.Node;
 import loop.runtime.Scope;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -22,10 +26,13 @@ import java.util.Stack;
 
 /**
  * A compilation unit containing imports classes, functions, etc. Represents a single fileName.
+ * Units are serializable (without their resolved deps) so that they can be cached on disk.
  *
  * @NotThreadSafe
  */
-public class Unit implements Scope {
+public class Unit implements Scope, Serializable {
+  private static final long serialVersionUID = 1L;
+
   private static final Map<String, String> ALWAYS_IMPORTED = new HashMap<String, String>();
 
   static {
@@ -45,12 +52,12 @@ public class Unit implements Scope {
   private final Set<RequireDecl> imports = new LinkedHashSet<RequireDecl>();
 
   // Resolved, compiled imports:
-  private final Set<Executable> deps = new LinkedHashSet<Executable>();
-  private final Map<String, Executable> aliasedDeps = new HashMap<String, Executable>();
+  private transient Set<Executable> deps = new LinkedHashSet<Executable>();
+  private transient Map<String, Executable> aliasedDeps = new HashMap<String, Executable>();
 
   private final Map<String, FunctionDecl> functions = new LinkedHashMap<String, FunctionDecl>();
   private final Map<String, ClassDecl> classes = new HashMap<String, ClassDecl>();
-  private final Stack<Context> scopes = new Stack<Context>();
+  private transient Stack<Context> scopes = new Stack<Context>();
   private List<Node> initializer;
 
   public Unit(String fileName, ModuleDecl module) {
@@ -72,6 +79,15 @@ public class Unit implements Scope {
       declare(new RequireDecl(Arrays.asList("prelude"), null));
   }
 
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+
+    // Deps are resolved again by loadDeps().
+    deps = new LinkedHashSet<Executable>();
+    aliasedDeps = new HashMap<String, Executable>();
+    scopes = new Stack<Context>();
+  }
+
   @Override public String getModuleName() {
     return name;
   }
@@ -104,17 +120,18 @@ public class Unit implements Scope {
   }
 
   public void reduceAll() {
+    ConstantFolder folder = new ConstantFolder(this);
     for (ClassDecl classDecl : classes.values()) {
-      new Reducer(classDecl).reduce();
+      folder.fold(new Reducer(classDecl).reduce());
     }
     for (FunctionDecl functionDecl : functions.values()) {
-      new Reducer(functionDecl).reduce();
+      folder.fold(new Reducer(functionDecl).reduce());
     }
 
     if (initializer != null) {
       List<Node> reduced = new ArrayList<Node>(initializer.size());
       for (Node node : initializer) {
-        reduced.add(new Reducer(node).reduce());
+        reduced.add(folder.fold(new Reducer(node).reduce()));
       }
       initializer = reduced;
     }
@@ -212,18 +229,38 @@ public class Unit implements Scope {
     node.setModule(name);
   }
 
+  public void undeclare(FunctionDecl node) {
+    functions.remove(node.name());
+  }
+
   @Override public Set<RequireDecl> requires() {
     return imports;
   }
 
   public void declare(ClassDecl classDecl) {
     classes.put(classDecl.name, classDecl);
+
+    // Set this type's module name.
+    classDecl.moduleName = name;
   }
 
   public Collection<FunctionDecl> functions() {
     return functions.values();
   }
 
+  public Collection<ClassDecl> classes() {
+    return classes.values();
+  }
+
+  /**
+   * All resolved module dependencies, including aliased ones. Only valid after loadDeps().
+   */
+  public Collection<Executable> dependencies() {
+    List<Executable> all = new ArrayList<Executable>(deps);
+    all.addAll(aliasedDeps.values());
+    return all;
+  }
+
   public Set<RequireDecl> imports() {
     return imports;
   }
@@ -241,38 +278,54 @@ public class Unit implements Scope {
   public List<AnnotatedError> loadDeps(String file) {
     List<AnnotatedError> errors = null;
     List<RequireDecl> toRemove = new ArrayList<RequireDecl>();
+    List<RequireDecl> required = new ArrayList<RequireDecl>();
+    List<List<String>> moduleChains = new ArrayList<List<String>>();
     for (RequireDecl requireDecl : imports) {
       if (requireDecl.moduleChain != null) {
-        List<Executable> executables = ModuleLoader.INSTANCE.loadAndCompile(requireDecl.moduleChain);
-        if (executables == null) {
-          if (errors == null)
-            errors = new ArrayList<AnnotatedError>();
-
-          errors.add(new StaticError("Unable to locate module: " + requireDecl.moduleChain,
-              requireDecl.sourceLine, requireDecl.sourceColumn));
-        } else {
-          for (Executable executable : executables) {
-            if (executable.hasErrors()) {
-              if (errors == null)
-                errors = new ArrayList<AnnotatedError>();
-
-              errors.addAll(executable.getStaticErrors());
-            } else if (ModuleDecl.DEFAULT.name.equals(executable.getScope().getModuleName())) {
-              if (errors == null)
-                errors = new ArrayList<AnnotatedError>();
-
-              errors.add(new StaticError("Imported file " + executable.file()
-                  + ".loop is missing a 'module' declaration\n\nrequired in: " + file,
-                  requireDecl.sourceLine, requireDecl.sourceColumn));
-            } else {
-              if (requireDecl.alias != null) {
-
-                // remove aliased module after it is loaded.
-                aliasedDeps.put(requireDecl.alias, executable);
-                toRemove.add(requireDecl);
-              } else
-                deps.add(executable);
-            }
+        required.add(requireDecl);
+        moduleChains.add(requireDecl.moduleChain);
+      }
+    }
+
+    // Independent modules are compiled concurrently.
+    List<List<Executable>> loaded = ModuleLoader.INSTANCE.loadAndCompileAll(moduleChains);
+    for (int i = 0; i < required.size(); i++) {
+      RequireDecl requireDecl = required.get(i);
+      List<Executable> executables = loaded.get(i);
+      if (executables == ModuleLoader.CYCLIC) {
+        if (errors == null)
+          errors = new ArrayList<AnnotatedError>();
+
+        errors.add(new StaticError("Cyclic dependency on module: " + requireDecl.moduleChain
+            + "\n\nrequired in: " + file, requireDecl.sourceLine, requireDecl.sourceColumn));
+      } else if (executables == null) {
+        if (errors == null)
+          errors = new ArrayList<AnnotatedError>();
+
+        errors.add(new StaticError("Unable to locate module: " + requireDecl.moduleChain,
+            requireDecl.sourceLine, requireDecl.sourceColumn));
+      } else {
+        for (Executable executable : executables) {
+          if (executable.hasErrors()) {
+            if (errors == null)
+              errors = new ArrayList<AnnotatedError>();
+
+            errors.addAll(executable.getStaticErrors());
+          } else if (ModuleDecl.DEFAULT.name.equals(executable.getScope().getModuleName())) {
+            if (errors == null)
+              errors = new ArrayList<AnnotatedError>();
+
+            errors.add(new StaticError("Imported file " + executable.file()
+                + ".loop is missing a 'module' declaration\n\nrequired in: " + file,
+                requireDecl.sourceLine, requireDecl.sourceColumn));
+          } else {
+            if (requireDecl.alias != null) {
+
+              // remove aliased module after it is loaded.
+              aliasedDeps.put(requireDecl.alias, executable);
+              toRemove.add(requireDecl);
+            } else
+              deps.add(executable);
           }
         }
       }
@@ -1,19 +1,51 @@
 package loop.lang;
 
+import loop.runtime.Caller;
+
 import java.util.Map;
 
 /**
- * Represents a type in loop.
+ * Represents a type in loop. The module that declares a type creates its canonical descriptor
+ * when it's initialized and holds it in a static field, so types may be compared by identity.
+ * Types of the same name from different modules (or shell sessions, or generations of a
+ * reloaded module) are therefore different types.
  *
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class LoopClass {
   public static final LoopClass IMMUTABLE_MAP = new LoopClass("java.util.Map");
 
+  // The static field of the declaring module's class that holds a type's descriptor.
+  public static final String TYPE_FIELD_PREFIX = "$type$";
+
   public final String name;
 
   public LoopClass(String name) { this.name = name; }
 
+  /**
+   * Creates an object of the given type, as declared by the given module (the name of its
+   * class, e.g. "stars" or "_default"), with the given fields.
+   */
+  public static LoopObject newInstance(String module, String type, Map<Object, Object> startup) {
+    LoopClass loopClass;
+    try {
+      loopClass = (LoopClass) Caller.getStatic(module, TYPE_FIELD_PREFIX + type);
+    } catch (Exception e) {
+      throw new RuntimeException("No such type: " + module + "#" + type, e);
+    }
+
+    LoopObject object = new LoopObject(loopClass);
+    if (startup != null)
+      object.putAll(startup);
+
+    return object;
+  }
+
+  /**
+   * @deprecated Objects created by this method are of no module's type, so they match no
+   *     type pattern. Use {@link #newInstance(String, String, Map)}.
+   */
+  @Deprecated
   public static LoopObject newInstance(String type, Map<Object, Object> startup) {
     LoopObject object = new LoopObject(new LoopClass(type));
     if (startup != null)
@@ -52,6 +52,29 @@ public class Caller {
     staticFieldCache = new ConcurrentHashMap<String, Field>();
   }
 
+  /**
+   * Drops cached members of the given classes, after they have been reloaded, redefined or
+   * released. Lookups check that cached members belong to the class being called anyway, so
+   * this only frees memory.
+   */
+  public static void evict(Collection<String> classes) {
+    for (String javaClass : classes) {
+      evict(staticMethodCache, javaClass + ':');
+      evict(staticFieldCache, javaClass);
+    }
+  }
+
+  private static void evict(ConcurrentMap<String, ?> cache, String prefix) {
+    for (Iterator<String> keys = cache.keySet().iterator(); keys.hasNext(); )
+      if (keys.next().startsWith(prefix))
+        keys.remove();
+  }
+
+  // A member of an older definition of the same (reloaded or redefined) class.
+  private static boolean isStale(Class<?> declaringClass, Class<?> clazz) {
+    return declaringClass != clazz && declaringClass.getName().equals(clazz.getName());
+  }
+
   public static Object call(Object target, String method) throws Throwable {
     return call(target, method, EMPTY_ARRAY);
   }
@@ -129,13 +152,7 @@ public class Caller {
   // Messy, we should inline this really.
   public static Object range(Object from, Object to) {
     if (from instanceof Integer) {
-      Integer start = (Integer) from;
-      int distance = ((Integer) to) - start + 1;
-      List<Integer> range = new ArrayList<Integer>(distance);
-      for (int i = start; i < start + distance; i++) {
-        range.add(i);
-      }
-      return range;
+      return new Range((Integer) from, (Integer) to);
     }
 
     throw new RuntimeException("Unknown range type: " + from + " - " + to);
@@ -308,7 +325,7 @@ public class Caller {
   }
 
   public static Object callClosure(Closure closure, String target) throws Throwable {
-    return callStatic(target, closure.name, closure.freeVariables);
+    return callStatic(closure.target, closure.name, closure.freeVariables);
   }
 
   public static Object callClosure(Closure closure, String target, Object[] args) throws Throwable {
@@ -324,8 +341,23 @@ public class Caller {
     return callStatic(closure.target, closure.name, args);
   }
 
+  /**
+   * Calls a one-argument closure from runtime code that cannot propagate checked exceptions.
+   */
+  public static Object apply(Closure closure, Object arg) {
+    try {
+      return callClosure(closure, closure.target, new Object[] { arg });
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable throwable) {
+      throw new RuntimeException(throwable);
+    }
+  }
+
   public static Object callStatic(String target, String method, Object[] args) throws Throwable {
-    return callStatic(Class.forName(target, true, LoopClassLoader.CLASS_LOADER), method, args);
+    return callStatic(LoopClassLoader.CLASS_LOADER.loadClass(target), method, args);
   }
 
   public static Object callStatic(Class<?> clazz, String method, Object[] args) throws Throwable {
@@ -335,7 +367,8 @@ public class Caller {
     final String key = target + ':' + method + ':' + args.length;
     toCall = staticMethodCache.get(key);
 
-    if (toCall == null) {
+    // A hit from an older generation of a reloaded class is stale.
+    if (toCall == null || isStale(toCall.getDeclaringClass(), clazz)) {
       for (Method candidate : clazz.getMethods()) {
         if (signatureMatches(method, candidate, args)) {
           toCall = candidate;
@@ -376,7 +409,7 @@ public class Caller {
   }
 
   public static Object getStatic(String target, String field) throws Exception {
-    return getStatic(Class.forName(target, true, LoopClassLoader.CLASS_LOADER), field);
+    return getStatic(LoopClassLoader.CLASS_LOADER.loadClass(target), field);
   }
 
   public static Object getStatic(Class<?> clazz, String field) throws Exception {
@@ -385,7 +418,7 @@ public class Caller {
     final String key = clazz.getName() + field;
     toCall = staticFieldCache.get(key);
 
-    if (toCall == null) {
+    if (toCall == null || toCall.getDeclaringClass() != clazz) {
       if ("class".equals(field))
         return clazz;
 
@@ -152,14 +152,14 @@ public class Channel {
   }
 
   public void shutdown() {
-    channels.remove(name);
+    channels.remove(name, this);
 
     if (isDedicatedPool)
       executor.shutdown();
   }
 
   public void die() {
-    channels.remove(name);
+    channels.remove(name, this);
     queue.clear();
 
     if (isDedicatedPool)
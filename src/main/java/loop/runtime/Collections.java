@@ -1,6 +1,8 @@
 package loop.runtime;
 
+import java.util.AbstractMap;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -9,8 +11,40 @@ import java.util.Map;
  */
 public class Collections {
 
+  /**
+   * Iterates anything a comprehension may range over. Maps yield their entries.
+   */
+  @SuppressWarnings("unchecked")
+  public static Iterator<?> iterator(final Object collection) {
+    if (collection instanceof Iterable) {
+      return ((Iterable<?>) collection).iterator();
+    } else if (collection instanceof Map) {
+      final Iterator<Map.Entry<Object, Object>> entries = ((Map<Object, Object>) collection).entrySet().iterator();
+
+      // Hand out public entry types, so that reflective calls like e.getKey() are always accessible.
+      return new Iterator<Object>() {
+        @Override
+        public boolean hasNext() {
+          return entries.hasNext();
+        }
+
+        @Override
+        public Object next() {
+          final Map.Entry<Object, Object> entry = entries.next();
+          return new AbstractMap.SimpleImmutableEntry<Object, Object>(entry.getKey(), entry.getValue());
+        }
+      };
+    } else if (collection instanceof Object[]) {
+      return Arrays.asList((Object[]) collection).iterator();
+    }
+
+    throw new RuntimeException("Cannot iterate over: " + (collection != null ? collection.getClass() : "null"));
+  }
+
   public static Object obtain(final Object collection, final Integer from, final Integer to) {
-    if (collection instanceof List) {
+    if (collection instanceof LazySequence) {
+      return ((LazySequence) collection).slice(from, to);
+    } else if (collection instanceof List) {
       final List list = (List) collection;
 
       return list.subList(from, to + 1);
@@ -29,7 +63,9 @@ public class Collections {
   }
 
   public static Object obtain(final Object collection, final Object exactly) {
-    if (collection instanceof List) {
+    if (collection instanceof LazySequence) {
+      return ((LazySequence) collection).get((Integer) exactly);
+    } else if (collection instanceof List) {
       final List list = (List) collection;
 
       return list.get((Integer) exactly);
@@ -81,7 +117,9 @@ public class Collections {
 
   public static Object sliceFrom(final Object collection, final Object fromObj) {
     final int from = (Integer) fromObj;
-    if (collection instanceof List) {
+    if (collection instanceof LazySequence) {
+      return ((LazySequence) collection).drop(from);
+    } else if (collection instanceof List) {
       final List list = (List) collection;
 
       return list.subList(from, list.size());
@@ -102,7 +140,9 @@ public class Collections {
   public static Object sliceTo(final Object collection, final Object toObj) {
     final int to = (Integer) toObj;
 
-    if (collection instanceof List) {
+    if (collection instanceof LazySequence) {
+      return ((LazySequence) collection).slice(0, to);
+    } else if (collection instanceof List) {
       final List list = (List) collection;
 
       return list.subList(0, to + 1);
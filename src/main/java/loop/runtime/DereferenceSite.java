@@ -0,0 +1,210 @@
+package loop.runtime;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An inline cache for one property dereference in compiled code, such as each step of a.b.c.
+ * Every such dereference is an invokedynamic call site of its own, which remembers how to read
+ * its property from the last few types of object it has seen, behind a check of the type: maps
+ * (and so loop objects) with a direct get, Java beans through their getter, records through
+ * their accessor and anything else through a public field. A site that sees more types than
+ * that looks them up in a table instead.
+ * <p/>
+ * Like {@link Caller#dereference}, a property missing from a map is read from a getter of the
+ * map if there is one, and is otherwise null.
+ */
+public class DereferenceSite extends MutableCallSite {
+  private static final int MAX_CACHED_TYPES = 4;
+  private static final MethodType READER = MethodType.methodType(Object.class, Object.class);
+
+  private static final MethodHandle MISS, MEGAMORPHIC, IS_TYPE, MAP_GET, NOT_FOUND;
+
+  static {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    try {
+      MISS = lookup.findVirtual(DereferenceSite.class, "miss", READER);
+      MEGAMORPHIC = lookup.findVirtual(DereferenceSite.class, "megamorphic", READER);
+      IS_TYPE = lookup.findStatic(DereferenceSite.class, "isType",
+          MethodType.methodType(boolean.class, Class.class, Object.class));
+      MAP_GET = lookup.findStatic(DereferenceSite.class, "mapGet",
+          MethodType.methodType(Object.class, Object.class, String.class, MethodHandle.class));
+      NOT_FOUND = lookup.findStatic(DereferenceSite.class, "notFound",
+          MethodType.methodType(Object.class, Object.class, String.class));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final String property;
+  private final ConcurrentMap<Class<?>, MethodHandle> readers = new ConcurrentHashMap<Class<?>, MethodHandle>();
+  private int cachedTypes;
+
+  private DereferenceSite(String property, MethodType type) {
+    super(type);
+    this.property = property;
+    setTarget(MISS.bindTo(this).asType(type));
+  }
+
+  /**
+   * Bootstrap method for dereferences, with the name of the property as its one static argument.
+   */
+  public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type, String property) {
+    return new DereferenceSite(property, type);
+  }
+
+  // Reads the property from a type of object that this site hasn't seen before, and caches how.
+  private Object miss(Object target) throws Throwable {
+    if (target == null)
+      return Caller.dereference(null, property);
+
+    Class<?> type = target.getClass();
+    MethodHandle reader = reader(type);
+    synchronized (this) {
+      if (cachedTypes < MAX_CACHED_TYPES) {
+        cachedTypes++;
+        setTarget(MethodHandles.guardWithTest(IS_TYPE.bindTo(type), reader, getTarget()));
+      } else {
+        setTarget(MEGAMORPHIC.bindTo(this));
+      }
+    }
+    return reader.invokeExact(target);
+  }
+
+  private Object megamorphic(Object target) throws Throwable {
+    if (target == null)
+      return Caller.dereference(null, property);
+
+    Class<?> type = target.getClass();
+    MethodHandle reader = readers.get(type);
+    if (reader == null) {
+      reader = reader(type);
+      readers.putIfAbsent(type, reader);
+    }
+    return reader.invokeExact(target);
+  }
+
+  private MethodHandle reader(Class<?> type) {
+    MethodHandle getter = getter(type);
+    if (Map.class.isAssignableFrom(type))
+      return MethodHandles.insertArguments(MAP_GET, 1, property, getter);
+    if (getter != null)
+      return getter;
+
+    return MethodHandles.insertArguments(NOT_FOUND, 1, "Property getter not found: " + type.getName() + "#"
+        + property);
+  }
+
+  private MethodHandle getter(Class<?> type) {
+    String getter;
+    if (property.length() == 1)
+      getter = "get" + property.toUpperCase();
+    else
+      getter = "get" + Character.toUpperCase(property.charAt(0)) + property.substring(1);
+
+    Member member = method(type, getter);
+    if (member == null && isRecord(type))
+      member = method(type, property);
+    if (member == null)
+      member = field(type, property);
+    if (member == null)
+      return null;
+
+    try {
+      return reader(accessible(member));
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException("Property getter not accessible: " + type.getName() + "#" + property, e);
+    }
+  }
+
+  private static Method method(Class<?> type, String name) {
+    for (Method candidate : type.getMethods()) {
+      if (candidate.getName().equals(name) && candidate.getParameterTypes().length == 0)
+        return candidate;
+    }
+    return null;
+  }
+
+  private static Field field(Class<?> type, String name) {
+    try {
+      return type.getField(name);
+    } catch (NoSuchFieldException e) {
+      return null;
+    }
+  }
+
+  private static boolean isRecord(Class<?> type) {
+    return type.getSuperclass() != null && "java.lang.Record".equals(type.getSuperclass().getName());
+  }
+
+  /**
+   * The given getter or field as declared by a type that code outside its module can use, e.g.
+   * Map.Entry#getKey rather than the same method of a JDK class that isn't public. Failing that,
+   * the member itself, made accessible.
+   */
+  private static Member accessible(Member member) {
+    List<Class<?>> types = new ArrayList<Class<?>>();
+    types.add(member.getDeclaringClass());
+    for (int i = 0; i < types.size(); i++) {
+      Class<?> type = types.get(i);
+      if (Modifier.isPublic(type.getModifiers()) && type.getModule().isExported(type.getPackageName())) {
+        try {
+          return member instanceof Method
+              ? type.getMethod(member.getName())
+              : type.getField(member.getName());
+        } catch (NoSuchMethodException e) {
+          // Not declared by this type.
+        } catch (NoSuchFieldException e) {
+          // Not declared by this type.
+        }
+      }
+      if (type.getSuperclass() != null)
+        types.add(type.getSuperclass());
+      types.addAll(Arrays.asList(type.getInterfaces()));
+    }
+
+    ((AccessibleObject) member).setAccessible(true);
+    return member;
+  }
+
+  private static MethodHandle reader(Member member) throws IllegalAccessException {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    MethodHandle reader = member instanceof Method
+        ? lookup.unreflect((Method) member)
+        : lookup.unreflectGetter((Field) member);
+
+    // Static members are read regardless of the target.
+    if (Modifier.isStatic(member.getModifiers()))
+      reader = MethodHandles.dropArguments(reader, 0, Object.class);
+    return reader.asType(READER);
+  }
+
+  private static boolean isType(Class<?> type, Object target) {
+    return target != null && target.getClass() == type;
+  }
+
+  private static Object mapGet(Object map, String property, MethodHandle getter) throws Throwable {
+    Object value = ((Map<?, ?>) map).get(property);
+    if (value != null || getter == null)
+      return value;
+    return getter.invokeExact(map);
+  }
+
+  private static Object notFound(Object target, String message) {
+    throw new RuntimeException(message);
+  }
+}
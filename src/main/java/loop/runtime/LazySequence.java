@@ -0,0 +1,120 @@
+package loop.runtime;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The result of a lazy list comprehension, i.e. [x * 2 for lazy x in ls]. Nothing is
+ * computed until the sequence is iterated, and each iteration walks the source again,
+ * applying the filter and projection one element at a time. Consumers that only take a
+ * prefix (or fold over the results) never materialize the whole output.
+ *
+ * @see loop.ast.Comprehension
+ */
+public class LazySequence extends AbstractCollection<Object> {
+  private final Object source;
+  private final Closure filter;
+  private final Closure projection;
+
+  public LazySequence(Object source, Closure filter, Closure projection) {
+    this.source = source;
+    this.filter = filter;
+    this.projection = projection;
+  }
+
+  @Override
+  public Iterator<Object> iterator() {
+    final Iterator<?> iterator = Collections.iterator(source);
+
+    return new Iterator<Object>() {
+      private Object next;
+      private boolean ready;
+
+      @Override
+      public boolean hasNext() {
+        while (!ready && iterator.hasNext()) {
+          Object candidate = iterator.next();
+          if (filter == null || Boolean.TRUE.equals(Caller.apply(filter, candidate))) {
+            next = projection == null ? candidate : Caller.apply(projection, candidate);
+            ready = true;
+          }
+        }
+        return ready;
+      }
+
+      @Override
+      public Object next() {
+        if (!hasNext())
+          throw new NoSuchElementException();
+
+        ready = false;
+        Object value = next;
+        next = null;
+        return value;
+      }
+    };
+  }
+
+  /**
+   * Counts elements by walking the entire sequence. Prefer iteration where possible.
+   */
+  @Override
+  public int size() {
+    int size = 0;
+    for (Iterator<Object> iterator = iterator(); iterator.hasNext(); iterator.next())
+      size++;
+
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return !iterator().hasNext();
+  }
+
+  public Object get(int index) {
+    if (index >= 0) {
+      int i = 0;
+      for (Object value : this) {
+        if (i++ == index)
+          return value;
+      }
+    }
+
+    throw new IndexOutOfBoundsException("Index: " + index);
+  }
+
+  /**
+   * Materializes elements [from, to] inclusive, stopping as soon as the range is filled.
+   */
+  public List<Object> slice(int from, int to) {
+    List<Object> slice = new ArrayList<Object>(Math.max(0, to - from + 1));
+    int i = 0;
+    for (Iterator<Object> iterator = iterator(); i <= to && iterator.hasNext(); i++) {
+      Object value = iterator.next();
+      if (i >= from)
+        slice.add(value);
+    }
+
+    return slice;
+  }
+
+  /**
+   * A lazy view of this sequence without its first n elements.
+   */
+  public LazySequence drop(final int n) {
+    return new LazySequence(new Iterable<Object>() {
+      @Override
+      public Iterator<Object> iterator() {
+        Iterator<Object> iterator = LazySequence.this.iterator();
+        for (int i = 0; i < n && iterator.hasNext(); i++)
+          iterator.next();
+
+        return iterator;
+      }
+    }, null, null);
+  }
+}
@@ -12,7 +12,10 @@ import loop.ast.script.ModuleLoader;
  * InvocationHandler for Java -> Loop communication
  *
  * @author galdolber
+ * @deprecated Use {@link loop.Loop#implement}, which no longer goes through this class. Kept
+ *     for code that builds its own proxies with it.
  */
+@Deprecated
 public class LoopInvocationHandler implements InvocationHandler {
   public static final Class<?>[] NULLARY = new Class<?>[0];
   private final Class<?> clazz;
@@ -0,0 +1,84 @@
+package loop.runtime;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Runtime support for parallel list comprehensions, i.e. (f(x) for par x in ls). The source
+ * is split recursively into fork/join tasks over index ranges, and the partial results are
+ * joined back in order, so the output is the same as the sequential form's.
+ *
+ * The Verifier rejects parallel projections that touch unsafe or channel memory, since those
+ * are either unsynchronized or bound to the current thread.
+ */
+public class Parallel {
+  // Below this many elements per task, splitting further costs more than it saves.
+  private static final int MINIMUM_GRAIN = 16;
+
+  public static Object comprehend(Object source, Closure filter, Closure projection) {
+    List<?> list = toList(source);
+
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    int grain = Math.max(MINIMUM_GRAIN, list.size() / (pool.getParallelism() * 4));
+
+    return pool.invoke(new Slice(list, 0, list.size(), grain, filter, projection));
+  }
+
+  private static List<?> toList(Object source) {
+    if (source instanceof List && source instanceof RandomAccess)
+      return (List<?>) source;
+
+    // Splitting needs cheap random access, so take a snapshot of anything else.
+    List<Object> list = new ArrayList<Object>();
+    for (Iterator<?> iterator = Collections.iterator(source); iterator.hasNext(); )
+      list.add(iterator.next());
+
+    return list;
+  }
+
+  private static class Slice extends RecursiveTask<List<Object>> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<?> source;
+    private final int from, to, grain;
+    private final Closure filter, projection;
+
+    private Slice(List<?> source, int from, int to, int grain, Closure filter, Closure projection) {
+      this.source = source;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+      this.filter = filter;
+      this.projection = projection;
+    }
+
+    @Override
+    protected List<Object> compute() {
+      if (to - from <= grain) {
+        List<Object> out = new ArrayList<Object>(to - from);
+        for (int i = from; i < to; i++) {
+          Object element = source.get(i);
+          if (filter == null || Boolean.TRUE.equals(Caller.apply(filter, element)))
+            out.add(projection == null ? element : Caller.apply(projection, element));
+        }
+        return out;
+      }
+
+      int middle = (from + to) >>> 1;
+      Slice left = new Slice(source, from, middle, grain, filter, projection);
+      Slice right = new Slice(source, middle, to, grain, filter, projection);
+      left.fork();
+
+      List<Object> rightResult = right.compute();
+      List<Object> leftResult = left.join();
+
+      // Preserve source order.
+      leftResult.addAll(rightResult);
+      return leftResult;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package loop.runtime;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.RandomAccess;
+
+/**
+ * An inclusive range of integers, i.e. the result of [from..to]. Elements are computed
+ * on demand so a range takes constant memory regardless of its span.
+ * <p/>
+ * Ranges may be changed like any other list. The first change copies the range into an
+ * ordinary list, which backs it from then on.
+ */
+public class Range extends AbstractList<Integer> implements RandomAccess {
+  private final int from;
+  private final int to;
+
+  // The number of elements, which may be more than an int can hold, e.g. [0..2147483647].
+  private final long span;
+
+  // Set once the range is changed.
+  private List<Integer> elements;
+
+  public Range(int from, int to) {
+    this.from = from;
+    this.to = to;
+    this.span = Math.max(0, (long) to - from + 1);
+  }
+
+  @Override
+  public Integer get(int index) {
+    if (elements != null)
+      return elements.get(index);
+    if (index < 0 || index >= span)
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+
+    return from + index;
+  }
+
+  @Override
+  public int size() {
+    if (elements != null)
+      return elements.size();
+
+    // As per the List contract for lists with more elements than that.
+    return (int) Math.min(span, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (elements != null)
+      return elements.contains(o);
+    if (!(o instanceof Integer))
+      return false;
+
+    int value = (Integer) o;
+    return span > 0 && value >= from && value <= to;
+  }
+
+  @Override
+  public int indexOf(Object o) {
+    if (elements != null)
+      return elements.indexOf(o);
+    if (!contains(o))
+      return -1;
+
+    long index = (long) (Integer) o - from;
+    return index < Integer.MAX_VALUE ? (int) index : -1;
+  }
+
+  @Override
+  public int lastIndexOf(Object o) {
+    if (elements != null)
+      return elements.lastIndexOf(o);
+    return indexOf(o);
+  }
+
+  @Override
+  public List<Integer> subList(int fromIndex, int toIndex) {
+    if (elements != null)
+      return elements.subList(fromIndex, toIndex);
+    if (fromIndex < 0 || toIndex > span || fromIndex > toIndex)
+      throw new IndexOutOfBoundsException("fromIndex: " + fromIndex + ", toIndex: " + toIndex);
+    if (fromIndex == toIndex)
+      return new Range(1, 0);
+
+    return new Range(from + fromIndex, from + toIndex - 1);
+  }
+
+  @Override
+  public Integer set(int index, Integer element) {
+    return mutable().set(index, element);
+  }
+
+  @Override
+  public void add(int index, Integer element) {
+    modCount++;
+    mutable().add(index, element);
+  }
+
+  @Override
+  public Integer remove(int index) {
+    modCount++;
+    return mutable().remove(index);
+  }
+
+  private List<Integer> mutable() {
+    if (elements == null)
+      elements = new ArrayList<Integer>(this);
+    return elements;
+  }
+
+  @Override
+  public Iterator<Integer> iterator() {
+    if (elements != null)
+      return elements.iterator();
+    return intIterator();
+  }
+
+  /**
+   * Iterates this range without boxing, for callers that can consume primitives.
+   */
+  public PrimitiveIterator.OfInt intIterator() {
+    if (elements != null) {
+      final Iterator<Integer> iterator = elements.iterator();
+      return new PrimitiveIterator.OfInt() {
+        @Override
+        public boolean hasNext() {
+          return iterator.hasNext();
+        }
+
+        @Override
+        public int nextInt() {
+          return iterator.next();
+        }
+      };
+    }
+
+    return new PrimitiveIterator.OfInt() {
+      private int next = from;
+      private boolean done = span == 0;
+
+      @Override
+      public boolean hasNext() {
+        return !done;
+      }
+
+      // Stops on the last element rather than past it, which may not be an int.
+      @Override
+      public int nextInt() {
+        if (done)
+          throw new NoSuchElementException();
+
+        int value = next;
+        if (value == to)
+          done = true;
+        else
+          next++;
+        return value;
+      }
+    };
+  }
+}
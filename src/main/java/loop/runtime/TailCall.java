@@ -0,0 +1,23 @@
+package loop.runtime;
+
+import java.util.Arrays;
+
+/**
+ * A tail call from one mutually recursive function to another. Rather than make the call on
+ * top of its own stack frame, the caller returns it to the trampoline of its class, which makes
+ * it instead. This way a chain of such calls runs in constant stack, however long it is.
+ */
+public final class TailCall {
+  // Index of the called function among the trampolined functions of its class.
+  public final int target;
+  public final Object[] args;
+
+  public TailCall(int target, Object[] args) {
+    this.target = target;
+    this.args = args;
+  }
+
+  @Override public String toString() {
+    return "loop.runtime.TailCall{" + target + Arrays.toString(args) + "}";
+  }
+}
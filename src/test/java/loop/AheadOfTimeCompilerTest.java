@@ -0,0 +1,81 @@
+package loop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringReader;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.jar.JarFile;
+
+import loop.ast.script.ModuleLoader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compiles scripts into a JAR with loopc, then runs them from it.
+ */
+public class AheadOfTimeCompilerTest extends LoopTest {
+  @Rule
+  public TemporaryFolder outputDir = new TemporaryFolder();
+
+  @Test
+  public final void runsScriptsFromJar() throws Exception {
+    File script = new File(AheadOfTimeCompilerTest.class.getResource("/loop/confidence/classes/classes_7.loop").toURI());
+    File jar = new File(outputDir.getRoot(), "app.jar");
+    AheadOfTimeCompiler.compile(jar, Arrays.asList(script));
+
+    JarFile contents = new JarFile(jar);
+    try {
+      assertNotNull(contents.getEntry("META-INF/loop/classes_7.lpc"));
+      assertNotNull(contents.getEntry("META-INF/loop/prelude.lpc"));
+      assertNotNull(contents.getEntry("META-INF/loop/classes/prelude.class"));
+    } finally {
+      contents.close();
+    }
+
+    ModuleLoader.INSTANCE.reset();
+    URLClassLoader classpath = new URLClassLoader(new URL[] { jar.toURI().toURL() }, LoopClassLoader.CLASS_LOADER);
+    Thread.currentThread().setContextClassLoader(classpath);
+    try {
+      assertTrue(ModuleCache.isPrecompiled("classes_7"));
+      assertEquals(Arrays.asList("star Proxima Centauri", "planet", "unknown"), Loop.runModule("classes_7", null));
+
+      // Nothing was parsed: both the script and prelude were loaded from the JAR.
+      assertTrue(LoopClassLoader.CLASS_LOADER.isLoaded("prelude"));
+    } finally {
+      classpath.close();
+      ModuleLoader.INSTANCE.reset();
+    }
+  }
+
+  @Test
+  public final void leavesLoadedModulesAlone() throws Exception {
+    assertEquals(3, Loop.run("sizes", new StringReader("main() ->\n  [1, 2, 3].size()\n")));
+    LoopClassLoader classLoader = LoopClassLoader.CLASS_LOADER;
+    Executable prelude = ModuleLoader.INSTANCE.loadedModules().get("prelude").get(0);
+
+    File script = new File(AheadOfTimeCompilerTest.class.getResource("/loop/confidence/classes/classes_7.loop").toURI());
+    File jar = new File(outputDir.getRoot(), "app.jar");
+    AheadOfTimeCompiler.compile(jar, Arrays.asList(script));
+
+    JarFile contents = new JarFile(jar);
+    try {
+      assertNotNull(contents.getEntry("META-INF/loop/classes/prelude.class"));
+    } finally {
+      contents.close();
+    }
+
+    // Nothing compiled for the JAR was published.
+    assertSame(classLoader, LoopClassLoader.CLASS_LOADER);
+    assertSame(prelude, ModuleLoader.INSTANCE.loadedModules().get("prelude").get(0));
+    assertFalse(ModuleLoader.INSTANCE.loadedModules().containsKey("classes_7"));
+  }
+}
@@ -3,17 +3,22 @@ package loop;
 import loop.ast.script.Unit;
 import loop.lang.LoopObject;
 import org.junit.Test;
+import org.objectweb.asm.Opcodes;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -682,6 +687,23 @@ public class AsmCodeEmitterTest extends LoopTest {
 
   }
 
+  @Test
+  public final void emitLongInterpolatedString() throws Exception {
+    // More expressions than one concatenation takes, and the recipe's own control characters.
+    StringBuilder string = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 250; i++) {
+      string.append("@{name}\u0001");
+      expected.append("x\u0001");
+    }
+    Parser parser = new Parser(new Tokenizer("fun(name) ->\n  \"" + string + "\"\n").tokenize());
+    Unit unit = parser.script(file);
+    unit.reduceAll();
+
+    Class<?> generated = new AsmCodeEmitter(unit).write(unit);
+    assertEquals(expected.toString(), generated.getDeclaredMethod("fun", Object.class).invoke(null, "x"));
+  }
+
   @Test
   public final void emitJavaConstructor() throws Exception {
     Parser parser = new Parser(new Tokenizer("main() ->\n  new java.util.Date(1)\n").tokenize());
@@ -794,6 +816,73 @@ public class AsmCodeEmitterTest extends LoopTest {
     assertEquals(2, generated.getDeclaredMethod("sum", Object.class).invoke(null, false));
   }
 
+  @Test
+  public final void emitInvariantWhereBindingsOnce() throws Exception {
+    Parser parser = new Parser(new Tokenizer("big(x) ->\n  [limit, scaled, max]\n  where\n" +
+        "    limit = @123456789012345678901234567890\n" +
+        "    scaled = limit * @2\n" +
+        "    max = `java.lang.Integer::MAX_VALUE`\n").tokenize());
+    Unit unit = parser.script(file);
+    unit.reduceAll();
+
+    Class<?> generated = new AsmCodeEmitter(unit).write(unit);
+
+    // Inspect.
+    inspect(generated);
+
+    Method big = generated.getDeclaredMethod("big", Object.class);
+    List<?> first = (List<?>) big.invoke(null, 1);
+    List<?> second = (List<?>) big.invoke(null, 2);
+    assertEquals(new BigInteger("246913578024691357802469135780"), first.get(1));
+    assertEquals(Integer.MAX_VALUE, first.get(2));
+    assertSame(first.get(0), second.get(0));
+    assertSame(first.get(1), second.get(1));
+  }
+
+  @Test
+  public final void emitClassFilesWithStackMapFrames() throws Exception {
+    Parser parser = new Parser(new Tokenizer("sign(x) ->\n  if x < 0 then 'minus' else (if x == 0 then 'zero' else 'plus')").tokenize());
+    Unit unit = parser.script(file);
+    unit.reduceAll();
+
+    AsmCodeEmitter emitter = new AsmCodeEmitter(unit);
+    Class<?> generated = emitter.write(unit);
+
+    // Inspect.
+    inspect(generated);
+
+    // Branches in a version 55 class only verify with frames.
+    byte[] bytecode = emitter.bytecode();
+    assertEquals(Opcodes.V11, ((bytecode[6] & 0xff) << 8) | (bytecode[7] & 0xff));
+    Method sign = generated.getDeclaredMethod("sign", Object.class);
+    assertEquals("minus", sign.invoke(null, -1));
+    assertEquals("zero", sign.invoke(null, 0));
+    assertEquals("plus", sign.invoke(null, 1));
+  }
+
+  @Test
+  public final void emitVaryingWhereBindingsOnEveryCall() throws Exception {
+    Parser parser = new Parser(new Tokenizer("make(x) ->\n  [scaled, fresh]\n  where\n" +
+        "    scaled = x * @2\n" +
+        "    fresh = [@1]\n").tokenize());
+    Unit unit = parser.script(file);
+    unit.reduceAll();
+
+    Class<?> generated = new AsmCodeEmitter(unit).write(unit);
+
+    // Inspect.
+    inspect(generated);
+
+    Method make = generated.getDeclaredMethod("make", Object.class);
+    List<?> first = (List<?>) make.invoke(null, BigInteger.ONE);
+    List<?> second = (List<?>) make.invoke(null, BigInteger.TEN);
+    assertEquals(BigInteger.valueOf(2), first.get(0));
+    assertEquals(BigInteger.valueOf(20), second.get(0));
+
+    // Lists are mutable, so each call gets its own.
+    assertNotSame(first.get(1), second.get(1));
+  }
+
   private static void inspect(Class<?> generated) {
     System.out.println(generated);
     System.out.println("Fields:");
@@ -0,0 +1,78 @@
+package loop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Listens to per-module compile stats.
+ */
+public class CompileStatsTest extends LoopTest {
+  private final List<CompileStats> compiled = new ArrayList<CompileStats>();
+  private final CompileStats.Listener listener = new CompileStats.Listener() {
+    @Override
+    public void compiled(CompileStats stats) {
+      synchronized (compiled) {
+        compiled.add(stats);
+      }
+    }
+  };
+
+  @Before
+  public void listen() {
+    CompileStats.addListener(listener);
+  }
+
+  @After
+  public void stopListening() {
+    CompileStats.removeListener(listener);
+  }
+
+  @Test
+  public final void reportsEachPhase() {
+    Loop.compile("measured", new StringReader("module measured\n\nsquare(x) ->\n  x * x\n\nmain ->\n  square(4)\n"));
+
+    CompileStats stats = statsFor("measured");
+    for (CompileStats.Phase phase : new CompileStats.Phase[] {
+        CompileStats.Phase.TOKENIZE, CompileStats.Phase.PARSE, CompileStats.Phase.REDUCE,
+        CompileStats.Phase.LOAD_DEPS, CompileStats.Phase.VERIFY, CompileStats.Phase.EMIT })
+      assertTrue(phase + " was not timed", stats.nanos(phase) > 0);
+
+    assertFalse(stats.cached());
+    assertEquals(0, stats.nanos(CompileStats.Phase.LOAD_CACHED));
+    assertTrue(stats.totalNanos() >= stats.selfNanos());
+    assertTrue(stats.tokens() > 0);
+    assertTrue(stats.nodes() > 0);
+    assertTrue(stats.bytecodeSize() > 0);
+    assertTrue(stats.toString().startsWith("loop: compiled measured in "));
+  }
+
+  @Test
+  public final void largerModulesCountMore() {
+    Loop.compile("small", new StringReader("module small\n\nmain ->\n  1\n"));
+    Loop.compile("large", new StringReader("module large\n\none(x) ->\n  x + 1\n\n"
+        + "two(x) =>\n  0 : 'zero'\n  * : one(x) * 2\n\nmain ->\n  two(one(1))\n"));
+
+    CompileStats small = statsFor("small"), large = statsFor("large");
+    assertTrue(large.tokens() > small.tokens());
+    assertTrue(large.nodes() > small.nodes());
+    assertTrue(large.bytecodeSize() > small.bytecodeSize());
+  }
+
+  private CompileStats statsFor(String module) {
+    synchronized (compiled) {
+      for (CompileStats stats : compiled)
+        if (module.equals(stats.module()))
+          return stats;
+    }
+    throw new AssertionError("No stats for " + module + " in " + compiled);
+  }
+}
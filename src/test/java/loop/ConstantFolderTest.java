@@ -0,0 +1,106 @@
+package loop;
+
+import loop.ast.Node;
+import loop.ast.script.FunctionDecl;
+import loop.ast.script.Unit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests constant-folded ASTs, similar to the ReducerTest
+ */
+public class ConstantFolderTest {
+
+  @Test
+  public final void operatorsOverLiterals() {
+    compare("86400", "60 * 60 * 24");
+    compare("9", "(1 + 2) * 3");
+    compare("'ab1'", "'a' + 'b' + 1");
+    compare("'hi there'", "\"hi \" + 'there'");
+    compare("3", "@1 + @2");
+    compare("3.0", "1.5 * 2.0");
+    compare("false", "true not true");
+    compare("(= x 5)", "x = 2 + 3");
+    compare("(. ls [2])", "ls[1 + 1]");
+    compare("(. (list 2 (comput 2 (* x))))", "[1 + 1, 2 * x]");
+  }
+
+  @Test
+  public final void leadingConstantsAreFolded() {
+    compare("(comput 3600 (* days))", "60 * 60 * days");
+
+    // Operators apply left to right, so nothing after a variable can be folded.
+    compare("(comput days (* 60) (* 60))", "days * 60 * 60");
+  }
+
+  @Test
+  public final void failuresAreLeftForRuntime() {
+    compare("(comput 1 (/ 0))", "1 / 0");
+    compare("(comput 1 (+ true))", "1 + true");
+  }
+
+  @Test
+  public final void constantConditions() {
+    compare("(. a)", "if 1 < 2 then a else b");
+    compare("(. b)", "if 1 > 2 then a else b");
+    compare("(. b)", "unless true then a else b");
+    compare("(comput (if-then-else (comput x (< 2)) a b))", "(if x < 2 then a else b)");
+  }
+
+  @Test
+  public final void whereBlockConstantsArePropagated() {
+    compareFunction("(comput 1440 (* days)) where (= day 1440)",
+        "seconds(days) ->\n  day * days\n  where\n    day = 24 * 60\n");
+
+    // Later bindings see earlier ones.
+    compareFunction("(comput 3600 (* days)) where (= hour 3600) (= day 3600)",
+        "seconds(days) ->\n  day * days\n  where\n    hour = 60 * 60\n    day = hour\n");
+
+    // Not if the variable is reassigned.
+    compareFunction("(= x 2) (comput x (+ 1)) where (= x 1)",
+        "mut ->\n  x = 2\n  x + 1\n  where\n    x = 1\n");
+
+    // Nor inside comprehensions, which bind variables of their own.
+    compareFunction("(list (comput (cpr x for x in (list x)))) where (= x 3)",
+        "keep ->\n  [x for x in [x]]\n  where\n    x = 3\n");
+  }
+
+  @Test
+  public final void fusedComprehensions() {
+    // The stage upstream of a fused comprehension is folded in place of its list.
+    compareFunction("(comput (cpr x (+ 1) for x in (cpr x (* 2) for x in (list 2 6))))",
+        "evens ->\n  (x + 1 for x in (x * 2 for x in [1 + 1, 2 * 3]))\n");
+  }
+
+  @Test
+  public final void preludeCallsOnLiterals() {
+    compareFunction("12", "num ->\n  to_integer('12')\n");
+    compareFunction("true", "flag ->\n  negate(false)\n");
+    compareFunction("'LOUD'", "shout ->\n  embiggen('loud')\n");
+    compareFunction("to_integer(()= 'twelve')", "num ->\n  to_integer('twelve')\n");
+
+    // Unless something local would be called instead.
+    compareFunction("negate(()= true) where (negate: (()= y) -> y)",
+        "flag ->\n  negate(true)\n  where\n    negate(y) -> y\n");
+  }
+
+  static void compare(String expected, String input) {
+    Parser parser = new Parser(new Tokenizer(input).tokenize());
+    parser.parse();
+
+    Node folded = new ConstantFolder(null).fold(new Reducer(parser.ast()).reduce());
+    Assert.assertNotNull("Folder returned no output", folded);
+    Assert.assertEquals(expected, Parser.stringify(folded));
+  }
+
+  static void compareFunction(String expected, String input) {
+    Unit unit = new Parser(new Tokenizer(input).tokenize()).script("test");
+    unit.reduceAll();
+
+    FunctionDecl function = unit.functions().iterator().next();
+    String folded = Parser.stringify(function.children());
+    if (!function.whereBlock().isEmpty())
+      folded += " where " + Parser.stringify(function.whereBlock());
+    Assert.assertEquals(expected, folded);
+  }
+}
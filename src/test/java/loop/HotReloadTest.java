@@ -0,0 +1,113 @@
+package loop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import loop.ast.script.ModuleLoader;
+import loop.ast.script.ModuleWatcher;
+import loop.runtime.Caller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Changes module sources under a running program and reloads them.
+ */
+public class HotReloadTest extends LoopTest {
+  @Rule
+  public TemporaryFolder sources = new TemporaryFolder();
+
+  private File hot;
+
+  @Before
+  public void writeModules() throws IOException {
+    this.hot = this.sources.newFile("hot.loop");
+    Util.writeFile(this.hot, "module hot\n\nvalue ->\n  1\n");
+    Util.writeFile(this.sources.newFile("hot_user.loop"), "module hot_user\n\nrequire hot\n\ntwice ->\n  value() * 2\n");
+    Util.writeFile(this.sources.newFile("main.loop"), "require hot_user\n\nmain ->\n  twice()\n");
+
+    System.setProperty("loop.path", this.sources.getRoot().getAbsolutePath());
+  }
+
+  @After
+  public void clearSearchPath() {
+    System.clearProperty("loop.path");
+  }
+
+  @Test
+  public final void reloadsChangedModuleAndDependents() throws Throwable {
+    assertEquals(2, Loop.run(new File(this.sources.getRoot(), "main.loop").getPath()));
+
+    Util.writeFile(this.hot, "module hot\n\nvalue ->\n  5\n");
+    assertEquals(new HashSet<String>(Arrays.asList("hot", "hot_user")),
+        ModuleLoader.INSTANCE.reload(Collections.singleton("hot")));
+
+    assertEquals(5, Caller.callStatic("hot", "value"));
+    assertEquals(10, Caller.callStatic("hot_user", "twice"));
+  }
+
+  public interface Value {
+    int value();
+  }
+
+  interface PackagePrivateValue {
+    int value();
+  }
+
+  @Test
+  public final void implementationsCallReloadedModules() throws Throwable {
+    Value generated = Loop.implement(Value.class, "hot");
+    PackagePrivateValue proxied = Loop.implement(PackagePrivateValue.class, "hot");
+    assertEquals(1, generated.value());
+    assertEquals(1, proxied.value());
+
+    Util.writeFile(this.hot, "module hot\n\nvalue ->\n  5\n");
+    assertEquals(Collections.singleton("hot"), ModuleLoader.INSTANCE.reload(Collections.singleton("hot")));
+
+    assertEquals(5, generated.value());
+    assertEquals(5, proxied.value());
+  }
+
+  @Test
+  public final void failedReloadKeepsRunningCode() throws Throwable {
+    assertEquals(2, Loop.run(new File(this.sources.getRoot(), "main.loop").getPath()));
+
+    Util.writeFile(this.hot, "module hot\n\nvalue ->\n  (\n");
+    assertTrue(ModuleLoader.INSTANCE.reload(Collections.singleton("hot")).isEmpty());
+
+    assertEquals(1, Caller.callStatic("hot", "value"));
+    assertEquals(2, Caller.callStatic("hot_user", "twice"));
+  }
+
+  @Test
+  public final void watcherReloadsOnSave() throws Throwable {
+    assertEquals(2, Loop.run(new File(this.sources.getRoot(), "main.loop").getPath()));
+
+    ModuleWatcher watcher = ModuleWatcher.start();
+    try {
+      // Give the watcher time to register the modules' directory.
+      Thread.sleep(1000);
+      Util.writeFile(this.hot, "module hot\n\nvalue ->\n  7\n");
+
+      Object value = null;
+      for (long deadline = System.currentTimeMillis() + 10000; System.currentTimeMillis() < deadline; ) {
+        value = Caller.callStatic("hot", "value");
+        if (Integer.valueOf(7).equals(value))
+          break;
+        Thread.sleep(50);
+      }
+      assertEquals(7, value);
+    } finally {
+      watcher.stop();
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package loop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+
+import loop.runtime.Caller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compiles functions when they're first called, with -Dloop.lazy.
+ */
+public class LazyFunctionsTest extends LoopTest {
+  private static final String LAZY = "module lazily\n\n"
+      + "scale(x) ->\n"
+      + "  helper(x) + [1, 2].size()\n"
+      + "  where\n"
+      + "    factor = 10\n"
+      + "    helper(y) ->\n"
+      + "      y * factor\n\n"
+      + "doubler ->\n"
+      + "  @(x) -> { x * 2 }\n\n"
+      + "describe(n) =>\n"
+      + "  0 : 'none'\n"
+      + "  * : 'some'\n\n"
+      + "even?(n) =>\n"
+      + "  0 : true\n"
+      + "  * : odd?(n - 1)\n\n"
+      + "odd?(n) =>\n"
+      + "  0 : false\n"
+      + "  * : even?(n - 1)\n\n"
+      + "together ->\n"
+      + "  [even?(100000), odd?(100000), doubler().@call(4)]\n\n"
+      + "unused ->\n"
+      + "  'never compiled'\n";
+
+  private String previous;
+
+  @Before
+  public final void lazily() {
+    previous = System.setProperty(LazyFunctions.LAZY_PROPERTY, "true");
+  }
+
+  @After
+  public final void restore() {
+    if (previous == null)
+      System.clearProperty(LazyFunctions.LAZY_PROPERTY);
+    else
+      System.setProperty(LazyFunctions.LAZY_PROPERTY, previous);
+  }
+
+  @Test
+  public final void functionsAreCompiledOnFirstCall() throws Throwable {
+    Loop.compile("lazily", new StringReader(LAZY));
+    assertFalse(LoopClassLoader.CLASS_LOADER.isLoaded("lazily$lazy$scale"));
+
+    assertEquals(52, Caller.callStatic("lazily", "scale", new Object[] { 5 }));
+    assertTrue(LoopClassLoader.CLASS_LOADER.isLoaded("lazily$lazy$scale"));
+    assertEquals(72, Caller.callStatic("lazily", "scale", new Object[] { 7 }));
+
+    assertEquals("none", Caller.callStatic("lazily", "describe", new Object[] { 0 }));
+    assertEquals("some", Caller.callStatic("lazily", "describe", new Object[] { 3 }));
+    assertFalse(LoopClassLoader.CLASS_LOADER.isLoaded("lazily$lazy$unused"));
+  }
+
+  @Test
+  public final void releasingAModuleDropsItsFunctionBodies() throws Throwable {
+    Loop.compile("lazily", new StringReader(LAZY));
+    assertEquals(52, Caller.callStatic("lazily", "scale", new Object[] { 5 }));
+
+    LoopClassLoader next = LoopClassLoader.CLASS_LOADER.nextGeneration(Collections.singleton("lazily"));
+    assertFalse(next.isLoaded("lazily$lazy$scale"));
+    assertFalse(next.lazyUnits.containsKey("lazily"));
+
+    LoopClassLoader.CLASS_LOADER.release("lazily");
+    assertFalse(LoopClassLoader.CLASS_LOADER.isLoaded("lazily$lazy$scale"));
+    assertFalse(LoopClassLoader.CLASS_LOADER.lazyUnits.containsKey("lazily"));
+  }
+
+  @Test
+  public final void closuresAndMutualTailCallsWorkLazily() throws Throwable {
+    Loop.compile("lazily", new StringReader(LAZY));
+
+    assertEquals(Arrays.asList(true, false, 8),
+        Caller.callStatic("lazily", "together", new Object[0]));
+  }
+}
@@ -0,0 +1,112 @@
+package loop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import loop.ast.script.ModuleLoader;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Defines, redefines and releases loop classes.
+ */
+public class LoopClassLoaderTest extends LoopTest {
+  @Test
+  public final void scriptsCanBeRedefinedOnceReleased() {
+    assertEquals(1, Loop.run("rule", new StringReader("module rule\n\nmain ->\n  1\n")));
+    LoopClassLoader.CLASS_LOADER.release("rule");
+    assertEquals(2, Loop.run("rule", new StringReader("module rule\n\nmain ->\n  2\n")));
+  }
+
+  @Test
+  public final void scriptsAreReplacedWhenRunAgain() {
+    String rule = "module rule\n\nmain ->\n  [1, 2, 3].size()\n";
+    assertEquals(3, Loop.run("rule", new StringReader(rule)));
+    long codeSize = LoopClassLoader.CLASS_LOADER.loadedCodeSize();
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals(3, Loop.run("rule", new StringReader(rule)));
+    }
+    assertEquals(codeSize, LoopClassLoader.CLASS_LOADER.loadedCodeSize());
+  }
+
+  @Test
+  public final void duplicateClassesAreRejected() {
+    LoopClassLoader.CLASS_LOADER.put("twice", new byte[0]);
+    try {
+      LoopClassLoader.CLASS_LOADER.put("twice", new byte[0]);
+      fail();
+    } catch (RuntimeException e) {
+      assertEquals("Illegal attempt to define duplicate class twice", e.getMessage());
+    }
+  }
+
+  @Test
+  public final void classesAreDefinedOnceUnderConcurrentLoads() throws Exception {
+    ClassWriter classWriter = new ClassWriter(0);
+    classWriter.visit(Opcodes.V11, Opcodes.ACC_PUBLIC, "raced", null, "java/lang/Object", null);
+    classWriter.visitEnd();
+    byte[] bytes = classWriter.toByteArray();
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      for (int round = 0; round < 20; round++) {
+        final LoopClassLoader classLoader = new LoopClassLoader();
+        classLoader.put("raced", bytes);
+
+        List<Future<Class<?>>> loads = new ArrayList<Future<Class<?>>>();
+        for (int i = 0; i < 8; i++) {
+          loads.add(executor.submit(new Callable<Class<?>>() {
+            @Override public Class<?> call() throws Exception {
+              return classLoader.loadClass("raced");
+            }
+          }));
+        }
+
+        Class<?> first = loads.get(0).get();
+        for (Future<Class<?>> load : loads) {
+          assertSame(first, load.get());
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public final void releasedClassesAreUnloaded() throws InterruptedException {
+    ModuleLoader.INSTANCE.loadAndCompile(Arrays.asList("prelude"));
+    long baseline = LoopClassLoader.CLASS_LOADER.loadedCodeSize();
+
+    WeakReference<Class<?>> rule = new WeakReference<Class<?>>(
+        Loop.compile("rule", new StringReader("module rule\n\nmain ->\n  1\n")));
+    assertTrue(LoopClassLoader.CLASS_LOADER.isLoaded("rule"));
+    assertTrue(LoopClassLoader.CLASS_LOADER.loadedCodeSize() > baseline);
+
+    LoopClassLoader.CLASS_LOADER.release("rule");
+    assertFalse(LoopClassLoader.CLASS_LOADER.isLoaded("rule"));
+    assertEquals(baseline, LoopClassLoader.CLASS_LOADER.loadedCodeSize());
+
+    for (int i = 0; i < 50 && rule.get() != null; i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    assertNull(rule.get());
+  }
+}
@@ -0,0 +1,113 @@
+package loop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Compiles scripts once and calls into them repeatedly.
+ */
+public class LoopScriptTest extends LoopTest {
+  private static final String RULES = "module rules\n\n"
+      + "add(a, b) ->\n  a + b\n\n"
+      + "approve(amount) ->\n  amount < 100\n\n"
+      + "main(args) ->\n  args.size()\n";
+
+  @Test
+  public final void invokeFunctions() {
+    LoopScript rules = Loop.compileScript("rules", new StringReader(RULES));
+
+    assertEquals("rules", rules.name());
+    assertEquals(5, rules.invoke("add", 2, 3));
+    assertEquals("ab", rules.invoke("add", "a", "b"));
+    assertEquals(Boolean.TRUE, rules.invoke(boolean.class, "approve", 10));
+    assertEquals(2, rules.main("x", "y"));
+  }
+
+  @Test
+  public final void bindFunctionHandles() throws Throwable {
+    LoopScript rules = Loop.compileScript("rules", new StringReader(RULES));
+
+    MethodHandle approve = rules.function("approve", 1)
+        .asType(MethodType.methodType(boolean.class, int.class));
+    assertTrue((boolean) approve.invokeExact(99));
+  }
+
+  @Test
+  public final void typedFunctionHandles() throws Throwable {
+    LoopScript rules = Loop.compileScript("rules", new StringReader(RULES));
+
+    MethodHandle add = rules.function("add", MethodType.methodType(int.class, int.class, int.class));
+    assertEquals(7, (int) add.invokeExact(3, 4));
+
+    MethodHandle approve = rules.function("approve", MethodType.methodType(boolean.class, int.class));
+    assertFalse((boolean) approve.invokeExact(100));
+  }
+
+  @Test(expected = LoopExecutionException.class)
+  public final void typedFunctionHandlesCheckArity() {
+    Loop.compileScript("rules", new StringReader(RULES))
+        .function("add", MethodType.methodType(int.class, int.class));
+  }
+
+  @Test
+  public final void closeReleasesTheScript() {
+    LoopScript first = Loop.compileScript("rules", new StringReader(RULES));
+    LoopScript second = Loop.compileScript("rules", new StringReader(RULES));
+    assertEquals(5, second.invoke("add", 2, 3));
+
+    // Closing a script that was since replaced leaves its replacement alone.
+    first.close();
+    assertTrue(LoopClassLoader.CLASS_LOADER.isLoaded("rules"));
+
+    second.close();
+    assertFalse(LoopClassLoader.CLASS_LOADER.isLoaded("rules"));
+  }
+
+  @Test(expected = LoopExecutionException.class)
+  public final void missingFunction() {
+    Loop.compileScript("rules", new StringReader(RULES)).invoke("add", 1);
+  }
+
+  @Test
+  public final void invokeFromManyThreads() throws Exception {
+    final LoopScript rules = Loop.compileScript("rules", new StringReader(RULES));
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Integer>> sums = new ArrayList<Future<Integer>>();
+      for (int i = 0; i < 8; i++) {
+        final int offset = i;
+        sums.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            int sum = 0;
+            for (int j = 0; j < 1000; j++)
+              sum = rules.invoke(Integer.class, "add", sum, offset);
+            return sum;
+          }
+        }));
+      }
+
+      List<Integer> results = new ArrayList<Integer>();
+      for (Future<Integer> sum : sums)
+        results.add(sum.get());
+      assertEquals(Arrays.asList(0, 1000, 2000, 3000, 4000, 5000, 6000, 7000), results);
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
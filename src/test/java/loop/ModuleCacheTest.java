@@ -0,0 +1,106 @@
+package loop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import loop.ast.script.ModuleLoader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compiles scripts twice against an on-disk module cache.
+ */
+public class ModuleCacheTest extends LoopTest {
+  @Rule
+  public TemporaryFolder cacheDir = new TemporaryFolder();
+
+  @Before
+  public void enableCache() {
+    System.setProperty(ModuleCache.CACHE_DIR_PROPERTY, cacheDir.getRoot().getAbsolutePath());
+  }
+
+  @After
+  public void disableCache() {
+    System.clearProperty(ModuleCache.CACHE_DIR_PROPERTY);
+  }
+
+  @Test
+  public final void warmStartLoadsFromCache() {
+    Object cold = TestFilesLoader.run("loop/confidence/classes/classes_7.loop");
+    int hits = ModuleCache.hits.get();
+
+    ModuleLoader.INSTANCE.reset();
+    Object warm = TestFilesLoader.run("loop/confidence/classes/classes_7.loop");
+
+    assertEquals(Arrays.asList("star Proxima Centauri", "planet", "unknown"), cold);
+    assertEquals(cold, warm);
+
+    // Both the script and prelude come from the cache.
+    assertTrue(ModuleCache.hits.get() >= hits + 2);
+  }
+
+  @Test
+  public final void warmStartWithClosures() {
+    Object cold = TestFilesLoader.run("loop/confidence/lists/lazy_comprehension.loop");
+
+    ModuleLoader.INSTANCE.reset();
+    assertEquals(cold, TestFilesLoader.run("loop/confidence/lists/lazy_comprehension.loop"));
+  }
+
+  @Test
+  public final void corruptEntriesAreIgnored() throws IOException {
+    Object cold = TestFilesLoader.run("loop/confidence/classes/classes_7.loop");
+
+    for (File entry : cacheDir.getRoot().listFiles()) {
+      FileWriter writer = new FileWriter(entry);
+      writer.write("garbage");
+      writer.close();
+    }
+
+    ModuleLoader.INSTANCE.reset();
+    int hits = ModuleCache.hits.get();
+    assertEquals(cold, TestFilesLoader.run("loop/confidence/classes/classes_7.loop"));
+    assertEquals(hits, ModuleCache.hits.get());
+  }
+
+  static class Gadget implements Serializable {
+    private static final long serialVersionUID = 1L;
+    static volatile boolean deserialized;
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      deserialized = true;
+    }
+  }
+
+  @Test
+  public final void entriesOnlyDeserializeCompilerClasses() throws IOException {
+    Object cold = TestFilesLoader.run("loop/confidence/classes/classes_7.loop");
+
+    for (File entry : cacheDir.getRoot().listFiles()) {
+      ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(entry));
+      out.writeObject(new Gadget());
+      out.close();
+    }
+
+    ModuleLoader.INSTANCE.reset();
+    int hits = ModuleCache.hits.get();
+    assertEquals(cold, TestFilesLoader.run("loop/confidence/classes/classes_7.loop"));
+    assertEquals(hits, ModuleCache.hits.get());
+    assertFalse(Gadget.deserialized);
+  }
+}
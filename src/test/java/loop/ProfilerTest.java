@@ -0,0 +1,79 @@
+package loop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+
+import loop.runtime.Caller;
+
+import org.junit.Test;
+
+/**
+ * Samples running loop code and names frames after their source functions.
+ */
+public class ProfilerTest extends LoopTest {
+  private static final String PROFILED = "module profiled\n\n"
+      + "fib(n) =>\n"
+      + "  0 : 0\n"
+      + "  1 : 1\n"
+      + "  * : fib(n - 1) + fib(n - 2)\n\n"
+      + "work(n) ->\n"
+      + "  sum(fib(x) for x in [1..n])\n"
+      + "  where\n"
+      + "    sum(ls) ->\n"
+      + "      ls.size()\n";
+
+  @Test
+  public final void collapsesLoopFramesOnly() {
+    StackTraceElement[] trace = {
+        new StackTraceElement("loop.runtime.Operations", "plus", "Operations.java", 20),
+        new StackTraceElement("quicksort", "$wh$main$helper", "quicksort.loop", 12),
+        new StackTraceElement("sun.reflect.NativeMethodAccessorImpl", "invoke", null, -1),
+        new StackTraceElement("_default", "main", "script.loop", 7),
+        new StackTraceElement("loop.Loop", "main", "Loop.java", 30),
+    };
+
+    assertEquals("script#main:7;quicksort#main:12", Profiler.collapse(trace));
+    assertNull(Profiler.collapse(new StackTraceElement[] { trace[0], trace[4] }));
+  }
+
+  @Test
+  public final void attributesGeneratedFunctions() {
+    assertEquals("outer", Profiler.function("$wh$outer$inner$deeper"));
+    assertEquals("outer", Profiler.function("$fn_999999$$wh$outer$inner"));
+    assertEquals("outer", Profiler.function("$fn_12$outer"));
+    assertEquals("$fn_12", Profiler.function("$fn_12"));
+    assertEquals("odd", Profiler.function("$tc$odd"));
+    assertEquals("plain", Profiler.function("plain"));
+  }
+
+  @Test
+  public final void samplesRunningCode() throws Throwable {
+    Loop.compile("profiled", new StringReader(PROFILED));
+
+    Profiler profiler = Profiler.start(1);
+    try {
+      for (long deadline = System.currentTimeMillis() + 10000;
+           profiler.samples() < 50 && System.currentTimeMillis() < deadline; )
+        Caller.callStatic("profiled", "work", new Object[] { 18 });
+    } finally {
+      profiler.stop();
+    }
+
+    boolean sampledFib = false;
+    for (Map.Entry<String, Long> entry : profiler.stacks().entrySet()) {
+      assertTrue(entry.getKey(), entry.getKey().startsWith("profiled#work:"));
+      sampledFib |= entry.getKey().contains(";profiled#fib:");
+    }
+    assertTrue(profiler.stacks().toString(), sampledFib);
+
+    StringWriter collapsed = new StringWriter();
+    profiler.writeCollapsed(collapsed);
+    assertTrue(collapsed.toString().matches("(?s)(profiled#\\S+ \\d+\\n)+"));
+    assertTrue(profiler.hottestLines(3).get(0).getKey().startsWith("profiled#"));
+  }
+}
@@ -59,6 +59,16 @@ public class ReducerTest {
         "output = x * 2 for x in list1 + list2 if x < 10");
   }
 
+  @Test
+  public final void chainedComprehensionsAreFused() {
+    compare("(= output (comput (cpr y (+ 1) for y in (cpr x (* 2) for x in list if (comput x (< 10))))))",
+        "output = (y + 1 for y in (x * 2 for x in list if x < 10))");
+
+    // Lazy comprehensions stream on their own and are not fused.
+    compare("(= output (comput (cpr y for lazy y in (comput (cpr x for x in list)))))",
+        "output = (y for lazy y in (x for x in list))");
+  }
+
   @Test
   public final void messyListComprehensions() {
     compare("(. (list (comput (cpr x (/ 2) for x in (list 1 2 3) if (comput x (> 2))))))",
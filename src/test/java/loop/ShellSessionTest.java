@@ -0,0 +1,86 @@
+package loop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Compiles shell lines and definitions into a session, a piece at a time.
+ */
+public class ShellSessionTest extends LoopTest {
+  private final ShellSession session = new ShellSession();
+
+  @After
+  public final void close() {
+    session.close();
+  }
+
+  @Test
+  public final void functionsAreCompiledOnceAndCalledFromLines() throws ClassNotFoundException {
+    assertEquals("ok", session.define("double(x) ->\n  x * 2\n"));
+    Class<?> compiled = LoopClassLoader.CLASS_LOADER.loadClass(session.name() + "$double");
+
+    assertEquals(4, session.eval("double(2)", true));
+    assertEquals(10, session.eval("double(5)", true));
+
+    // Lines are released once they've run, but the function stays as it was compiled.
+    assertFalse(LoopClassLoader.CLASS_LOADER.isLoaded(session.name()));
+    assertSame(compiled, LoopClassLoader.CLASS_LOADER.loadClass(session.name() + "$double"));
+  }
+
+  @Test
+  public final void redefinedFunctionsAreSeenByCallers() {
+    assertEquals("ok", session.define("inc(x) ->\n  x + 1\n"));
+    assertEquals("ok", session.define("twice(x) ->\n  inc(inc(x))\n"));
+    assertEquals(3, session.eval("twice(1)", true));
+
+    assertEquals("ok", session.define("inc(x) ->\n  x + 10\n"));
+    assertEquals(21, session.eval("twice(1)", true));
+  }
+
+  @Test
+  public final void functionsThatDoNotVerifyAreNotDefined() {
+    assertEquals("ok", session.define("inc(x) ->\n  x + 1\n"));
+    assertEquals("", session.define("inc(x) ->\n  nosuch(x)\n"));
+
+    assertEquals(2, session.eval("inc(1)", true));
+  }
+
+  @Test
+  public final void variablesAreKeptAcrossLines() {
+    assertEquals(Arrays.asList(1, 2, 3), session.eval("xs = [1, 2, 3]", true));
+    assertEquals(5, session.eval("y = 5", true));
+    assertEquals(8, session.eval("xs.size() + y", true));
+
+    assertEquals(6, session.eval("y = 6", true));
+    assertEquals(9, session.eval("xs.size() + y", true));
+    assertEquals(6, session.variable("y"));
+  }
+
+  @Test
+  public final void typesAreCompiledIntoTheSession() {
+    assertEquals("ok", session.define("class Point ->\n  x\n  y\n"));
+    assertEquals(3, session.eval("new Point(x: 3).x", true));
+  }
+
+  @Test
+  public final void closedSessionsHaveNoVariables() {
+    assertEquals(5, session.eval("y = 5", true));
+    assertEquals(5, ShellSession.obtain(session.name(), "y"));
+    session.close();
+
+    try {
+      ShellSession.obtain(session.name(), "y");
+      fail();
+    } catch (RuntimeException e) {
+      assertEquals("Shell session is closed: " + session.name(), e.getMessage());
+    }
+  }
+}
@@ -8,6 +8,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 /**
  * @author Dhanji R. Prasanna
@@ -141,6 +142,75 @@ public class TokenizerTest {
             "class Me extends You, Him \n  talk: ->\n  'hi'.to_i(15,true)");
   }
 
+  @Test
+  public final void windowsAndMacLineBreaks() {
+    String source = "func (x, y) ->\n  @() ->\n    1 + 2.toString()\n\nfunc2 ->\n  answer # done\n\n";
+    List<Token> expected = new Tokenizer(source).tokenize();
+
+    assertEquals(expected, new Tokenizer(source.replace("\n", "\r\n")).tokenize());
+    assertEquals(expected, new Tokenizer(source.replace("\n", "\r")).tokenize());
+    assertEquals(lines(expected), lines(new Tokenizer(source.replace("\n", "\r\n")).tokenize()));
+  }
+
+  @Test
+  public final void linesOfOnlyWhitespaceAreEmpty() {
+    assertEquals(new Tokenizer("func: ->\n  'hi'\n\n  2").tokenize(),
+        new Tokenizer("func: ->\n  'hi'\n   \t\n  2").tokenize());
+    compare("func : -> { \n ~ ~ 'hi \n\nthere' }", "func: ->\n  'hi \n \nthere'");
+    compare("func : -> { \n ~ ~ 'hi \n\nthere' }", "func: ->\r\n  'hi \r\n \r\nthere'");
+  }
+
+  @Test
+  public final void tokenizesAnyCharSequence() {
+    String source = "func: (x,y) ->\n 'hi'\n 2";
+    assertEquals(new Tokenizer(source).tokenize(),
+        new Tokenizer(java.nio.CharBuffer.wrap(source.toCharArray())).tokenize());
+  }
+
+  @Test
+  public final void repeatedValuesAreShared() {
+    List<Token> tokens = new Tokenizer("add(x, y) ->\n  x + y\n\nmain ->\n  add(1, 2)").tokenize();
+    Token add = null;
+    for (Token token : tokens) {
+      if (!"add".equals(token.value))
+        continue;
+      if (add == null)
+        add = token;
+      else
+        assertSame(add.value, token.value);
+    }
+  }
+
+  @Test
+  public final void interpolatedStringsAreLexedInPlace() {
+    List<Token> tokens = new Tokenizer("greet(name) ->\n  \"Hi @{name}!\n@{name.size()}\"\n").tokenize();
+    Token string = null;
+    for (Token token : tokens)
+      if (token.kind == Kind.STRING)
+        string = token;
+
+    List<StringToken> parts = string.parts;
+    assertEquals(4, parts.size());
+    assertEquals("Hi ", parts.get(0).value);
+    assertEquals(StringToken.Kind.EXPRESSION, parts.get(1).kind);
+    assertEquals(Arrays.asList(new Token("name", Kind.IDENT, 0, 0)), parts.get(1).tokens);
+    assertEquals(1, parts.get(1).tokens.get(0).line);
+    assertEquals("!\n", parts.get(2).value);
+    assertEquals("name . size ( )", Tokenizer.detokenize(parts.get(3).tokens));
+    assertEquals(2, parts.get(3).tokens.get(0).line);
+
+    // Strings without expressions, and single-quoted strings, are left whole.
+    assertEquals(null, new Tokenizer("\"Hi there\" 'Hi @{name}'").tokenize().get(0).parts);
+    assertEquals(null, new Tokenizer("\"Hi there\" 'Hi @{name}'").tokenize().get(1).parts);
+  }
+
+  private static List<Integer> lines(List<Token> tokens) {
+    List<Integer> lines = new java.util.ArrayList<Integer>();
+    for (Token token : tokens)
+      lines.add(token.line);
+    return lines;
+  }
+
   /**
    * COMPARISON LEGEND:
    * <pre>
@@ -66,6 +66,18 @@ public class ControlFlowConfidenceTest extends LoopTest {
     assertEquals(Arrays.asList(2), TestFilesLoader.run("loop/confidence/cflow/if-then-else_pmatch_2.loop"));
   }
 
+  @Test
+  public final void mutualTailCallsRunInConstantStack() {
+    assertEquals(Arrays.asList(true, true, 100000),
+        TestFilesLoader.run("loop/confidence/cflow/mutual_tail_calls.loop"));
+  }
+
+  @Test
+  public final void callsInsideListsAreNotTailCalls() {
+    assertEquals(Arrays.asList(3, Arrays.asList(2, Arrays.asList(1, Arrays.asList()))),
+        TestFilesLoader.run("loop/confidence/cflow/tail_call_in_list.loop"));
+  }
+
   @Test
   public final void exceptionHandlerDecl() {
     assertEquals(LoopExecutionException.class.getName(),
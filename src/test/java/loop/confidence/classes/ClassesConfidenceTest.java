@@ -5,14 +5,19 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.StringReader;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import loop.Loop;
 import loop.LoopTest;
 import loop.TestFilesLoader;
 import loop.lang.ImmutableLoopObject;
+import loop.lang.LoopClass;
 import loop.lang.LoopObject;
+import loop.runtime.Caller;
 
 import org.junit.Test;
 
@@ -133,4 +138,37 @@ public class ClassesConfidenceTest extends LoopTest {
 
     assertNotNull(ex);
   }
+
+  @Test
+  public final void typePatternsOverLoopClasses() {
+    assertEquals(Arrays.asList("star Proxima Centauri", "planet", "unknown"),
+        TestFilesLoader.run("loop/confidence/classes/classes_7.loop"));
+  }
+
+  @Test
+  public final void sameNamedTypesOfDifferentModulesAreDifferent() throws Throwable {
+    String module = "\n\nclass Star ->\n  name: 'Sol'\n\n"
+        + "make ->\n  new Star()\n\n"
+        + "describe(body) =>\n  Star : 'star'\n  *    : 'unknown'\n";
+    Loop.compile("stars_a", new StringReader("module stars_a" + module));
+    Loop.compile("stars_b", new StringReader("module stars_b" + module));
+
+    Object star = Caller.callStatic("stars_a", "make", new Object[0]);
+    assertEquals("star", Caller.callStatic("stars_a", "describe", new Object[] { star }));
+    assertEquals("unknown", Caller.callStatic("stars_b", "describe", new Object[] { star }));
+  }
+
+  @Test
+  public final void objectsMadeFromJavaMatchTheirModulesType() throws Throwable {
+    String module = "\n\nclass Star ->\n  name: 'Sol'\n\n"
+        + "describe(body) =>\n  Star : 'star ' + body.name\n  *    : 'unknown'\n";
+    Loop.compile("stars_a", new StringReader("module stars_a" + module));
+    Loop.compile("stars_b", new StringReader("module stars_b" + module));
+
+    Map<Object, Object> fields = new HashMap<Object, Object>();
+    fields.put("name", "Vega");
+    LoopObject star = LoopClass.newInstance("stars_a", "Star", fields);
+    assertEquals("star Vega", Caller.callStatic("stars_a", "describe", new Object[] { star }));
+    assertEquals("unknown", Caller.callStatic("stars_b", "describe", new Object[] { star }));
+  }
 }
@@ -3,6 +3,7 @@ package loop.confidence.errors;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
+import java.util.Arrays;
 import java.util.List;
 
 import loop.AnnotatedError;
@@ -143,4 +144,38 @@ public class VerifierErrorsConfidenceTest extends LoopTest {
 
     assertEquals(1, errorList.size());
   }
+
+  @Test
+  public final void verifyParallelComprehensionPurity() {
+    List<AnnotatedError> errorList = null;
+    try {
+      TestFilesLoader.run("loop/confidence/errors/verify_error_9.loop");
+    } catch (LoopCompileException e) {
+      errorList = e.getErrors();
+    }
+
+    assertNotNull(errorList);
+
+    assertEquals(2, errorList.size());
+  }
+
+  @Test
+  public final void verifyParallelPurityFollowsAliasesAndCalls() {
+    List<AnnotatedError> errorList = null;
+    try {
+      TestFilesLoader.run("loop/confidence/errors/verify_error_10.loop");
+    } catch (LoopCompileException e) {
+      errorList = e.getErrors();
+    }
+
+    assertNotNull(errorList);
+
+    assertEquals(2, errorList.size());
+  }
+
+  @Test
+  public final void parallelPurityAllowsFieldsNamedLikeSharedMemory() {
+    assertEquals(Arrays.asList(12, 14, 16),
+        TestFilesLoader.run("loop/confidence/errors/parallel_purity_ok.loop"));
+  }
 }
@@ -59,4 +59,10 @@ public class ComplexExpressionsConfidenceTest extends LoopTest {
   public final void unlessWithoutElse() {
     assertEquals(null, TestFilesLoader.run("loop/confidence/expressions/if_then_2.loop"));
   }
+
+  @Test
+  public final void constantFolding() {
+    assertEquals(Arrays.<Object>asList(172800, "ab1", "yes", -2147483648, 3.0, 3, true, 13),
+        TestFilesLoader.run("loop/confidence/expressions/constant_folding.loop"));
+  }
 }
@@ -2,6 +2,9 @@ package loop.confidence.interop;
 
 import static org.junit.Assert.*;
 
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -48,4 +51,49 @@ public class JavaInterfaceConfidenceTest extends LoopTest {
     assertEquals("Hello John", i.sayHello("John"));
     assertEquals("Hello Doe", i.sayHello(new Person("Doe")));
   }
+
+  @Test
+  public void implementationIsGeneratedNotProxied() throws Exception {
+    assertFalse(Proxy.isProxyClass(i.getClass()));
+    assertNotSame(i.getClass(), Loop.implement(ExampleJavaInterface.class, LOOP_IMPL).getClass());
+
+    // Each interface method is a method of the generated class itself.
+    Method multiply = i.getClass().getDeclaredMethod("multiply", double.class, double.class);
+    assertEquals(i.getClass(), multiply.getDeclaringClass());
+    assertEquals(20.0, (Double) multiply.invoke(i, 2.0, 10.0), 0.0);
+  }
+
+  interface PackagePrivateInterface {
+    double multiply(double a, double b);
+
+    String noArgumentsMethod();
+
+    void unexistingMethod();
+  }
+
+  @Test
+  public void packagePrivateInterfacesAreProxied() {
+    PackagePrivateInterface impl = Loop.implement(PackagePrivateInterface.class, LOOP_IMPL);
+    assertTrue(Proxy.isProxyClass(impl.getClass()));
+    assertEquals(20.0, impl.multiply(2.0, 10.0), 0.0);
+    assertEquals("Hello", impl.noArgumentsMethod());
+
+    try {
+      impl.unexistingMethod();
+      fail();
+    } catch (RuntimeException e) {
+      assertTrue(e.getMessage().contains("is not implemented on"));
+    }
+  }
+
+  @Test
+  public void proxiesAreEqualOnlyToThemselves() {
+    PackagePrivateInterface impl = Loop.implement(PackagePrivateInterface.class, LOOP_IMPL);
+    PackagePrivateInterface other = Loop.implement(PackagePrivateInterface.class, LOOP_IMPL);
+
+    assertTrue(impl.equals(impl));
+    assertFalse(impl.equals(other));
+    assertEquals(System.identityHashCode(impl), impl.hashCode());
+    assertTrue(impl.toString().startsWith(PackagePrivateInterface.class.getName()));
+  }
 }
@@ -3,6 +3,7 @@ package loop.confidence.lists;
 import java.util.Arrays;
 import java.util.Iterator;
 
+import loop.LoopCompileException;
 import loop.LoopTest;
 import loop.TestFilesLoader;
 
@@ -126,4 +127,54 @@ public class ListComprehensionConfidenceTest extends LoopTest {
     Assert.assertTrue(iterator instanceof Iterator);
     // assertEquals(Arrays.asList(20, 40, 80), iterator);
   }
+
+  @Test
+  public final void comprehensionOverRange() {
+    Assert.assertEquals(Arrays.asList(9, 10, 11),
+        TestFilesLoader.run("loop/confidence/lists/range_comprehension.loop"));
+  }
+
+  @Test
+  public final void comprehensionOverRangeEdges() {
+    Assert.assertEquals(Arrays.asList(Arrays.asList(2147483645, 2147483646, 2147483647), Arrays.asList(),
+        Arrays.asList(5)), TestFilesLoader.run("loop/confidence/lists/range_edges.loop"));
+  }
+
+  @Test
+  public final void lazyComprehension() {
+    Assert.assertEquals(Arrays.asList(6, 12, 18, 24, 30),
+        TestFilesLoader.run("loop/confidence/lists/lazy_comprehension.loop"));
+  }
+
+  @Test
+  public final void fusedComprehensions() {
+    Assert.assertEquals(Arrays.asList(106, 108),
+        TestFilesLoader.run("loop/confidence/lists/fused_comprehension.loop"));
+  }
+
+  @Test
+  public final void fusedComprehensionsScopeEachStage() {
+    try {
+      TestFilesLoader.run("loop/confidence/lists/fused_comprehension_scope.loop");
+      Assert.fail();
+    } catch (LoopCompileException e) {
+      Assert.assertEquals(1, e.getErrors().size());
+      Assert.assertEquals("Cannot resolve symbol: x", e.getErrors().get(0).getMessage());
+    }
+
+    Assert.assertEquals(Arrays.asList(102, 104, 106),
+        TestFilesLoader.run("loop/confidence/lists/fused_comprehension_shadow.loop"));
+  }
+
+  @Test
+  public final void comprehensionOverMapsAndSets() {
+    Assert.assertEquals(Arrays.asList(Arrays.asList(10), Arrays.asList(5)),
+        TestFilesLoader.run("loop/confidence/lists/map_comprehension.loop"));
+  }
+
+  @Test
+  public final void parallelComprehension() {
+    Assert.assertEquals(Arrays.asList(10001, 40001, 90001, 160001, 250001, 360001, 490001, 640001, 810001, 1000001),
+        TestFilesLoader.run("loop/confidence/lists/parallel_comprehension.loop"));
+  }
 }
@@ -1,17 +1,26 @@
 package loop.confidence.modules;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 
 import loop.AnnotatedError;
 import loop.LoopCompileException;
 import loop.LoopTest;
 import loop.TestFilesLoader;
+import loop.Util;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * Confidence tests run a bunch of semi-realistic programs and assert that their results are as expected. This is meant
@@ -20,6 +29,9 @@ import org.junit.Test;
  * @author dhanji@gmail.com (Dhanji R. Prasanna)
  */
 public class ModulesConfidenceTest extends LoopTest {
+  @Rule
+  public TemporaryFolder searchPath = new TemporaryFolder();
+
   @Test(expected = LoopCompileException.class)
   public final void requireFaultyLoopModule() {
     Assert.assertEquals(new Date(10), TestFilesLoader.run("loop/confidence/modules/require_loop_error_1.loop"));
@@ -135,9 +147,86 @@ public class ModulesConfidenceTest extends LoopTest {
     Assert.assertEquals("1", TestFilesLoader.run("loop/confidence/modules/require_hides_private_err.loop"));
   }
 
+  @Test
+  public final void requireModulesSharingADependency() {
+    Assert.assertEquals(Arrays.asList(11, 12), TestFilesLoader.run("loop/confidence/modules/require_concurrent.loop"));
+  }
+
+  @Test
+  public final void requireCyclicModules() {
+    List<AnnotatedError> errors = null;
+    try {
+      TestFilesLoader.run("loop/confidence/modules/require_cyclic.loop");
+      Assert.fail();
+    } catch (final LoopCompileException e) {
+      errors = e.getErrors();
+    }
+
+    Assert.assertNotNull(errors);
+    Assert.assertEquals(1, errors.size());
+    Assert.assertTrue(errors.get(0).getMessage().startsWith("Cyclic dependency on module: [cyclic_a]"));
+  }
+
+  @Test
+  public final void requireFromSearchPath() throws IOException {
+    final File searched = this.searchPath.newFile("searched.loop");
+    Util.writeFile(searched, "module searched\n\nhello ->\n  'from the search path'\n");
+
+    System.setProperty("loop.path", this.searchPath.getRoot().getAbsolutePath());
+    try {
+      Assert.assertEquals("from the search path", TestFilesLoader.run("loop/confidence/modules/require_search_path.loop"));
+    } finally {
+      System.clearProperty("loop.path");
+    }
+  }
+
+  @Test(expected = LoopCompileException.class)
+  public final void requireMatchesWholeFileNamesOnly() {
+    TestFilesLoader.run("loop/confidence/modules/require_partial_name.loop");
+  }
+
   @Test
   public final void requireFileModule() {
     Assert.assertTrue(TestFilesLoader.run("loop/confidence/modules/require_file.loop").toString()
         .contains("<packaging>jar</packaging>")); // The packing won't change any time soon. We are pretty safe here.
   }
+
+  @Test
+  public final void requireFindsModulesAddedToTheClasspath() throws Exception {
+    final File directory = new File(ModulesConfidenceTest.class.getResource("/loop/confidence/modules").toURI());
+    final File added = new File(directory, "late_arrival.loop");
+    try {
+      try {
+        TestFilesLoader.run("loop/confidence/modules/require_late.loop");
+        Assert.fail();
+      } catch (final LoopCompileException e) {
+        // Not there yet.
+      }
+
+      Util.writeFile(added, "module late_arrival\n\nhello ->\n  'arrived'\n");
+      Assert.assertEquals("arrived", TestFilesLoader.run("loop/confidence/modules/require_late.loop"));
+    } finally {
+      added.delete();
+    }
+  }
+
+  @Test
+  public final void requireSearchesJarsInClasspathDirectories() throws Exception {
+    final File directory = new File(ModulesConfidenceTest.class.getResource("/loop/confidence/modules").toURI());
+    final File jar = new File(directory, "late_jarred.jar");
+    try {
+      final JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+      try {
+        out.putNextEntry(new JarEntry("jarred/late_jarred.loop"));
+        out.write("module late_jarred\n\nhello ->\n  'jarred'\n".getBytes("UTF-8"));
+        out.closeEntry();
+      } finally {
+        out.close();
+      }
+
+      Assert.assertEquals("jarred", TestFilesLoader.run("loop/confidence/modules/require_late_jar.loop"));
+    } finally {
+      jar.delete();
+    }
+  }
 }
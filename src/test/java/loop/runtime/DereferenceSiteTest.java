@@ -0,0 +1,97 @@
+package loop.runtime;
+
+import loop.lang.LoopClass;
+import loop.lang.LoopObject;
+import org.junit.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Inline caches for property dereferences.
+ */
+public class DereferenceSiteTest {
+  public static class Person {
+    public final String nickname;
+    private final String name;
+
+    public Person(String name, String nickname) {
+      this.name = name;
+      this.nickname = nickname;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+
+  private static MethodHandle site(String property) {
+    return DereferenceSite.bootstrap(MethodHandles.lookup(), "dereference",
+        MethodType.methodType(Object.class, Object.class), property).dynamicInvoker();
+  }
+
+  @Test
+  public final void mapsAndLoopObjects() throws Throwable {
+    MethodHandle name = site("name");
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("name", "Dhanji");
+    assertEquals("Dhanji", name.invoke(map));
+
+    LoopObject object = new LoopObject(new LoopClass("Person"));
+    object.put("name", "Jason");
+    assertEquals("Jason", name.invoke(object));
+    assertNull(name.invoke(new HashMap<String, Object>()));
+
+    // Missing properties fall back to getters of the map.
+    assertEquals(object.getType(), site("type").invoke(object));
+  }
+
+  @Test
+  public final void gettersAndPublicFields() throws Throwable {
+    Person person = new Person("Dhanji", "DJ");
+    assertEquals("Dhanji", site("name").invoke(person));
+    assertEquals("DJ", site("nickname").invoke(person));
+    assertEquals(Person.class, site("class").invoke(person));
+
+    // Getters of classes that aren't public, through the interface that declares them.
+    Map.Entry<?, ?> entry = new HashMap<String, Integer>(Map.of("one", 1)).entrySet().iterator().next();
+    assertEquals("one", site("key").invoke(entry));
+    assertEquals(1, site("value").invoke(entry));
+  }
+
+  @Test
+  public final void polymorphicAndMegamorphicSites() throws Throwable {
+    MethodHandle type = site("class");
+    Object[] targets = { Arrays.asList(1), new HashMap<String, Object>(), Map.of("class", "Person"),
+        new ArrayList<Object>(), new HashSet<Object>(), new TreeMap<Object, Object>(), "text" };
+
+    // More types than the site caches, seen more than once.
+    for (int i = 0; i < 3; i++) {
+      for (Object target : targets) {
+        Object expected = target instanceof Map && !((Map<?, ?>) target).isEmpty() ? "Person" : target.getClass();
+        assertEquals(expected, type.invoke(target));
+      }
+    }
+  }
+
+  @Test
+  public final void missingProperties() throws Throwable {
+    try {
+      site("nothing").invoke(new Person("Dhanji", "DJ"));
+      fail();
+    } catch (RuntimeException e) {
+      assertEquals("Property getter not found: " + Person.class.getName() + "#nothing", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package loop.runtime;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ranges computed on demand, at the edges of int.
+ */
+public class RangeTest {
+  @Test
+  public final void rangesEndingAtTheLargestInteger() {
+    assertEquals(Arrays.asList(Integer.MAX_VALUE - 1, Integer.MAX_VALUE),
+        new ArrayList<Integer>(new Range(Integer.MAX_VALUE - 1, Integer.MAX_VALUE)));
+    assertEquals(Arrays.asList(Integer.MIN_VALUE, Integer.MIN_VALUE + 1),
+        new ArrayList<Integer>(new Range(Integer.MIN_VALUE, Integer.MIN_VALUE + 1)));
+  }
+
+  @Test
+  public final void wideRanges() {
+    Range range = new Range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    assertEquals(Integer.MAX_VALUE, range.size());
+    assertTrue(range.contains(0));
+    assertEquals(Integer.MIN_VALUE + 5, (int) range.get(5));
+
+    assertEquals(Integer.MAX_VALUE, new Range(-1, Integer.MAX_VALUE).size());
+    assertEquals(Integer.MAX_VALUE, new Range(0, Integer.MAX_VALUE).size());
+  }
+
+  @Test
+  public final void emptyRanges() {
+    assertEquals(Collections.emptyList(), new Range(3, 1));
+    assertFalse(new Range(3, 1).iterator().hasNext());
+    assertFalse(new Range(3, 1).contains(2));
+    assertEquals(Collections.emptyList(), new Range(Integer.MIN_VALUE, Integer.MIN_VALUE).subList(0, 0));
+  }
+
+  @Test
+  public final void changingARangeCopiesIt() {
+    List<Integer> range = new Range(1, 3);
+    range.add(4);
+    range.set(0, 10);
+    range.remove(Integer.valueOf(2));
+    assertEquals(Arrays.asList(10, 3, 4), range);
+    assertEquals(3, range.size());
+    assertFalse(range.contains(2));
+  }
+}